@@ -64,6 +64,16 @@ public final class DownloaderImpl extends Downloader {
         return instance;
     }
 
+    /**
+     * Get the underlying client, use {@link OkHttpClient#newBuilder()} to derive clients
+     * which share its connection pool and dispatcher.
+     *
+     * @return the {@link OkHttpClient} used by this downloader
+     */
+    public OkHttpClient getClient() {
+        return client;
+    }
+
     public String getCookies(final String url) {
         final String youtubeCookie = url.contains(YOUTUBE_DOMAIN)
                 ? getCookie(YOUTUBE_RESTRICTED_MODE_COOKIE_KEY) : null;
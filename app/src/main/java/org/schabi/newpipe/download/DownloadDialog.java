@@ -1,5 +1,7 @@
 package org.schabi.newpipe.download;
 
+import static org.schabi.newpipe.extractor.stream.DeliveryMethod.DASH;
+import static org.schabi.newpipe.extractor.stream.DeliveryMethod.HLS;
 import static org.schabi.newpipe.extractor.stream.DeliveryMethod.PROGRESSIVE_HTTP;
 import static org.schabi.newpipe.util.ListHelper.getStreamsOfSpecifiedDelivery;
 import static org.schabi.newpipe.util.Localization.assureCorrectAppLanguage;
@@ -55,6 +57,7 @@ import org.schabi.newpipe.extractor.stream.Stream;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.SubtitlesStream;
 import org.schabi.newpipe.extractor.stream.VideoStream;
+import org.schabi.newpipe.player.resolver.PlaybackResolver;
 import org.schabi.newpipe.settings.NewPipeSettings;
 import org.schabi.newpipe.streams.io.NoFileManagerSafeGuard;
 import org.schabi.newpipe.streams.io.StoredDirectoryHelper;
@@ -78,6 +81,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import icepick.Icepick;
 import icepick.State;
@@ -132,6 +136,7 @@ public class DownloadDialog extends DialogFragment
     // Variables for file name and MIME type when picking new folder because it's not set yet
     private String filenameTmp;
     private String mimeTmp;
+    private long[] clipTmp;
 
     private final ActivityResultLauncher<Intent> requestDownloadSaveAsLauncher =
             registerForActivityResult(
@@ -164,19 +169,22 @@ public class DownloadDialog extends DialogFragment
     public DownloadDialog(@NonNull final Context context, @NonNull final StreamInfo info) {
         this.currentInfo = info;
 
-        final List<AudioStream> audioStreams =
-                getStreamsOfSpecifiedDelivery(info.getAudioStreams(), PROGRESSIVE_HTTP);
+        final List<AudioStream> audioStreams = getDownloadableStreams(info.getAudioStreams());
         final List<List<AudioStream>> groupedAudioStreams =
                 ListHelper.getGroupedAudioStreams(context, audioStreams);
         this.wrappedAudioTracks = new AudioTracksWrapper(groupedAudioStreams, context);
         this.selectedAudioTrackIndex =
                 ListHelper.getDefaultAudioTrackGroup(context, groupedAudioStreams);
 
-        // TODO: Adapt this code when the downloader support other types of stream deliveries
+        // the manifests are only used if there are no progressive streams, the video-only
+        // streams are always progressive
+        final List<VideoStream> videoOnlyStreams =
+                getStreamsOfSpecifiedDelivery(info.getVideoOnlyStreams(), PROGRESSIVE_HTTP);
         final List<VideoStream> videoStreams = ListHelper.getSortedStreamVideosList(
                 context,
-                getStreamsOfSpecifiedDelivery(info.getVideoStreams(), PROGRESSIVE_HTTP),
-                getStreamsOfSpecifiedDelivery(info.getVideoOnlyStreams(), PROGRESSIVE_HTTP),
+                videoOnlyStreams.isEmpty() ? getDownloadableStreams(info.getVideoStreams())
+                        : getStreamsOfSpecifiedDelivery(info.getVideoStreams(), PROGRESSIVE_HTTP),
+                videoOnlyStreams,
                 false,
                 // If there are multiple languages available, prefer streams without audio
                 // to allow language selection
@@ -190,6 +198,28 @@ public class DownloadDialog extends DialogFragment
         this.selectedVideoIndex = ListHelper.getDefaultResolutionIndex(context, videoStreams);
     }
 
+    /**
+     * Gets the streams which can be downloaded, the progressive ones or, if there are none, the
+     * HLS and DASH streams given as a manifest url, which are downloaded segment by segment.
+     *
+     * @param streams the streams of the info
+     * @param <S>     the type of the streams
+     * @return the downloadable streams
+     */
+    @NonNull
+    private static <S extends Stream> List<S> getDownloadableStreams(
+            @Nullable final List<S> streams) {
+        final List<S> progressive = getStreamsOfSpecifiedDelivery(streams, PROGRESSIVE_HTTP);
+        if (!progressive.isEmpty() || streams == null) {
+            return progressive;
+        }
+
+        return streams.stream()
+                .filter(stream -> stream.isUrl() && (stream.getDeliveryMethod() == HLS
+                        || stream.getDeliveryMethod() == DASH))
+                .collect(Collectors.toList());
+    }
+
 
     /*//////////////////////////////////////////////////////////////////////////
     // Android lifecycle
@@ -258,8 +288,11 @@ public class DownloadDialog extends DialogFragment
             if (!videoStreams.get(i).isVideoOnly()) {
                 continue;
             }
-            final AudioStream audioStream = SecondaryStreamHelper.getAudioStreamFor(
-                    context, audioStreams.getStreamsList(), videoStreams.get(i));
+            // the secondary stream must be progressive, see continueSelectedDownload()
+            final AudioStream audioStream = SecondaryStreamHelper.getAudioStreamFor(context,
+                    getStreamsOfSpecifiedDelivery(audioStreams.getStreamsList(),
+                            PROGRESSIVE_HTTP),
+                    videoStreams.get(i));
 
             if (audioStream != null) {
                 secondaryStreams.append(i, new SecondaryStreamHelper<>(audioStreams, audioStream));
@@ -576,6 +609,11 @@ public class DownloadDialog extends DialogFragment
         }
 
         dialogBinding.threads.setEnabled(flag);
+
+        // subtitles can not be cut
+        final int clipVisibility = flag ? View.VISIBLE : View.GONE;
+        dialogBinding.clipTextView.setVisibility(clipVisibility);
+        dialogBinding.clipLayout.setVisibility(clipVisibility);
     }
 
     @Override
@@ -818,6 +856,11 @@ public class DownloadDialog extends DialogFragment
                 throw new RuntimeException("No stream selected");
         }
 
+        if (!readClip()) {
+            showFailedDialog(R.string.invalid_time_range);
+            return;
+        }
+
         if (!askForSavePath && (mainStorage == null
                 || mainStorage.isDirect() == NewPipeSettings.useStorageAccessFramework(context)
                 || mainStorage.isInvalidSafStorage())) {
@@ -1034,6 +1077,79 @@ public class DownloadDialog extends DialogFragment
         askDialog.show();
     }
 
+    /**
+     * Reads the optional time range into {@link #clipTmp}. Only the DASH MP4 and M4A streams can
+     * be cut, their segment index maps the range to the fragments to download.
+     *
+     * @return {@code false} if the range is invalid or the selected stream can not be cut
+     */
+    private boolean readClip() {
+        clipTmp = null;
+
+        final String start = Objects.toString(dialogBinding.clipStart.getText(), "").trim();
+        final String end = Objects.toString(dialogBinding.clipEnd.getText(), "").trim();
+        if (start.isEmpty() && end.isEmpty()) {
+            return true;
+        }
+
+        switch (dialogBinding.videoAudioGroup.getCheckedRadioButtonId()) {
+            case R.id.audio_button:
+                final AudioStream audio = audioStreamsAdapter.getItem(selectedAudioIndex);
+                if (audio.getFormat() != MediaFormat.M4A
+                        || audio.getDeliveryMethod() != PROGRESSIVE_HTTP) {
+                    return false;
+                }
+                break;
+            case R.id.video_button:
+                final VideoStream video = videoStreamsAdapter.getItem(selectedVideoIndex);
+                if (video.getFormat() != MediaFormat.MPEG_4 || !video.isVideoOnly()) {
+                    return false;
+                }
+                break;
+            default:
+                return true; // the time range is hidden for subtitles
+        }
+
+        // an empty start or end is the start or end of the stream
+        final long clipStart = start.isEmpty() ? 0 : parseTime(start);
+        final long clipEnd = end.isEmpty() ? Long.MAX_VALUE : parseTime(end);
+        if (clipStart < 0 || clipEnd <= clipStart) {
+            return false;
+        }
+
+        clipTmp = new long[] {clipStart, clipEnd};
+        return true;
+    }
+
+    /**
+     * @param text a time as seconds, minutes:seconds or hours:minutes:seconds
+     * @return the time in milliseconds, or {@code -1} if the text is not valid
+     */
+    private static long parseTime(@NonNull final String text) {
+        final String[] parts = text.split(":", -1);
+        if (parts.length > 3) {
+            return -1;
+        }
+
+        long seconds = 0;
+        for (int i = 0; i < parts.length; i++) {
+            final long value;
+            try {
+                value = Long.parseLong(parts[i]);
+            } catch (final NumberFormatException e) {
+                return -1;
+            }
+
+            // only the first part can be greater than 59
+            if (value < 0 || value > Integer.MAX_VALUE || (i > 0 && value > 59)) {
+                return -1;
+            }
+            seconds = seconds * 60 + value;
+        }
+
+        return seconds * 1000;
+    }
+
     private void continueSelectedDownload(@NonNull final StoredFileHelper storage) {
         if (!storage.canWrite()) {
             showFailedDialog(R.string.permission_denied);
@@ -1086,6 +1202,10 @@ public class DownloadDialog extends DialogFragment
 
                     if (selectedStream.getFormat() == MediaFormat.MPEG_4) {
                         psName = Postprocessing.ALGORITHM_MP4_FROM_DASH_MUXER;
+                        psArgs = new String[] {
+                                String.valueOf(prefs.getBoolean(
+                                        getString(R.string.downloads_fragmented_mp4), false))
+                        };
                     } else {
                         psName = Postprocessing.ALGORITHM_WEBM_MUXER;
                     }
@@ -1137,12 +1257,37 @@ public class DownloadDialog extends DialogFragment
             );
         }
 
+        // the streams played recently are copied from the player cache
+        final String[] cacheKeys = new String[urls.length];
+        cacheKeys[0] = getCacheKey(selectedStream);
+        if (secondaryStream != null) {
+            cacheKeys[1] = getCacheKey(secondaryStream);
+        }
+
+        if (clipTmp != null) {
+            // the length of the clip is calculated by the downloader
+            nearLength = 0;
+        }
+
         DownloadManagerService.startMission(context, urls, storage, kind, threads,
-                currentInfo.getUrl(), psName, psArgs, nearLength, new ArrayList<>(recoveryInfo));
+                currentInfo.getUrl(), psName, psArgs, nearLength, new ArrayList<>(recoveryInfo),
+                clipTmp, cacheKeys);
 
         Toast.makeText(context, getString(R.string.download_has_started),
                 Toast.LENGTH_SHORT).show();
 
         dismiss();
     }
+
+    @Nullable
+    private String getCacheKey(final Stream stream) {
+        if (stream.getDeliveryMethod() != PROGRESSIVE_HTTP) {
+            return null; // the player caches the segments of the manifests, not the whole file
+        } else if (stream instanceof VideoStream) {
+            return PlaybackResolver.cacheKeyOf(currentInfo, (VideoStream) stream);
+        } else if (stream instanceof AudioStream) {
+            return PlaybackResolver.cacheKeyOf(currentInfo, (AudioStream) stream);
+        }
+        return null; // subtitles are not stored in the player cache
+    }
 }
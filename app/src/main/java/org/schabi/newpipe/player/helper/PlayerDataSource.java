@@ -198,7 +198,19 @@ public class PlayerDataSource {
                 .setRnParameterEnabled(rnParameterEnabled);
     }
 
-    private static void instantiateCacheIfNeeded(final Context context) {
+    /**
+     * Gets the cache shared by all players, the downloader reads it to avoid downloading again
+     * the streams that were played recently.
+     *
+     * @param context the context used to create the cache, if not created yet
+     * @return the player cache
+     */
+    public static SimpleCache getCache(final Context context) {
+        instantiateCacheIfNeeded(context);
+        return cache;
+    }
+
+    private static synchronized void instantiateCacheIfNeeded(final Context context) {
         if (cache == null) {
             final File cacheDir = new File(context.getExternalCacheDir(), CACHE_FOLDER_NAME);
             if (DEBUG) {
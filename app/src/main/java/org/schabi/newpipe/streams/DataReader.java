@@ -16,18 +16,38 @@ public class DataReader {
     public static final int FLOAT_SIZE = 4;
 
     private static final int BUFFER_SIZE = 128 * 1024; // 128 KiB
+    // smaller copies are done in the heap, a system call per sample is not worth it
+    static final int TRANSFER_THRESHOLD = 32 * 1024; // 32 KiB
 
     private long position = 0;
     private final SharpStream stream;
 
-    private InputStream view;
+    private View view;
     private int viewSize;
 
     public DataReader(final SharpStream stream) {
+        this(stream, BUFFER_SIZE);
+    }
+
+    DataReader(final SharpStream stream, final int bufferSize) {
         this.stream = stream;
+        this.readBuffer = new byte[bufferSize];
         this.readOffset = this.readBuffer.length;
     }
 
+    /**
+     * Creates a reader for the given stream. If the stream is backed by a readable file the
+     * data is read from a memory-mapped window of the file, otherwise through a buffer.
+     *
+     * @param stream the source
+     * @return the reader
+     * @see MappedDataReader
+     */
+    public static DataReader from(final SharpStream stream) {
+        final DataReader reader = MappedDataReader.of(stream);
+        return reader == null ? new DataReader(stream) : reader;
+    }
+
     public long position() {
         return position;
     }
@@ -85,7 +105,7 @@ public class DataReader {
         final long high =
                 primitive[0] << 24 | primitive[1] << 16 | primitive[2] << 8 | primitive[3];
         final long low = primitive[4] << 24 | primitive[5] << 16 | primitive[6] << 8 | primitive[7];
-        return high << 32 | low;
+        return high << 32 | (low & 0xffffffffL);
     }
 
     public int read(final byte[] buffer) throws IOException {
@@ -132,18 +152,64 @@ public class DataReader {
         return total;
     }
 
+    /**
+     * Copies data into the target. The buffered data is written first, the rest is copied with
+     * {@link SharpStream#transferTo(long, SharpStream)} if the amount is big enough and both
+     * streams are backed by files, otherwise through the read buffer.
+     *
+     * @param count  the amount of bytes to copy
+     * @param target where the data is written
+     * @return the amount of bytes copied, lower than {@code count} if the end was reached
+     * @throws IOException if an I/O error occurs
+     */
+    public long transferTo(final long count, final SharpStream target) throws IOException {
+        if (readCount < 0) {
+            return 0;
+        }
+
+        long total = 0;
+
+        if (readCount > 0) {
+            final int amount = (int) Math.min(readCount, count);
+            target.write(readBuffer, readOffset, amount);
+
+            readOffset += amount;
+            readCount -= amount;
+            total += amount;
+
+            if (readCount == 0) {
+                readOffset = readBuffer.length;
+            }
+        }
+
+        while ((count - total) >= TRANSFER_THRESHOLD) {
+            final long transferred = stream.transferTo(count - total, target);
+            if (transferred < 1) {
+                break;
+            }
+            total += transferred;
+        }
+
+        while (total < count && !fillBuffer()) {
+            final int amount = (int) Math.min(readCount, count - total);
+            target.write(readBuffer, readOffset, amount);
+
+            readOffset += amount;
+            readCount -= amount;
+            total += amount;
+        }
+
+        position += total;
+        return total;
+    }
+
     public boolean available() {
         return readCount > 0 || stream.available() > 0;
     }
 
     public void rewind() throws IOException {
         stream.rewind();
-
-        if ((position - viewSize) > 0) {
-            viewSize = 0; // drop view
-        } else {
-            viewSize += position;
-        }
+        rewindView(position);
 
         position = 0;
         readOffset = readBuffer.length;
@@ -154,6 +220,14 @@ public class DataReader {
         return stream.canRewind();
     }
 
+    void rewindView(final long oldPosition) {
+        if ((oldPosition - viewSize) > 0) {
+            viewSize = 0; // drop view
+        } else {
+            viewSize += oldPosition;
+        }
+    }
+
     /**
      * Wraps this instance of {@code DataReader} into {@code InputStream}
      * object. Note: Any read in the {@code DataReader} will not modify
@@ -162,76 +236,98 @@ public class DataReader {
      * @param size the size of the view
      * @return the view
      */
-    public InputStream getView(final int size) {
+    public View getView(final int size) {
         if (view == null) {
-            view = new InputStream() {
-                @Override
-                public int read() throws IOException {
-                    if (viewSize < 1) {
-                        return -1;
-                    }
-                    final int res = DataReader.this.read();
-                    if (res > 0) {
-                        viewSize--;
-                    }
-                    return res;
-                }
-
-                @Override
-                public int read(final byte[] buffer) throws IOException {
-                    return read(buffer, 0, buffer.length);
-                }
-
-                @Override
-                public int read(final byte[] buffer, final int offset, final int count)
-                        throws IOException {
-                    if (viewSize < 1) {
-                        return -1;
-                    }
-
-                    final int res = DataReader.this.read(buffer, offset, Math.min(viewSize, count));
-                    viewSize -= res;
-
-                    return res;
-                }
-
-                @Override
-                public long skip(final long amount) throws IOException {
-                    if (viewSize < 1) {
-                        return 0;
-                    }
-                    final int res = (int) DataReader.this.skipBytes(Math.min(amount, viewSize));
-                    viewSize -= res;
-
-                    return res;
-                }
-
-                @Override
-                public int available() {
-                    return viewSize;
-                }
-
-                @Override
-                public void close() {
-                    viewSize = 0;
-                }
-
-                @Override
-                public boolean markSupported() {
-                    return false;
-                }
-
-            };
+            view = new View();
         }
         viewSize = size;
 
         return view;
     }
 
+    public final class View extends InputStream {
+        @Override
+        public int read() throws IOException {
+            if (viewSize < 1) {
+                return -1;
+            }
+            final int res = DataReader.this.read();
+            if (res > 0) {
+                viewSize--;
+            }
+            return res;
+        }
+
+        @Override
+        public int read(final byte[] buffer) throws IOException {
+            return read(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count)
+                throws IOException {
+            if (viewSize < 1) {
+                return -1;
+            }
+
+            final int res = DataReader.this.read(buffer, offset, Math.min(viewSize, count));
+            viewSize -= res;
+
+            return res;
+        }
+
+        @Override
+        public long skip(final long amount) throws IOException {
+            if (viewSize < 1) {
+                return 0;
+            }
+            final int res = (int) DataReader.this.skipBytes(Math.min(amount, viewSize));
+            viewSize -= res;
+
+            return res;
+        }
+
+        /**
+         * Copies data of the view into the target without intermediate buffers.
+         *
+         * @param count  the amount of bytes to copy
+         * @param target where the data is written
+         * @return the amount of bytes copied
+         * @throws IOException if an I/O error occurs
+         * @see DataReader#transferTo(long, SharpStream)
+         */
+        public long transferTo(final long count, final SharpStream target) throws IOException {
+            if (viewSize < 1) {
+                return 0;
+            }
+
+            final int res = (int) DataReader.this.transferTo(Math.min(count, viewSize), target);
+            viewSize -= res;
+
+            return res;
+        }
+
+        @Override
+        public int available() {
+            return viewSize;
+        }
+
+        @Override
+        public void close() {
+            viewSize = 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
     private final short[] primitive = new short[LONG_SIZE];
+    private final byte[] primitiveBuffer = new byte[LONG_SIZE];
 
     private void primitiveRead(final int amount) throws IOException {
-        final byte[] buffer = new byte[amount];
+        final byte[] buffer = primitiveBuffer;
         final int read = read(buffer, 0, amount);
 
         if (read != amount) {
@@ -245,7 +341,7 @@ public class DataReader {
         }
     }
 
-    private final byte[] readBuffer = new byte[BUFFER_SIZE];
+    private final byte[] readBuffer;
     private int readOffset;
     private int readCount;
 
@@ -0,0 +1,164 @@
+package org.schabi.newpipe.streams;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.IOException;
+
+/**
+ * Growable buffer where EBML elements are encoded. The buffer is reused between elements, the
+ * sizes of the elements are patched in place once the content is written, so the encoding does
+ * not allocate anything once the buffer is big enough.
+ *
+ * @see WebMWriter
+ */
+final class EbmlBuffer {
+    private byte[] buffer;
+    private int length = 0;
+
+    EbmlBuffer(final int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    void reset() {
+        length = 0;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void writeTo(final SharpStream stream) throws IOException {
+        stream.write(buffer, 0, length);
+    }
+
+    /**
+     * Writes the element id, the id includes the marker of its length.
+     *
+     * @param id the element id
+     * @return this buffer
+     */
+    EbmlBuffer putId(final int id) {
+        for (int shift = 24; shift > 0; shift -= 8) {
+            if ((id >>> shift) != 0) {
+                put(id >>> shift);
+            }
+        }
+        return put(id);
+    }
+
+    EbmlBuffer put(final int value) {
+        ensure(1);
+        buffer[length++] = (byte) value;
+        return this;
+    }
+
+    EbmlBuffer putShort(final int value) {
+        ensure(2);
+        buffer[length++] = (byte) (value >>> 8);
+        buffer[length++] = (byte) value;
+        return this;
+    }
+
+    EbmlBuffer putInt(final int value) {
+        return putShort(value >>> 16).putShort(value);
+    }
+
+    EbmlBuffer put(final byte[] data) {
+        ensure(data.length);
+        System.arraycopy(data, 0, buffer, length, data.length);
+        length += data.length;
+        return this;
+    }
+
+    /**
+     * Writes a number as variable size integer (the size of an element).
+     *
+     * @param number the size to write
+     * @return this buffer
+     */
+    EbmlBuffer putSize(final long number) {
+        final int size = sizeOf(number);
+        ensure(size);
+        putNumber(number, size);
+        buffer[length - size] |= (byte) (0x80 >>> (size - 1));
+        return this;
+    }
+
+    /**
+     * Writes the content of an unsigned integer element, the size followed by the number.
+     *
+     * @param number the value of the element
+     * @return this buffer
+     */
+    EbmlBuffer putUnsigned(final long number) {
+        final int size = sizeOf(number);
+        ensure(size + 1);
+        buffer[length++] = (byte) (0x80 | size);
+        putNumber(number, size);
+        return this;
+    }
+
+    /**
+     * Writes the id of a master element, the size is written by {@link #end(int)}.
+     *
+     * @param id the element id
+     * @return the position of the content
+     */
+    int start(final int id) {
+        putId(id);
+        return length;
+    }
+
+    /**
+     * Writes the size of an element in front of its content, the content is moved.
+     *
+     * @param start the value returned by {@link #start(int)}
+     */
+    void end(final int start) {
+        final int contentSize = length - start;
+        final int size = sizeOf(contentSize);
+
+        ensure(size);
+        System.arraycopy(buffer, start, buffer, start + size, contentSize);
+
+        length = start;
+        putSize(contentSize);
+        length = start + size + contentSize;
+    }
+
+    private void putNumber(final long number, final int size) {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (number >>> shift);
+        }
+    }
+
+    private void ensure(final int amount) {
+        if (length + amount > buffer.length) {
+            final byte[] grown = new byte[Math.max(buffer.length * 2, length + amount)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * @param number the number to encode
+     * @return the amount of bytes used to encode the number as variable size integer
+     */
+    static int sizeOf(final long number) {
+        int size = 1;
+        while (size <= 7 && number >= (1L << (7 * size))) {
+            size++;
+        }
+
+        if (size > 7) {
+            throw new ArithmeticException("Can't encode a number of bigger than 7 bytes");
+        }
+
+        // all bits set is reserved for the unknown size
+        if (number == (1L << (7 * size)) - 1) {
+            size++;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,292 @@
+package org.schabi.newpipe.streams;
+
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+
+/**
+ * {@link DataReader} over a memory-mapped window of the source file. The headers are parsed with
+ * absolute reads on the window and the skipped payloads are never copied. The windows start at
+ * multiples of their size, the current and the previous one are reused, so going back to data
+ * already mapped does not map it again.
+ * <p>
+ * The source stream is not read, its position follows the consumed data with a small lag, so
+ * the progress and the offsets of the file used by the post-processing keep working. The data
+ * being written is awaited with {@link SharpStream#waitFor(long)} before mapping it.
+ *
+ * @see DataReader#from(SharpStream)
+ */
+final class MappedDataReader extends DataReader {
+    private static final int WINDOW_SIZE = 8 * 1024 * 1024; // 8 MiB
+    // the windows overlap, a primitive at the end of one does not need the next window
+    private static final int WINDOW_OVERLAP = LONG_SIZE;
+    // maximum amount of consumed data before moving the position of the stream
+    private static final int SYNC_INTERVAL = 256 * 1024; // 256 KiB
+
+    private final SharpStream stream;
+    private final FileChannel channel;
+
+    // where the stream starts in the file and the amount of bytes available from there
+    private final long start;
+    private final long length;
+
+    private long position = 0;
+    private long streamPosition = 0;
+
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private MappedByteBuffer previousWindow = null;
+    private long previousWindowStart = 0;
+
+    private byte[] transferBuffer = null;
+
+    private MappedDataReader(final SharpStream stream, final FileChannel channel,
+                             final long start, final long length) {
+        super(stream, 0);
+        this.stream = stream;
+        this.channel = channel;
+        this.start = start;
+        this.length = length;
+    }
+
+    /**
+     * @param stream the source
+     * @return the reader or {@code null} if the stream is not backed by a readable file
+     */
+    @Nullable
+    static MappedDataReader of(final SharpStream stream) {
+        final FileChannel channel = stream.getChannel();
+        if (channel == null || !stream.canRead()) {
+            return null;
+        }
+
+        try {
+            final long start = stream.getChannelPosition();
+            final long length = stream.available();
+            if (start < 0 || length < 1) {
+                return null;
+            }
+
+            // the channel can be write-only, like the ones of the SAF streams
+            channel.map(FileChannel.MapMode.READ_ONLY, start, 1);
+
+            return new MappedDataReader(stream, channel, start, length);
+        } catch (final IOException | NonReadableChannelException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+
+        final int index = map(1);
+        final int value = window.get(index) & 0xFF;
+        advance(1);
+
+        return value;
+    }
+
+    @Override
+    public long skipBytes(final long byteAmount) throws IOException {
+        final long amount = Math.max(Math.min(byteAmount, length - position), 0);
+        advance(amount);
+
+        return amount;
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        final int index = mapPrimitive(INTEGER_SIZE);
+        final int value = window.getInt(index);
+        advance(INTEGER_SIZE);
+        return value;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        final int index = mapPrimitive(SHORT_SIZE);
+        final short value = window.getShort(index);
+        advance(SHORT_SIZE);
+        return value;
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        final int index = mapPrimitive(LONG_SIZE);
+        final long value = window.getLong(index);
+        advance(LONG_SIZE);
+        return value;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int off, final int c) throws IOException {
+        if (position >= length) {
+            return c > 0 ? -1 : 0;
+        }
+
+        final int count = (int) Math.min(c, length - position);
+        int total = 0;
+
+        while (total < count) {
+            final int index = map(1);
+            final int amount = Math.min(count - total, window.capacity() - index);
+
+            window.position(index);
+            window.get(buffer, off + total, amount);
+
+            advance(amount);
+            total += amount;
+        }
+
+        return total;
+    }
+
+    /**
+     * Copies data into the target. Big amounts are copied by the stream, through the file
+     * channels if the target has one, otherwise the data is copied from the window.
+     *
+     * @param count  the amount of bytes to copy
+     * @param target where the data is written
+     * @return the amount of bytes copied, lower than {@code count} if the end was reached
+     * @throws IOException if an I/O error occurs
+     * @see SharpStream#transferTo(long, SharpStream)
+     */
+    @Override
+    public long transferTo(final long count, final SharpStream target) throws IOException {
+        final long amount = Math.min(count, length - position);
+        if (amount < 1) {
+            return 0;
+        }
+
+        long total = 0;
+
+        if (amount >= TRANSFER_THRESHOLD) {
+            sync();
+
+            while (total < amount) {
+                final long transferred = stream.transferTo(amount - total, target);
+                if (transferred < 1) {
+                    break;
+                }
+
+                streamPosition += transferred;
+                advance(transferred);
+                total += transferred;
+            }
+        }
+
+        if (total < amount && transferBuffer == null) {
+            transferBuffer = new byte[TRANSFER_THRESHOLD];
+        }
+
+        while (total < amount) {
+            final int read = read(transferBuffer, 0,
+                    (int) Math.min(amount - total, transferBuffer.length));
+            target.write(transferBuffer, 0, read);
+            total += read;
+        }
+
+        return total;
+    }
+
+    @Override
+    public boolean available() {
+        return position < length;
+    }
+
+    @Override
+    public void rewind() throws IOException {
+        stream.rewind();
+        rewindView(position);
+
+        position = 0;
+        streamPosition = 0;
+    }
+
+    private int mapPrimitive(final int size) throws IOException {
+        if ((length - position) < size) {
+            throw new EOFException("Truncated stream, missing "
+                    + (size - (length - position)) + " bytes");
+        }
+
+        return map(size);
+    }
+
+    /**
+     * Moves the window if the data at the current position is not mapped. The previous window is
+     * reused if it covers the data, otherwise the window of the position is mapped and the
+     * oldest one is dropped, so the reader never holds more than two mappings.
+     *
+     * @param amount the amount of bytes to read, up to {@link #WINDOW_OVERLAP} and never beyond
+     *               the end of the stream
+     * @return the index of the current position in the window
+     */
+    private int map(final int amount) throws IOException {
+        if (covers(window, windowStart, amount)) {
+            return (int) (position - windowStart);
+        }
+
+        final MappedByteBuffer dropped = window;
+        final long droppedStart = windowStart;
+
+        if (covers(previousWindow, previousWindowStart, amount)) {
+            window = previousWindow;
+            windowStart = previousWindowStart;
+        } else {
+            final long mapStart = position - (position % WINDOW_SIZE);
+            final int size = (int) Math.min(WINDOW_SIZE + WINDOW_OVERLAP, length - mapStart);
+            stream.waitFor(mapStart + size - streamPosition);
+
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start + mapStart, size);
+            windowStart = mapStart;
+        }
+
+        previousWindow = dropped;
+        previousWindowStart = droppedStart;
+
+        return (int) (position - windowStart);
+    }
+
+    private boolean covers(final MappedByteBuffer buffer, final long bufferStart,
+                           final int amount) {
+        return buffer != null && position >= bufferStart
+                && (position + amount) <= (bufferStart + buffer.capacity());
+    }
+
+    private void advance(final long amount) throws IOException {
+        position += amount;
+
+        if ((position - streamPosition) >= SYNC_INTERVAL || position >= length) {
+            sync();
+        }
+    }
+
+    /**
+     * Moves the stream to the current position, the data before it is consumed.
+     */
+    private void sync() throws IOException {
+        while (streamPosition < position) {
+            final long skipped =
+                    stream.skip(Math.min(position - streamPosition, Integer.MAX_VALUE));
+            if (skipped < 1) {
+                throw new EOFException("Truncated stream, missing "
+                        + (position - streamPosition) + " bytes");
+            }
+            streamPosition += skipped;
+        }
+    }
+}
@@ -4,7 +4,6 @@ import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -67,7 +66,7 @@ public class Mp4DashReader {
     }
 
     public Mp4DashReader(final SharpStream source) {
-        this.stream = new DataReader(source);
+        this.stream = DataReader.from(source);
     }
 
     public void parse() throws IOException, NoSuchElementException {
@@ -905,7 +904,7 @@ public class Mp4DashReader {
     }
 
     public static class Mp4DashChunk {
-        public InputStream data;
+        public DataReader.View data;
         public Moof moof;
         private int i = 0;
 
@@ -3,15 +3,21 @@ package org.schabi.newpipe.streams;
 import org.schabi.newpipe.streams.Mp4DashReader.Hdlr;
 import org.schabi.newpipe.streams.Mp4DashReader.Mdia;
 import org.schabi.newpipe.streams.Mp4DashReader.Mp4DashChunk;
-import org.schabi.newpipe.streams.Mp4DashReader.Mp4DashSample;
 import org.schabi.newpipe.streams.Mp4DashReader.Mp4Track;
 import org.schabi.newpipe.streams.Mp4DashReader.TrackKind;
+import org.schabi.newpipe.streams.Mp4DashReader.Traf;
+import org.schabi.newpipe.streams.Mp4DashReader.Trex;
+import org.schabi.newpipe.streams.Mp4DashReader.Trun;
 import org.schabi.newpipe.streams.Mp4DashReader.TrunEntry;
 import org.schabi.newpipe.streams.io.SharpStream;
 
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * @author kapodamy
@@ -26,17 +32,26 @@ public class Mp4FromDashWriter {
     private static final long THRESHOLD_FOR_CO64 = 0xFFFEFFFFL;
     // 2.2 MiB enough for: 1080p 60fps 00h35m00s
     private static final int THRESHOLD_MOOV_LENGTH = (256 * 1024) + (2048 * 1024);
+    // amount of every sample table kept in memory by the single-pass mode
+    private static final int THRESHOLD_TABLE_MEMORY = 256 * 1024;
 
     private final long time;
 
     private ByteBuffer auxBuffer;
     private SharpStream outStream;
 
-    private long lastWriteOffset = -1;
     private long writeOffset;
 
+    // data of the samples read from the current fragment, but not written yet
+    private long pendingSampleData = 0;
+
     private boolean moovSimulation = true;
 
+    // offset of the moov box in the output, if is written without using the auxBuffer
+    private long auxBase = 0;
+
+    private File temporalDir = null;
+
     private boolean done = false;
     private boolean parsed = false;
 
@@ -116,6 +131,15 @@ public class Mp4FromDashWriter {
         overrideMainBrand = brand;
     }
 
+    /**
+     * Sets the directory for the temporal files of {@link #buildSinglePass(SharpStream)}.
+     *
+     * @param directory where the sample tables are stored, {@code null} for the default
+     */
+    public void setTemporalDir(final File directory) {
+        temporalDir = directory;
+    }
+
     public boolean isDone() {
         return done;
     }
@@ -142,8 +166,18 @@ public class Mp4FromDashWriter {
         outStream = null;
     }
 
+    /**
+     * Muxes the selected tracks reading every source once, the samples are copied into the
+     * mdat box as soon are read and the sample tables are stored aside (spilled to temporal
+     * files if are big). The moov box is written at the end, in the
+     * space reserved after the ftyp box if the estimated size was enough, otherwise after
+     * the mdat box.
+     *
+     * @param output where the muxed file is written, must allow seek or rewind
+     * @throws IOException if an I/O error occurs
+     */
     @SuppressWarnings("MethodLength")
-    public void build(final SharpStream output) throws IOException {
+    public void buildSinglePass(final SharpStream output) throws IOException {
         if (done) {
             throw new RuntimeException("already done");
         }
@@ -151,22 +185,7 @@ public class Mp4FromDashWriter {
             throw new IOException("the provided output is not writable");
         }
 
-        //
-        // WARNING: the muxer requires at least 8 samples of every track
-        //          not allowed for very short tracks (less than 0.5 seconds)
-        //
         outStream = output;
-        long read = 8; // mdat box header size
-        long totalSampleSize = 0;
-        final int[] sampleExtra = new int[readers.length];
-        final int[] defaultMediaTime = new int[readers.length];
-        final int[] defaultSampleDuration = new int[readers.length];
-        final int[] sampleCount = new int[readers.length];
-
-        final TablesInfo[] tablesInfo = new TablesInfo[tracks.length];
-        for (int i = 0; i < tablesInfo.length; i++) {
-            tablesInfo[i] = new TablesInfo();
-        }
 
         final int singleSampleBuffer;
         if (tracks.length == 1 && tracks[0].kind == TrackKind.Audio) {
@@ -176,331 +195,633 @@ public class Mp4FromDashWriter {
             singleSampleBuffer = -1;
         }
 
+        final SampleTables[] sampleTables = new SampleTables[readers.length];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                sampleTables[i] = new SampleTables(temporalDir);
+                fetchChunk(i, sampleTables[i]); // the first fragment is used in the estimation
+            }
 
-        for (int i = 0; i < readers.length; i++) {
-            int samplesSize = 0;
-            int sampleSizeChanges = 0;
-            int compositionOffsetLast = -1;
-
-            Mp4DashChunk chunk;
-            while ((chunk = readers[i].getNextChunk(true)) != null) {
+            final int reserved = estimateMoovSize(singleSampleBuffer);
 
-                if (defaultMediaTime[i] < 1 && chunk.moof.traf.tfhd.defaultSampleDuration > 0) {
-                    defaultMediaTime[i] = chunk.moof.traf.tfhd.defaultSampleDuration;
+            writeOffset = 0;
+            final int ftypSize = makeFtyp();
+
+            // reserve the space for the moov box, the excess is left as a free box
+            if (reserved > 0) {
+                outWrite(ByteBuffer.allocate(8).putInt(reserved).putInt(0x66726565).array());
+
+                int length = reserved - 8;
+                final byte[] buffer = new byte[64 * 1024]; // 64 KiB
+                while (length > 0) {
+                    final int count = Math.min(length, buffer.length);
+                    outWrite(buffer, count);
+                    length -= count;
                 }
+            }
 
-                read += chunk.moof.traf.trun.chunkSize;
-                sampleExtra[i] += chunk.moof.traf.trun.chunkDuration; // calculate track duration
+            // the length of the mdat box is unknown, "wide" leaves room for the 64-bit header
+            final long mdatOffset = writeOffset;
+            outWrite(new byte[]{
+                    0x00, 0x00, 0x00, 0x08, 0x77, 0x69, 0x64, 0x65, // wide
+                    0x00, 0x00, 0x00, 0x00, 0x6D, 0x64, 0x61, 0x74 // mdat
+            });
 
-                TrunEntry info;
-                while ((info = chunk.getNextSampleInfo()) != null) {
-                    if (info.isKeyframe) {
-                        tablesInfo[i].stss++;
-                    }
+            final boolean[] finished = new boolean[readers.length];
+
+            int written = readers.length;
+            while (written > 0) {
+                written = 0;
 
-                    if (info.sampleDuration > defaultSampleDuration[i]) {
-                        defaultSampleDuration[i] = info.sampleDuration;
+                for (int i = 0; i < readers.length; i++) {
+                    if (finished[i]) {
+                        continue;
                     }
 
-                    tablesInfo[i].stsz++;
-                    if (samplesSize != info.sampleSize) {
-                        samplesSize = info.sampleSize;
-                        sampleSizeChanges++;
+                    final long chunkOffset = writeOffset;
+                    final int limit;
+                    if (singleSampleBuffer > 0) {
+                        limit = singleSampleBuffer;
+                    } else {
+                        limit = sampleTables[i].chunkCount == 0
+                                ? SAMPLES_PER_CHUNK_INIT : SAMPLES_PER_CHUNK;
                     }
 
-                    if (info.hasCompositionTimeOffset) {
-                        if (info.sampleCompositionTimeOffset != compositionOffsetLast) {
-                            tablesInfo[i].ctts++;
-                            compositionOffsetLast = info.sampleCompositionTimeOffset;
+                    int j = 0;
+                    for (; j < limit; j++) {
+                        final TrunEntry sample = getNextSampleInfo(i, sampleTables[i]);
+
+                        if (sample == null) {
+                            finished[i] = true;
+                            break;
                         }
+
+                        sampleTables[i].addSample(sample);
                     }
 
-                    totalSampleSize += info.sampleSize;
+                    copySampleData(i);
+
+                    if (j > 0) {
+                        written++;
+                        sampleTables[i].addChunk(chunkOffset, j);
+                    }
                 }
             }
 
-            if (defaultMediaTime[i] < 1) {
-                defaultMediaTime[i] = defaultSampleDuration[i];
-            }
+            final long mdatEnd = writeOffset;
+            final boolean is64 = mdatEnd > THRESHOLD_FOR_CO64;
 
-            readers[i].rewind();
+            final int[] defaultMediaTime = new int[readers.length];
+            final TablesInfo[] tablesInfo = new TablesInfo[tracks.length];
 
-            if (singleSampleBuffer > 0) {
-                initChunkTables(tablesInfo[i], singleSampleBuffer, singleSampleBuffer);
-            } else {
-                initChunkTables(tablesInfo[i], SAMPLES_PER_CHUNK_INIT, SAMPLES_PER_CHUNK);
-            }
+            for (int i = 0; i < readers.length; i++) {
+                final SampleTables tables = sampleTables[i];
+                tables.finish();
 
-            sampleCount[i] = tablesInfo[i].stsz;
+                defaultMediaTime[i] = tables.defaultMediaTime < 1
+                        ? tables.defaultSampleDuration : tables.defaultMediaTime;
 
-            if (sampleSizeChanges == 1) {
-                tablesInfo[i].stsz = 0;
-                tablesInfo[i].stszDefault = samplesSize;
-            } else {
-                tablesInfo[i].stszDefault = 0;
-            }
+                tablesInfo[i] = new TablesInfo();
+                tablesInfo[i].stsc = tables.stscCount;
+                tablesInfo[i].stco = tables.chunkCount;
+                tablesInfo[i].ctts = tables.cttsCount;
+                tablesInfo[i].stss = tables.syncTable ? tables.keyframes : -1;
 
-            if (tablesInfo[i].stss == tablesInfo[i].stsz) {
-                tablesInfo[i].stss = -1; // for audio tracks (all samples are keyframes)
+                if (tables.variableSize) {
+                    tablesInfo[i].stsz = tables.sampleCount;
+                    tablesInfo[i].stszDefault = 0;
+                } else {
+                    tablesInfo[i].stsz = 0;
+                    tablesInfo[i].stszDefault = tables.sampleSize;
+                }
+
+                // ensure track duration
+                if (tracks[i].trak.tkhd.duration < 1 || tables.startTime > 0) {
+                    // (the source is a clip if does not start at zero)
+                    tracks[i].trak.tkhd.duration = tables.duration;
+                }
             }
 
-            // ensure track duration
-            if (tracks[i].trak.tkhd.duration < 1) {
-                tracks[i].trak.tkhd.duration = sampleExtra[i]; // this never should happen
+            final long[] delays = new long[tracks.length];
+            double earliest = Double.MAX_VALUE;
+            for (int i = 0; i < tracks.length; i++) {
+                earliest = Math.min(earliest, (double) Math.max(sampleTables[i].startTime, 0)
+                        / tracks[i].trak.mdia.mdhdTimeScale);
+            }
+            for (int i = 0; i < tracks.length; i++) {
+                final double start = (double) Math.max(sampleTables[i].startTime, 0)
+                        / tracks[i].trak.mdia.mdhdTimeScale;
+                delays[i] = Math.round((start - earliest) * DEFAULT_TIMESCALE);
             }
-        }
 
+            // calculate the moov size
+            moovSimulation = true;
+            writeOffset = 0;
+            final int moovSize = makeMoov(defaultMediaTime, delays, tablesInfo, is64);
+            moovSimulation = false;
+            writeOffset = mdatEnd;
 
-        final boolean is64 = read > THRESHOLD_FOR_CO64;
+            final long moovOffset;
+            if (moovSize == reserved || moovSize + 8 <= reserved) {
+                moovOffset = ftypSize;
+            } else {
+                moovOffset = mdatEnd;
+            }
 
-        // calculate the moov size
-        final int auxSize = makeMoov(defaultMediaTime, tablesInfo, is64);
+            if (moovSize < THRESHOLD_MOOV_LENGTH) {
+                auxBuffer = ByteBuffer.allocate(moovSize); // cache moov in the memory
+                makeMoov(defaultMediaTime, delays, tablesInfo, is64);
+                for (int i = 0; i < readers.length; i++) {
+                    writeSampleTables(tablesInfo[i], sampleTables[i], is64);
+                }
 
-        if (auxSize < THRESHOLD_MOOV_LENGTH) {
-            auxBuffer = ByteBuffer.allocate(auxSize); // cache moov in the memory
-        }
+                outSeek(moovOffset);
+                outWrite(auxBuffer.array(), moovSize);
+                auxBuffer = null;
+            } else {
+                outSeek(moovOffset);
+                int length = moovSize;
+                final byte[] buffer = new byte[64 * 1024]; // 64 KiB
+                while (length > 0) {
+                    final int count = Math.min(length, buffer.length);
+                    outWrite(buffer, count);
+                    length -= count;
+                }
 
-        moovSimulation = false;
-        writeOffset = 0;
+                auxBase = moovOffset;
+                outSeek(moovOffset);
+                makeMoov(defaultMediaTime, delays, tablesInfo, is64);
+                for (int i = 0; i < readers.length; i++) {
+                    writeSampleTables(tablesInfo[i], sampleTables[i], is64);
+                }
+                auxBase = 0;
+            }
 
-        final int ftypSize = makeFtyp();
+            if (moovOffset == ftypSize && moovSize < reserved) {
+                // the remaining reserved space
+                outSeek(ftypSize + moovSize);
+                outWrite(ByteBuffer.allocate(8)
+                        .putInt(reserved - moovSize)
+                        .putInt(0x66726565) // free
+                        .array()
+                );
+            }
 
-        // reserve moov space in the output stream
-        if (auxSize > 0) {
-            int length = auxSize;
-            final byte[] buffer = new byte[64 * 1024]; // 64 KiB
-            while (length > 0) {
-                final int count = Math.min(length, buffer.length);
-                outWrite(buffer, count);
-                length -= count;
+            // write the mdat length
+            outSeek(mdatOffset);
+            if (is64) {
+                outWrite(ByteBuffer.allocate(16)
+                        .putInt(0x01)
+                        .putInt(0x6D646174) // mdat
+                        .putLong(mdatEnd - mdatOffset)
+                        .array()
+                );
+            } else {
+                outSkip(8);
+                outWrite(ByteBuffer.allocate(4).putInt((int) (mdatEnd - mdatOffset - 8)).array());
+            }
+        } finally {
+            for (final SampleTables tables : sampleTables) {
+                if (tables != null) {
+                    tables.close();
+                }
             }
         }
+    }
 
-        if (auxBuffer == null) {
-            outSeek(ftypSize);
+    /**
+     * Writes a fragmented MPEG-4 file, the fragments of the sources are copied as are (only
+     * the track ids and the decode times are rewritten) in presentation order. The moov box
+     * only has the init data of every track, the sample tables are not built. A mfra box is
+     * added at the end for seeking.
+     *
+     * @param output where the file is written, must allow seek or rewind
+     * @throws IOException if an I/O error occurs
+     */
+    public void buildFragmented(final SharpStream output) throws IOException {
+        if (done) {
+            throw new RuntimeException("already done");
+        }
+        if (!output.canWrite()) {
+            throw new IOException("the provided output is not writable");
         }
 
-        // tablesInfo contains row counts
-        // and after returning from makeMoov() will contain those table offsets
-        makeMoov(defaultMediaTime, tablesInfo, is64);
+        outStream = output;
+
+        final TableBuffer[] tfra = new TableBuffer[readers.length];
+        try {
+            // the earliest fragment is the start of the movie, used on clips
+            double earliest = Double.MAX_VALUE;
+            for (int i = 0; i < readers.length; i++) {
+                tfra[i] = new TableBuffer(temporalDir, THRESHOLD_TABLE_MEMORY);
+                if (fetchChunk(i, null)) {
+                    earliest = Math.min(earliest, (double) readersChunks[i].moof.traf.tfdt
+                            / tracks[i].trak.mdia.mdhdTimeScale);
+                }
+            }
 
-        // write tables: stts stsc sbgp
-        // reset for ctts table: sampleCount sampleExtra
-        for (int i = 0; i < readers.length; i++) {
-            writeEntryArray(tablesInfo[i].stts, 2, sampleCount[i], defaultSampleDuration[i]);
-            writeEntryArray(tablesInfo[i].stsc, tablesInfo[i].stscBEntries.length,
-                    tablesInfo[i].stscBEntries);
-            tablesInfo[i].stscBEntries = null;
-            if (tablesInfo[i].ctts > 0) {
-                sampleCount[i] = 1; // the index is not base zero
-                sampleExtra[i] = -1;
+            final long[] baseTime = new long[readers.length];
+            final long[] endTime = new long[readers.length];
+            for (int i = 0; i < readers.length && earliest != Double.MAX_VALUE; i++) {
+                baseTime[i] = Math.round(earliest * tracks[i].trak.mdia.mdhdTimeScale);
             }
-            if (tablesInfo[i].sbgp > 0) {
-                writeEntryArray(tablesInfo[i].sbgp, 1, sampleCount[i]);
+
+            if (!compatibleBrands.contains(0x69736F36)) {
+                compatibleBrands.add(0x69736F36); // iso6, movie fragments with tfdt
             }
-        }
 
-        if (auxBuffer == null) {
-            outRestore();
-        }
+            moovSimulation = true;
+            writeOffset = 0;
+            makeFragmentedMoov();
+            final int moovSize = (int) writeOffset;
+            moovSimulation = false;
 
-        outWrite(makeMdat(totalSampleSize, is64));
+            writeOffset = 0;
+            final int ftypSize = makeFtyp();
 
-        final int[] sampleIndex = new int[readers.length];
-        final int[] sizes =
-                new int[singleSampleBuffer > 0 ? singleSampleBuffer : SAMPLES_PER_CHUNK];
-        final int[] sync = new int[singleSampleBuffer > 0 ? singleSampleBuffer : SAMPLES_PER_CHUNK];
+            auxBuffer = ByteBuffer.allocate(moovSize);
+            final int mehdOffset = ftypSize + makeFragmentedMoov();
+            outWrite(auxBuffer.array());
+            auxBuffer = null;
 
-        int written = readers.length;
-        while (written > 0) {
-            written = 0;
+            final int[] tfraCount = new int[readers.length];
+            int sequence = 1;
 
-            for (int i = 0; i < readers.length; i++) {
-                if (sampleIndex[i] < 0) {
-                    continue; // track is done
+            while (true) {
+                int track = -1;
+                double nextTime = Double.MAX_VALUE;
+                for (int i = 0; i < readers.length; i++) {
+                    if (readersChunks[i] == null) {
+                        continue;
+                    }
+
+                    final double start = (double) readersChunks[i].moof.traf.tfdt
+                            / tracks[i].trak.mdia.mdhdTimeScale;
+                    if (start < nextTime) {
+                        nextTime = start;
+                        track = i;
+                    }
                 }
 
-                final long chunkOffset = writeOffset;
-                int syncCount = 0;
-                final int limit;
-                if (singleSampleBuffer > 0) {
-                    limit = singleSampleBuffer;
-                } else {
-                    limit = sampleIndex[i] == 0 ? SAMPLES_PER_CHUNK_INIT : SAMPLES_PER_CHUNK;
+                if (track < 0) {
+                    break; // all sources are done
                 }
 
-                int j = 0;
-                for (; j < limit; j++) {
-                    final Mp4DashSample sample = getNextSample(i);
+                final Mp4DashChunk chunk = readersChunks[track];
+                final Traf traf = chunk.moof.traf;
+                final long decodeTime = Math.max(traf.tfdt - baseTime[track], 0);
+
+                if (traf.trun.getAbsoluteEntry(0, traf.tfhd).isKeyframe) {
+                    // tfra_entry = [time, moof_offset, traf_number, trun_number, sample_number]
+                    tfra[track].putLong(decodeTime);
+                    tfra[track].putLong(writeOffset);
+                    tfra[track].putInt(1);
+                    tfra[track].putInt(1);
+                    tfra[track].putInt(1);
+                    tfraCount[track]++;
+                }
 
-                    if (sample == null) {
-                        if (tablesInfo[i].ctts > 0 && sampleExtra[i] >= 0) {
-                            writeEntryArray(tablesInfo[i].ctts, 1, sampleCount[i],
-                                    sampleExtra[i]); // flush last entries
-                            outRestore();
-                        }
-                        sampleIndex[i] = -1;
-                        break;
-                    }
+                outWrite(makeMoof(sequence++, track + 1, traf, decodeTime));
+                outWrite(ByteBuffer.allocate(8)
+                        .putInt(traf.trun.chunkSize + 8)
+                        .putInt(0x6D646174) // mdat
+                        .array()
+                );
+
+                final long copied = chunk.data.transferTo(traf.trun.chunkSize, outStream);
+                writeOffset += copied;
+                if (copied != traf.trun.chunkSize) {
+                    throw new EOFException("EOF reached while copying a fragment");
+                }
 
-                    sampleIndex[i]++;
-
-                    if (tablesInfo[i].ctts > 0) {
-                        if (sample.info.sampleCompositionTimeOffset == sampleExtra[i]) {
-                            sampleCount[i]++;
-                        } else {
-                            if (sampleExtra[i] >= 0) {
-                                tablesInfo[i].ctts = writeEntryArray(tablesInfo[i].ctts, 2,
-                                        sampleCount[i], sampleExtra[i]);
-                                outRestore();
-                            }
-                            sampleCount[i] = 1;
-                            sampleExtra[i] = sample.info.sampleCompositionTimeOffset;
-                        }
-                    }
+                endTime[track] = Math.max(endTime[track], decodeTime + traf.trun.chunkDuration);
+                fetchChunk(track, null);
+            }
 
-                    if (tablesInfo[i].stss > 0 && sample.info.isKeyframe) {
-                        sync[syncCount++] = sampleIndex[i];
-                    }
+            // mfra: the random access points of every track
+            final int mfraOffset = 8;
+            long mfraSize = mfraOffset + 16;
+            for (final int count : tfraCount) {
+                mfraSize += 24 + (count * 28L);
+            }
 
-                    if (tablesInfo[i].stsz > 0) {
-                        sizes[j] = sample.data.length;
-                    }
+            outWrite(ByteBuffer.allocate(8).putInt((int) mfraSize).putInt(0x6D667261).array());
+            for (int i = 0; i < readers.length; i++) {
+                outWrite(ByteBuffer.allocate(24)
+                        .putInt(24 + (tfraCount[i] * 28))
+                        .putInt(0x74667261) // tfra
+                        .putInt(0x01000000) // version 1, 64-bit time and offset
+                        .putInt(i + 1)
+                        .putInt(0x3F) // traf, trun and sample numbers are 32-bit
+                        .putInt(tfraCount[i])
+                        .array()
+                );
+                tfra[i].writeTo(this::outWrite);
+            }
+            outWrite(ByteBuffer.allocate(16)
+                    .putInt(16)
+                    .putInt(0x6D66726F) // mfro
+                    .putInt(0x00)
+                    .putInt((int) mfraSize)
+                    .array()
+            );
+
+            // the duration is known now
+            long longestTrack = 0;
+            for (int i = 0; i < readers.length; i++) {
+                longestTrack = Math.max(longestTrack, (long) Math.ceil(
+                        ((double) endTime[i] / tracks[i].trak.mdia.mdhdTimeScale)
+                                * DEFAULT_TIMESCALE));
+            }
 
-                    outWrite(sample.data, sample.data.length);
+            final byte[] duration = ByteBuffer.allocate(8).putLong(longestTrack).array();
+            outSeek(ftypSize + 8 + 32); // mvhd duration
+            outWrite(duration);
+            outSeek(mehdOffset);
+            outWrite(duration);
+        } finally {
+            for (final TableBuffer table : tfra) {
+                if (table != null) {
+                    table.close();
                 }
+            }
+        }
+    }
 
-                if (j > 0) {
-                    written++;
-
-                    if (tablesInfo[i].stsz > 0) {
-                        tablesInfo[i].stsz = writeEntryArray(tablesInfo[i].stsz, j, sizes);
-                    }
+    /**
+     * @return the offset of the mehd fragment duration, relative to the moov
+     */
+    private int makeFragmentedMoov() throws IOException {
+        final int start = auxOffset();
 
-                    if (syncCount > 0) {
-                        tablesInfo[i].stss = writeEntryArray(tablesInfo[i].stss, syncCount, sync);
-                    }
+        auxWrite(new byte[]{
+                0x00, 0x00, 0x00, 0x00, 0x6D, 0x6F, 0x6F, 0x76
+        });
 
-                    if (tablesInfo[i].stco > 0) {
-                        if (is64) {
-                            tablesInfo[i].stco = writeEntry64(tablesInfo[i].stco, chunkOffset);
-                        } else {
-                            tablesInfo[i].stco = writeEntryArray(tablesInfo[i].stco, 1,
-                                    (int) chunkOffset);
-                        }
-                    }
+        makeMvhd(0); // the duration is set after writing all fragments
 
-                    outRestore();
-                }
+        for (int i = 0; i < tracks.length; i++) {
+            if (tracks[i].trak.tkhd.matrix.length != 36) {
+                throw
+                    new RuntimeException("bad track matrix length (expected 36) in track n°" + i);
             }
+            makeTrak(i, 0, 0, 0, null, false);
         }
 
-        if (auxBuffer != null) {
-            // dump moov
-            outSeek(ftypSize);
-            outStream.write(auxBuffer.array(), 0, auxBuffer.capacity());
-            auxBuffer = null;
+        final int mvex = auxOffset();
+        auxWrite(new byte[]{
+                0x00, 0x00, 0x00, 0x00, 0x6D, 0x76, 0x65, 0x78, // mvex
+                0x00, 0x00, 0x00, 0x14, 0x6D, 0x65, 0x68, 0x64, 0x01, 0x00, 0x00, 0x00 // mehd
+        });
+        final int mehd = auxOffset();
+        auxWrite(new byte[8]); // fragment duration
+
+        for (int i = 0; i < tracks.length; i++) {
+            final Trex trex = tracks[i].trex;
+            auxWrite(ByteBuffer.allocate(32)
+                    .putInt(32)
+                    .putInt(0x74726578) // trex
+                    .putInt(0x00)
+                    .putInt(i + 1)
+                    .putInt(trex == null ? 1 : trex.defaultSampleDescriptionIndex)
+                    .putInt(trex == null ? 0 : trex.defaultSampleDuration)
+                    .putInt(trex == null ? 0 : trex.defaultSampleSize)
+                    .putInt(trex == null ? 0 : trex.defaultSampleFlags)
+                    .array()
+            );
         }
+
+        lengthFor(mvex);
+        lengthFor(start);
+
+        return mehd - start;
     }
 
-    private Mp4DashSample getNextSample(final int track) throws IOException {
-        if (readersChunks[track] == null) {
-            readersChunks[track] = readers[track].getNextChunk(false);
-            if (readersChunks[track] == null) {
-                return null; // EOF reached
+    private byte[] makeMoof(final int sequence, final int trackId, final Traf traf,
+                            final long decodeTime) {
+        final Trun trun = traf.trun;
+
+        // keep the default values, the offsets are relative to the moof
+        final int tfhdFlags = (traf.tfhd.bFlags & 0x38) | 0x020000;
+        final int trunFlags = trun.bFlags | 0x0001;
+
+        int tfhdSize = 16;
+        for (final int flag : new int[]{0x08, 0x10, 0x20}) {
+            if (Mp4DashReader.hasFlag(tfhdFlags, flag)) {
+                tfhdSize += 4;
             }
         }
 
-        final Mp4DashSample sample = readersChunks[track].getNextSample();
-        if (sample == null) {
-            readersChunks[track] = null;
-            return getNextSample(track);
-        } else {
-            return sample;
+        int trunSize = 20 + trun.bEntries.length;
+        if (Mp4DashReader.hasFlag(trunFlags, 0x0004)) {
+            trunSize += 4;
         }
-    }
 
+        final int trafSize = 8 + tfhdSize + 20 + trunSize;
+        final int moofSize = 8 + 16 + trafSize;
 
-    private int writeEntry64(final int offset, final long value) throws IOException {
-        outBackup();
+        final ByteBuffer buffer = ByteBuffer.allocate(moofSize);
+        buffer.putInt(moofSize).putInt(0x6D6F6F66); // moof
+        buffer.putInt(16).putInt(0x6D666864).putInt(0x00).putInt(sequence); // mfhd
+        buffer.putInt(trafSize).putInt(0x74726166); // traf
 
-        auxSeek(offset);
-        auxWrite(ByteBuffer.allocate(8).putLong(value).array());
+        buffer.putInt(tfhdSize).putInt(0x74666864).putInt(tfhdFlags).putInt(trackId); // tfhd
+        if (Mp4DashReader.hasFlag(tfhdFlags, 0x08)) {
+            buffer.putInt(traf.tfhd.defaultSampleDuration);
+        }
+        if (Mp4DashReader.hasFlag(tfhdFlags, 0x10)) {
+            buffer.putInt(traf.tfhd.defaultSampleSize);
+        }
+        if (Mp4DashReader.hasFlag(tfhdFlags, 0x20)) {
+            buffer.putInt(traf.tfhd.defaultSampleFlags);
+        }
 
-        return offset + 8;
+        buffer.putInt(20).putInt(0x74666474).putInt(0x01000000).putLong(decodeTime); // tfdt
+
+        buffer.putInt(trunSize).putInt(0x7472756E).putInt(trunFlags).putInt(trun.entryCount);
+        buffer.putInt(moofSize + 8); // data offset, the content of the following mdat
+        if (Mp4DashReader.hasFlag(trunFlags, 0x0004)) {
+            buffer.putInt(trun.bFirstSampleFlags);
+        }
+        buffer.put(trun.bEntries);
+
+        return buffer.array();
     }
 
-    private int writeEntryArray(final int offset, final int count, final int... values)
-            throws IOException {
-        outBackup();
+    /**
+     * Estimates the moov size using the first fragment of every track and the length of the
+     * sources. The sample count is overestimated by 12.5% to absorb bitrate changes.
+     *
+     * @param singleSampleBuffer samples per chunk of an audio-only output, {@code -1} otherwise
+     * @return the size reserved for the moov box, {@code 0} if it must go at the end
+     */
+    private int estimateMoovSize(final int singleSampleBuffer) throws IOException {
+        final TablesInfo[] tablesInfo = new TablesInfo[tracks.length];
+        long total = 0;
 
-        auxSeek(offset);
+        for (int i = 0; i < tracks.length; i++) {
+            tablesInfo[i] = new TablesInfo();
 
-        final int size = count * 4;
-        final ByteBuffer buffer = ByteBuffer.allocate(size);
+            if (readersChunks[i] == null) {
+                continue;
+            }
 
-        for (int i = 0; i < count; i++) {
-            buffer.putInt(values[i]);
+            final Traf traf = readersChunks[i].moof.traf;
+            final Trun trun = traf.trun;
+            final long available = Math.max(sourceTracks[i].available(), 0);
+            total += available;
+
+            int keyframes = 0;
+            for (int j = 0; j < trun.entryCount; j++) {
+                if (trun.getAbsoluteEntry(j, traf.tfhd).isKeyframe) {
+                    keyframes++;
+                }
+            }
+
+            long samples = trun.entryCount;
+            if (trun.chunkSize > 0) {
+                samples += (available * trun.entryCount) / trun.chunkSize;
+            }
+            samples += samples / 8;
+
+            if (samples > Integer.MAX_VALUE / 16) {
+                return 0; // too big, write the moov at the end
+            }
+
+            final int chunkSamples =
+                    singleSampleBuffer > 0 ? singleSampleBuffer : SAMPLES_PER_CHUNK;
+
+            tablesInfo[i].stsz = (int) samples;
+            tablesInfo[i].stsc = 3;
+            tablesInfo[i].stco = (int) (samples / chunkSamples) + 2;
+            if (keyframes < trun.entryCount) {
+                tablesInfo[i].stss =
+                        (int) ((samples * Math.max(keyframes, 1)) / trun.entryCount) + 1;
+            }
+            if (Mp4DashReader.hasFlag(trun.bFlags, 0x0800)) {
+                tablesInfo[i].ctts = (int) samples;
+            }
         }
 
-        auxWrite(buffer.array());
+        final long[] delays = new long[tracks.length];
+        Arrays.fill(delays, 1); // the empty edit can be required
 
-        return offset + size;
+        moovSimulation = true;
+        writeOffset = 0;
+        final int size = makeMoov(new int[tracks.length], delays, tablesInfo,
+                total > THRESHOLD_FOR_CO64);
+        moovSimulation = false;
+        writeOffset = 0;
+
+        return size;
     }
 
-    private void outBackup() {
-        if (auxBuffer == null && lastWriteOffset < 0) {
-            lastWriteOffset = writeOffset;
+    private void writeSampleTables(final TablesInfo tablesInfo, final SampleTables tables,
+                                   final boolean is64) throws IOException {
+        writeEntryArray(tablesInfo.stts, 2, tables.sampleCount, tables.defaultSampleDuration);
+        writeTable(tablesInfo.stsc, tables.stsc);
+
+        if (tablesInfo.sbgp > 0) {
+            writeEntryArray(tablesInfo.sbgp, 1, tables.sampleCount);
+        }
+        if (tablesInfo.ctts > 0) {
+            writeTable(tablesInfo.ctts, tables.ctts);
+        }
+        if (tablesInfo.stss > 0) {
+            writeTable(tablesInfo.stss, tables.stss);
         }
+        if (tablesInfo.stsz > 0) {
+            writeTable(tablesInfo.stsz, tables.stsz);
+        }
+
+        if (is64) {
+            writeTable(tablesInfo.stco, tables.stco);
+        } else {
+            auxSeek(tablesInfo.stco);
+            tables.stco.writeTo((buffer, count) -> {
+                // keep the low 32 bits of every offset
+                int length = 0;
+                for (int i = 4; i < count; i += 8) {
+                    System.arraycopy(buffer, i, buffer, length, 4);
+                    length += 4;
+                }
+                auxWrite(buffer, length);
+            });
+        }
+    }
+
+    private void writeTable(final int offset, final TableBuffer table) throws IOException {
+        auxSeek(offset);
+        table.writeTo(this::auxWrite);
+    }
+
+    private boolean fetchChunk(final int track, final SampleTables tables) throws IOException {
+        readersChunks[track] = readers[track].getNextChunk(false);
+        if (readersChunks[track] == null) {
+            return false; // EOF reached
+        }
+
+        if (tables != null) {
+            tables.addFragment(readersChunks[track].moof.traf);
+        }
+        return true;
     }
 
     /**
-     * Restore to the previous position before the first call to writeEntry64()
-     * or writeEntryArray() methods.
+     * Gets the next sample of the track, the data of the samples is not read. The consecutive
+     * samples of a fragment are copied at once with {@link #copySampleData(int)}.
+     *
+     * @param track  the index of the track
+     * @param tables the sample tables of the track, every fetched fragment is added
+     * @return the sample, or {@code null} once the source of the track ends
      */
-    private void outRestore() throws IOException {
-        if (lastWriteOffset > 0) {
-            outSeek(lastWriteOffset);
-            lastWriteOffset = -1;
+    private TrunEntry getNextSampleInfo(final int track, final SampleTables tables)
+            throws IOException {
+        while (true) {
+            if (readersChunks[track] == null && !fetchChunk(track, tables)) {
+                return null;
+            }
+
+            final TrunEntry info = readersChunks[track].getNextSampleInfo();
+            if (info != null) {
+                pendingSampleData += info.sampleSize;
+                return info;
+            }
+
+            copySampleData(track);
+            readersChunks[track] = null;
         }
     }
 
-    private void initChunkTables(final TablesInfo tables, final int firstCount,
-                                 final int successiveCount) {
-        // tables.stsz holds amount of samples of the track (total)
-        final int totalSamples = (tables.stsz - firstCount);
-        final float chunkAmount = totalSamples / (float) successiveCount;
-        final int remainChunkOffset = (int) Math.ceil(chunkAmount);
-        final boolean remain = remainChunkOffset != (int) chunkAmount;
-        int index = 0;
-
-        tables.stsc = 1;
-        if (firstCount != successiveCount) {
-            tables.stsc++;
+    private void copySampleData(final int track) throws IOException {
+        if (pendingSampleData < 1) {
+            return;
         }
-        if (remain) {
-            tables.stsc++;
+
+        final long copied = readersChunks[track].data.transferTo(pendingSampleData, outStream);
+        writeOffset += copied;
+
+        if (copied != pendingSampleData) {
+            throw new EOFException("EOF reached while reading a sample");
         }
+        pendingSampleData = 0;
+    }
 
-        // stsc_table_entry = [first_chunk, samples_per_chunk, sample_description_index]
-        tables.stscBEntries = new int[tables.stsc * 3];
-        tables.stco = remainChunkOffset + 1; // total entries in chunk offset box
 
-        tables.stscBEntries[index++] = 1;
-        tables.stscBEntries[index++] = firstCount;
-        tables.stscBEntries[index++] = 1;
+    private int writeEntryArray(final int offset, final int count, final int... values)
+            throws IOException {
+        auxSeek(offset);
 
-        if (firstCount != successiveCount) {
-            tables.stscBEntries[index++] = 2;
-            tables.stscBEntries[index++] = successiveCount;
-            tables.stscBEntries[index++] = 1;
-        }
+        final int size = count * 4;
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
 
-        if (remain) {
-            tables.stscBEntries[index++] = remainChunkOffset + 1;
-            tables.stscBEntries[index++] = totalSamples % successiveCount;
-            tables.stscBEntries[index] = 1;
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(values[i]);
         }
+
+        auxWrite(buffer.array());
+
+        return offset + size;
     }
 
     private void outWrite(final byte[] buffer) throws IOException {
@@ -581,12 +902,16 @@ public class Mp4FromDashWriter {
     }
 
     private void auxWrite(final byte[] buffer) throws IOException {
+        auxWrite(buffer, buffer.length);
+    }
+
+    private void auxWrite(final byte[] buffer, final int count) throws IOException {
         if (moovSimulation) {
-            writeOffset += buffer.length;
+            writeOffset += count;
         } else if (auxBuffer == null) {
-            outWrite(buffer, buffer.length);
+            outWrite(buffer, count);
         } else {
-            auxBuffer.put(buffer);
+            auxBuffer.put(buffer, 0, count);
         }
     }
 
@@ -594,7 +919,7 @@ public class Mp4FromDashWriter {
         if (moovSimulation) {
             writeOffset = offset;
         } else if (auxBuffer == null) {
-            outSeek(offset);
+            outSeek(auxBase + offset);
         } else {
             auxBuffer.position(offset);
         }
@@ -611,7 +936,7 @@ public class Mp4FromDashWriter {
     }
 
     private int auxOffset() {
-        return auxBuffer == null ? (int) writeOffset : auxBuffer.position();
+        return auxBuffer == null ? (int) (writeOffset - auxBase) : auxBuffer.position();
     }
 
     private int makeFtyp() throws IOException {
@@ -642,25 +967,6 @@ public class Mp4FromDashWriter {
         return size;
     }
 
-    private byte[] makeMdat(final long refSize, final boolean is64) {
-        long size = refSize;
-        if (is64) {
-            size += 16;
-        } else {
-            size += 8;
-        }
-
-        final ByteBuffer buffer = ByteBuffer.allocate(is64 ? 16 : 8)
-                .putInt(is64 ? 0x01 : (int) size)
-                .putInt(0x6D646174); // mdat
-
-        if (is64) {
-            buffer.putLong(size);
-        }
-
-        return buffer.array();
-    }
-
     private void makeMvhd(final long longestTrack) throws IOException {
         auxWrite(new byte[]{
                 0x00, 0x00, 0x00, 0x78, 0x6D, 0x76, 0x68, 0x64, 0x01, 0x00, 0x00, 0x00
@@ -689,8 +995,9 @@ public class Mp4FromDashWriter {
         );
     }
 
-    private int makeMoov(final int[] defaultMediaTime, final TablesInfo[] tablesInfo,
-                         final boolean is64) throws RuntimeException, IOException {
+    private int makeMoov(final int[] defaultMediaTime, final long[] delays,
+                         final TablesInfo[] tablesInfo, final boolean is64)
+            throws RuntimeException, IOException {
         final int start = auxOffset();
 
         auxWrite(new byte[]{
@@ -705,8 +1012,8 @@ public class Mp4FromDashWriter {
                     ((double) tracks[i].trak.tkhd.duration / tracks[i].trak.mdia.mdhdTimeScale)
                             * DEFAULT_TIMESCALE);
 
-            if (durations[i] > longestTrack) {
-                longestTrack = durations[i];
+            if (durations[i] + delays[i] > longestTrack) {
+                longestTrack = durations[i] + delays[i];
             }
         }
 
@@ -717,14 +1024,15 @@ public class Mp4FromDashWriter {
                 throw
                     new RuntimeException("bad track matrix length (expected 36) in track n°" + i);
             }
-            makeTrak(i, durations[i], defaultMediaTime[i], tablesInfo[i], is64);
+            makeTrak(i, durations[i], delays[i], defaultMediaTime[i], tablesInfo[i], is64);
         }
 
         return lengthFor(start);
     }
 
-    private void makeTrak(final int index, final long duration, final int defaultMediaTime,
-                          final TablesInfo tables, final boolean is64) throws IOException {
+    private void makeTrak(final int index, final long duration, final long delay,
+                          final int defaultMediaTime, final TablesInfo tables,
+                          final boolean is64) throws IOException {
         final int start = auxOffset();
 
         auxWrite(new byte[]{
@@ -739,7 +1047,7 @@ public class Mp4FromDashWriter {
         buffer.putLong(time);
         buffer.putInt(index + 1);
         buffer.position(24);
-        buffer.putLong(duration);
+        buffer.putLong(duration + delay);
         buffer.position(40);
         buffer.putShort(tracks[index].trak.tkhd.bLayer);
         buffer.putShort(tracks[index].trak.tkhd.bAlternateGroup);
@@ -753,11 +1061,23 @@ public class Mp4FromDashWriter {
                 .array()
         );
 
-        auxWrite(new byte[]{
-                0x00, 0x00, 0x00, 0x24, 0x65, 0x64, 0x74, 0x73, // edts header
-                0x00, 0x00, 0x00, 0x1C, 0x65, 0x6C, 0x73, 0x74,
-                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01 // elst header
-        });
+        final int edits = delay > 0 ? 2 : 1;
+        auxWrite(ByteBuffer.allocate(24)
+                .putInt(0x18 + (edits * 12)).putInt(0x65647473) // edts header
+                .putInt(0x10 + (edits * 12)).putInt(0x656C7374)
+                .putInt(0x00).putInt(edits) // elst header
+                .array()
+        );
+
+        if (delay > 0) {
+            // empty edit, the track starts after the delay
+            auxWrite(ByteBuffer.allocate(12)
+                    .putInt((int) delay)
+                    .putInt(-1)
+                    .putInt(0x00010000)
+                    .array()
+            );
+        }
 
         final int bMediaRate;
         final int mediaTime;
@@ -804,7 +1124,13 @@ public class Mp4FromDashWriter {
         // In audio tracks the following tables is not required: ssts ctts
         // And stsz can be empty if has a default sample size
         //
-        if (moovSimulation) {
+        if (tablesInfo == null) {
+            // fragmented, the samples are described in the moof boxes
+            make(0x73747473, -1, 2, 0); // stts
+            make(0x73747363, -1, 3, 0); // stsc
+            make(0x7374737A, 0, 1, 0); // stsz
+            make(0x7374636F, -1, 1, 0); // stco
+        } else if (moovSimulation) {
             make(0x73747473, -1, 2, 1); // stts
             if (tablesInfo.stss > 0) {
                 make(0x73747373, -1, 1, tablesInfo.stss);
@@ -829,7 +1155,7 @@ public class Mp4FromDashWriter {
                     tablesInfo.stco);
         }
 
-        if (isAudio) {
+        if (isAudio && tablesInfo != null) {
             auxWrite(makeSgpd());
             tablesInfo.sbgp = makeSbgp(); // during simulation the returned offset is ignored
         }
@@ -901,7 +1227,6 @@ public class Mp4FromDashWriter {
     static class TablesInfo {
         int stts;
         int stsc;
-        int[] stscBEntries;
         int ctts;
         int stsz;
         int stszDefault;
@@ -909,4 +1234,134 @@ public class Mp4FromDashWriter {
         int stco;
         int sbgp;
     }
+
+    /**
+     * Sample tables of a track, built while the samples are copied.
+     */
+    private static final class SampleTables implements Closeable {
+        final TableBuffer stsz;
+        final TableBuffer stss;
+        final TableBuffer ctts;
+        final TableBuffer stsc;
+        final TableBuffer stco;
+
+        long startTime = -1;
+        long duration = 0;
+        int defaultMediaTime = 0;
+        int defaultSampleDuration = 0;
+
+        int sampleCount = 0;
+        int sampleSize = 0;
+        // the stsz table is not required if all samples have the same size
+        boolean variableSize = false;
+        int keyframes = 0;
+        // the stss table is not required if all samples are keyframes
+        boolean syncTable = false;
+
+        int cttsCount = 0;
+        private int cttsRun = 0;
+        private int cttsLast = 0;
+
+        int stscCount = 0;
+        int chunkCount = 0;
+        private int chunkSamples = 0;
+
+        SampleTables(final File directory) {
+            stsz = new TableBuffer(directory, THRESHOLD_TABLE_MEMORY);
+            stss = new TableBuffer(directory, THRESHOLD_TABLE_MEMORY);
+            ctts = new TableBuffer(directory, THRESHOLD_TABLE_MEMORY);
+            stsc = new TableBuffer(directory, THRESHOLD_TABLE_MEMORY);
+            stco = new TableBuffer(directory, THRESHOLD_TABLE_MEMORY);
+        }
+
+        void addFragment(final Traf traf) {
+            if (startTime < 0) {
+                startTime = traf.tfdt;
+            }
+            if (defaultMediaTime < 1 && traf.tfhd.defaultSampleDuration > 0) {
+                defaultMediaTime = traf.tfhd.defaultSampleDuration;
+            }
+
+            duration += traf.trun.chunkDuration; // calculate track duration
+        }
+
+        void addSample(final TrunEntry info) throws IOException {
+            sampleCount++;
+
+            if (info.sampleDuration > defaultSampleDuration) {
+                defaultSampleDuration = info.sampleDuration;
+            }
+
+            if (variableSize) {
+                stsz.putInt(info.sampleSize);
+            } else if (sampleCount == 1) {
+                sampleSize = info.sampleSize;
+            } else if (info.sampleSize != sampleSize) {
+                variableSize = true;
+                for (int i = 1; i < sampleCount; i++) {
+                    stsz.putInt(sampleSize);
+                }
+                stsz.putInt(info.sampleSize);
+            }
+
+            if (!info.isKeyframe && !syncTable) {
+                syncTable = true;
+                for (int i = 1; i < sampleCount; i++) {
+                    stss.putInt(i); // all previous samples are keyframes
+                }
+            }
+            if (info.isKeyframe) {
+                keyframes++;
+                if (syncTable) {
+                    stss.putInt(sampleCount);
+                }
+            }
+
+            if (info.hasCompositionTimeOffset) {
+                if (cttsRun > 0 && info.sampleCompositionTimeOffset == cttsLast) {
+                    cttsRun++;
+                } else {
+                    flushCompositionRun();
+                    cttsRun = 1;
+                    cttsLast = info.sampleCompositionTimeOffset;
+                }
+            }
+        }
+
+        void addChunk(final long offset, final int samples) throws IOException {
+            chunkCount++;
+            stco.putLong(offset);
+
+            if (samples != chunkSamples) {
+                // stsc_table_entry = [first_chunk, samples_per_chunk, sample_description_index]
+                stsc.putInt(chunkCount);
+                stsc.putInt(samples);
+                stsc.putInt(1);
+                stscCount++;
+                chunkSamples = samples;
+            }
+        }
+
+        void finish() throws IOException {
+            flushCompositionRun();
+        }
+
+        private void flushCompositionRun() throws IOException {
+            if (cttsRun > 0) {
+                ctts.putInt(cttsRun);
+                ctts.putInt(cttsLast);
+                cttsCount++;
+                cttsRun = 0;
+            }
+        }
+
+        @Override
+        public void close() {
+            stsz.close();
+            stss.close();
+            ctts.close();
+            stsc.close();
+            stco.close();
+        }
+    }
 }
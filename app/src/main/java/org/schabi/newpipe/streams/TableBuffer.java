@@ -0,0 +1,132 @@
+package org.schabi.newpipe.streams;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * Append-only storage of the entries of a sample table, the entries are kept encoded (big
+ * endian) in blocks. Once the blocks in memory exceed the threshold they are written in a
+ * temporal file, the heap usage does not depend on the length of the track.
+ *
+ * @see Mp4FromDashWriter#buildSinglePass(org.schabi.newpipe.streams.io.SharpStream)
+ */
+final class TableBuffer implements Closeable {
+    // must be a multiple of the biggest entry size (8 bytes), entries never cross two blocks
+    private static final int BLOCK_SIZE = 64 * 1024; // 64 KiB
+
+    private final File directory;
+    private final int threshold;
+
+    private final ArrayList<byte[]> blocks = new ArrayList<>();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+
+    private File spillFile = null;
+    private RandomAccessFile spill = null;
+    private long spilled = 0;
+
+    /**
+     * @param directory where the temporal file is created, {@code null} for the default one
+     * @param threshold amount of bytes kept in memory before using the temporal file
+     */
+    TableBuffer(@Nullable final File directory, final int threshold) {
+        this.directory = directory;
+        this.threshold = Math.max(threshold, BLOCK_SIZE);
+    }
+
+    void putInt(final int value) throws IOException {
+        if (blockLength >= BLOCK_SIZE) {
+            blocks.add(block);
+            block = new byte[BLOCK_SIZE];
+            blockLength = 0;
+
+            if (blocks.size() * BLOCK_SIZE >= threshold) {
+                spill();
+            }
+        }
+
+        block[blockLength++] = (byte) (value >>> 24);
+        block[blockLength++] = (byte) (value >>> 16);
+        block[blockLength++] = (byte) (value >>> 8);
+        block[blockLength++] = (byte) value;
+    }
+
+    void putLong(final long value) throws IOException {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+
+    private void spill() throws IOException {
+        if (spill == null) {
+            spillFile = File.createTempFile("table", ".tmp", directory);
+            spill = new RandomAccessFile(spillFile, "rw");
+        }
+
+        for (final byte[] buffer : blocks) {
+            spill.write(buffer);
+        }
+
+        spilled += (long) blocks.size() * BLOCK_SIZE;
+        blocks.clear();
+    }
+
+    /**
+     * Writes all entries in order, every buffer given to the sink holds whole entries. The sink
+     * can modify the buffers, the entries are no longer valid after this call.
+     *
+     * @param sink where the entries are written
+     * @throws IOException if the temporal file can not be read or the sink fails
+     */
+    void writeTo(final Sink sink) throws IOException {
+        if (spill != null) {
+            final byte[] buffer = new byte[BLOCK_SIZE];
+            spill.seek(0);
+
+            long remaining = spilled;
+            while (remaining > 0) {
+                final int amount = (int) Math.min(remaining, BLOCK_SIZE);
+                spill.readFully(buffer, 0, amount);
+                sink.write(buffer, amount);
+                remaining -= amount;
+            }
+        }
+
+        for (final byte[] buffer : blocks) {
+            sink.write(buffer, BLOCK_SIZE);
+        }
+
+        if (blockLength > 0) {
+            sink.write(block, blockLength);
+        }
+    }
+
+    @Override
+    public void close() {
+        blocks.clear();
+        block = null;
+
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (final IOException e) {
+                // nothing to do
+            }
+            spill = null;
+        }
+
+        if (spillFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+
+    interface Sink {
+        void write(byte[] buffer, int count) throws IOException;
+    }
+}
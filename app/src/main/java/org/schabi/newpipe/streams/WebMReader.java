@@ -4,7 +4,6 @@ import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
@@ -57,7 +56,7 @@ public class WebMReader {
     private boolean firstSegment;
 
     public WebMReader(final SharpStream source) {
-        this.stream = new DataReader(source);
+        this.stream = DataReader.from(source);
     }
 
     public void parse() throws IOException {
@@ -454,7 +453,7 @@ public class WebMReader {
     }
 
     public static class SimpleBlock {
-        public InputStream data;
+        public DataReader.View data;
         public boolean createdFromBlock;
 
         SimpleBlock(final Element ref) {
@@ -10,10 +10,10 @@ import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * @author kapodamy
@@ -26,6 +26,7 @@ public class WebMWriter implements Closeable {
     private static final byte CLUSTER_HEADER_SIZE = 8;
     private static final int CUE_RESERVE_SIZE = 65535;
     private static final byte MINIMUM_EBML_VOID_SIZE = 4;
+    private static final int EBML_BUFFER_SIZE = 1024;
 
     private WebMReader.WebMTrack[] infoTracks;
     private SharpStream[] sourceTracks;
@@ -40,18 +41,27 @@ public class WebMWriter implements Closeable {
     private Segment[] readersSegment;
     private Cluster[] readersCluster;
 
-    private ArrayList<ClusterInfo> clustersOffsetsSizes;
+    // offset and size of every cluster, the size is written at the end
+    private long[] clustersOffsets;
+    private int[] clustersSizes;
+    private int clustersCount = 0;
 
     private byte[] outBuffer;
     private ByteBuffer outByteBuffer;
 
+    // the elements are encoded here, reused by every block and cluster
+    private EbmlBuffer ebml;
+    private final Block block = new Block();
+
     public WebMWriter(final SharpStream... source) {
         sourceTracks = source;
         readers = new WebMReader[sourceTracks.length];
         infoTracks = new WebMTrack[sourceTracks.length];
         outBuffer = new byte[BUFFER_SIZE];
         outByteBuffer = ByteBuffer.wrap(outBuffer);
-        clustersOffsetsSizes = new ArrayList<>(256);
+        ebml = new EbmlBuffer(EBML_BUFFER_SIZE);
+        clustersOffsets = new long[256];
+        clustersSizes = new int[256];
     }
 
     public WebMTrack[] getTracksFromSource(final int sourceIndex) throws IllegalStateException {
@@ -118,7 +128,9 @@ public class WebMWriter implements Closeable {
         readersCluster = null;
         outBuffer = null;
         outByteBuffer = null;
-        clustersOffsetsSizes = null;
+        ebml = null;
+        clustersOffsets = null;
+        clustersSizes = null;
     }
 
     @SuppressWarnings("MethodLength")
@@ -134,18 +146,18 @@ public class WebMWriter implements Closeable {
         final long offsetClusterSet = written + 58;
         final long offsetCuesSet = written + 75;
 
-        final ArrayList<byte[]> listBuffer = new ArrayList<>(4);
+        ebml.reset();
 
         /* segment */
-        listBuffer.add(new byte[]{
+        ebml.put(new byte[]{
                 0x18, 0x53, (byte) 0x80, 0x67, 0x01,
                 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00// segment content size
         });
 
-        final long segmentOffset = written + listBuffer.get(0).length;
+        final long segmentOffset = written + ebml.length();
 
         /* seek head */
-        listBuffer.add(new byte[]{
+        ebml.put(new byte[]{
                 0x11, 0x4d, (byte) 0x9b, 0x74, (byte) 0xbe,
                 0x4d, (byte) 0xbb, (byte) 0x8b,
                 0x53, (byte) 0xab, (byte) 0x84, 0x15, 0x49, (byte) 0xa9, 0x66, 0x53,
@@ -163,19 +175,19 @@ public class WebMWriter implements Closeable {
         });
 
         /* info */
-        listBuffer.add(new byte[]{
+        ebml.put(new byte[]{
                 0x15, 0x49, (byte) 0xa9, 0x66, (byte) 0x8e, 0x2a, (byte) 0xd7, (byte) 0xb1
         });
         // the segment duration MUST NOT exceed 4 bytes
-        listBuffer.add(encode(DEFAULT_TIMECODE_SCALE, true));
-        listBuffer.add(new byte[]{0x44, (byte) 0x89, (byte) 0x84,
+        ebml.putUnsigned(DEFAULT_TIMECODE_SCALE);
+        ebml.put(new byte[]{0x44, (byte) 0x89, (byte) 0x84,
                 0x00, 0x00, 0x00, 0x00, // info.duration
         });
 
         /* tracks */
-        listBuffer.addAll(makeTracks());
+        makeTracks();
 
-        dump(listBuffer, out);
+        dump(ebml, out);
 
         // reserve space for Cues element
         final long cueOffset = written;
@@ -305,14 +317,14 @@ public class WebMWriter implements Closeable {
         dump(new byte[]{0x1c, 0x53, (byte) 0xbb, 0x6b, 0x20, 0x00, 0x00}, out); // header size is 7
 
         for (final KeyFrame keyFrame : keyFrames) {
-            final int size = makeCuePoint(cuesForTrackId, keyFrame, outBuffer);
+            final int size = makeCuePoint(cuesForTrackId, keyFrame);
 
             if ((cueSize + size + 7 + MINIMUM_EBML_VOID_SIZE) > CUE_RESERVE_SIZE) {
                 break; // no space left
             }
 
             cueSize += size;
-            dump(outBuffer, size, out);
+            dump(ebml, out);
         }
 
         makeEbmlVoid(out, CUE_RESERVE_SIZE - cueSize - 7, false);
@@ -324,8 +336,8 @@ public class WebMWriter implements Closeable {
         /* seek head, seek for cues element */
         writeInt(out, offsetCuesSet, (int) (cueOffset - segmentOffset));
 
-        for (final ClusterInfo cluster : clustersOffsetsSizes) {
-            writeInt(out, cluster.offset, cluster.size | 0x10000000);
+        for (int i = 0; i < clustersCount; i++) {
+            writeInt(out, clustersOffsets[i], clustersSizes[i] | 0x10000000);
         }
     }
 
@@ -348,17 +360,18 @@ public class WebMWriter implements Closeable {
         final SimpleBlock res = readersCluster[internalTrackId].getNextSimpleBlock();
         if (res == null) {
             readersCluster[internalTrackId] = null;
-            return new Block(); // fake block to indicate the end of the cluster
+            block.data = null;
+            return block; // fake block to indicate the end of the cluster
         }
 
-        final Block bloq = new Block();
-        bloq.data = res.data;
-        bloq.dataSize = res.dataSize;
-        bloq.trackNumber = internalTrackId;
-        bloq.flags = res.flags;
-        bloq.absoluteTimecode = res.absoluteTimeCodeNs / DEFAULT_TIMECODE_SCALE;
+        // the block is reused, is only valid until the next call
+        block.data = res.data;
+        block.dataSize = res.dataSize;
+        block.trackNumber = internalTrackId;
+        block.flags = res.flags;
+        block.absoluteTimecode = res.absoluteTimeCodeNs / DEFAULT_TIMECODE_SCALE;
 
-        return bloq;
+        return block;
     }
 
     private void seekTo(final SharpStream stream, final long offset) throws IOException {
@@ -391,56 +404,51 @@ public class WebMWriter implements Closeable {
             throw new IndexOutOfBoundsException("SimpleBlock timecode overflow.");
         }
 
-        final ArrayList<byte[]> listBuffer = new ArrayList<>(5);
-        listBuffer.add(new byte[]{(byte) 0xa3});
-        listBuffer.add(null); // block size
-        listBuffer.add(encode(bloq.trackNumber + 1, false));
-        listBuffer.add(ByteBuffer.allocate(DataReader.SHORT_SIZE).putShort((short) relativeTimeCode)
-                .array());
-        listBuffer.add(new byte[]{bloq.flags});
+        final int trackNumber = bloq.trackNumber + 1;
+        final int blockSize = EbmlBuffer.sizeOf(trackNumber) + DataReader.SHORT_SIZE + 1
+                + bloq.dataSize;
 
-        int blockSize = bloq.dataSize;
-        for (int i = 2; i < listBuffer.size(); i++) {
-            blockSize += listBuffer.get(i).length;
-        }
-        listBuffer.set(1, encode(blockSize, false));
+        ebml.reset();
+        ebml.put(0xa3)
+                .putSize(blockSize)
+                .putSize(trackNumber)
+                .putShort((int) relativeTimeCode)
+                .put(bloq.flags);
 
-        dump(listBuffer, stream);
+        dump(ebml, stream);
 
-        int read;
-        while ((read = bloq.data.read(outBuffer)) > 0) {
-            dump(outBuffer, read, stream);
-        }
+        // without heap copies if both files have a channel
+        written += bloq.data.transferTo(bloq.dataSize, stream);
     }
 
     private long makeCluster(final SharpStream stream, final long timecode, final long offsetStart,
                              final boolean create) throws IOException {
-        ClusterInfo cluster;
         long offset = offsetStart;
 
         if (offset > 0) {
             // save the size of the previous cluster (maximum 256 MiB)
-            cluster = clustersOffsetsSizes.get(clustersOffsetsSizes.size() - 1);
-            cluster.size = (int) (written - offset - CLUSTER_HEADER_SIZE);
+            clustersSizes[clustersCount - 1] = (int) (written - offset - CLUSTER_HEADER_SIZE);
         }
 
         offset = written;
 
         if (create) {
+            if (clustersCount >= clustersOffsets.length) {
+                clustersOffsets = Arrays.copyOf(clustersOffsets, clustersCount * 2);
+                clustersSizes = Arrays.copyOf(clustersSizes, clustersCount * 2);
+            }
+
             /* cluster */
-            dump(new byte[]{0x1f, 0x43, (byte) 0xb6, 0x75}, stream);
+            ebml.reset();
+            ebml.putId(0x1f43b675);
 
-            cluster = new ClusterInfo();
-            cluster.offset = written;
-            clustersOffsetsSizes.add(cluster);
+            clustersOffsets[clustersCount++] = written + ebml.length();
 
-            dump(new byte[]{
-                    0x10, 0x00, 0x00, 0x00,
-                    /* timestamp */
-                    (byte) 0xe7
-            }, stream);
+            ebml.putInt(0x10000000); // cluster size, written later
+            /* timestamp */
+            ebml.put(0xe7).putUnsigned(timecode);
 
-            dump(encode(timecode, true), stream);
+            dump(ebml, stream);
         }
 
         return offset;
@@ -458,132 +466,105 @@ public class WebMWriter implements Closeable {
         }, stream);
     }
 
-    private ArrayList<byte[]> makeTracks() {
-        final ArrayList<byte[]> buffer = new ArrayList<>(1);
-        buffer.add(new byte[]{0x16, 0x54, (byte) 0xae, 0x6b});
-        buffer.add(null);
+    private void makeTracks() {
+        final int tracks = ebml.start(0x1654ae6b);
 
         for (int i = 0; i < infoTracks.length; i++) {
-            buffer.addAll(makeTrackEntry(i, infoTracks[i]));
+            makeTrackEntry(i, infoTracks[i]);
         }
 
-        return lengthFor(buffer);
+        ebml.end(tracks);
     }
 
-    private ArrayList<byte[]> makeTrackEntry(final int internalTrackId, final WebMTrack track) {
-        final byte[] id = encode(internalTrackId + 1, true);
-        final ArrayList<byte[]> buffer = new ArrayList<>(12);
+    private void makeTrackEntry(final int internalTrackId, final WebMTrack track) {
+        final int id = internalTrackId + 1;
 
         /* track */
-        buffer.add(new byte[]{(byte) 0xae});
-        buffer.add(null);
+        final int entry = ebml.start(0xae);
 
         /* track number */
-        buffer.add(new byte[]{(byte) 0xd7});
-        buffer.add(id);
+        ebml.putId(0xd7).putUnsigned(id);
 
         /* track uid */
-        buffer.add(new byte[]{0x73, (byte) 0xc5});
-        buffer.add(id);
+        ebml.putId(0x73c5).putUnsigned(id);
 
         /* flag lacing */
-        buffer.add(new byte[]{(byte) 0x9c, (byte) 0x81, 0x00});
+        ebml.put(new byte[]{(byte) 0x9c, (byte) 0x81, 0x00});
 
         /* lang */
-        buffer.add(new byte[]{0x22, (byte) 0xb5, (byte) 0x9c, (byte) 0x83, 0x75, 0x6e, 0x64});
+        ebml.put(new byte[]{0x22, (byte) 0xb5, (byte) 0x9c, (byte) 0x83, 0x75, 0x6e, 0x64});
 
         /* codec id */
-        buffer.add(new byte[]{(byte) 0x86});
-        buffer.addAll(encode(track.codecId));
+        final byte[] codecId = track.codecId.getBytes(StandardCharsets.UTF_8);
+        ebml.putId(0x86).putSize(codecId.length).put(codecId);
 
         /* codec delay*/
         if (track.codecDelay >= 0) {
-            buffer.add(new byte[]{0x56, (byte) 0xAA});
-            buffer.add(encode(track.codecDelay, true));
+            ebml.putId(0x56aa).putUnsigned(track.codecDelay);
         }
 
         /* codec seek pre-roll*/
         if (track.seekPreRoll >= 0) {
-            buffer.add(new byte[]{0x56, (byte) 0xBB});
-            buffer.add(encode(track.seekPreRoll, true));
+            ebml.putId(0x56bb).putUnsigned(track.seekPreRoll);
         }
 
         /* type */
-        buffer.add(new byte[]{(byte) 0x83});
-        buffer.add(encode(track.trackType, true));
+        ebml.putId(0x83).putUnsigned(track.trackType);
 
         /* default duration */
         if (track.defaultDuration >= 0) {
-            buffer.add(new byte[]{0x23, (byte) 0xe3, (byte) 0x83});
-            buffer.add(encode(track.defaultDuration, true));
+            ebml.putId(0x23e383).putUnsigned(track.defaultDuration);
         }
 
         /* audio/video */
         if ((track.trackType == 1 || track.trackType == 2) && valid(track.bMetadata)) {
-            buffer.add(new byte[]{(byte) (track.trackType == 1 ? 0xe0 : 0xe1)});
-            buffer.add(encode(track.bMetadata.length, false));
-            buffer.add(track.bMetadata);
+            ebml.putId(track.trackType == 1 ? 0xe0 : 0xe1)
+                    .putSize(track.bMetadata.length)
+                    .put(track.bMetadata);
         }
 
         /* codec private*/
         if (valid(track.codecPrivate)) {
-            buffer.add(new byte[]{0x63, (byte) 0xa2});
-            buffer.add(encode(track.codecPrivate.length, false));
-            buffer.add(track.codecPrivate);
+            ebml.putId(0x63a2).putSize(track.codecPrivate.length).put(track.codecPrivate);
         }
 
-        return lengthFor(buffer);
+        ebml.end(entry);
     }
 
-    private int makeCuePoint(final int internalTrackId, final KeyFrame keyFrame,
-                             final byte[] buffer) {
-        final ArrayList<byte[]> cue = new ArrayList<>(5);
+    /**
+     * Encodes the cue point in the EBML buffer.
+     *
+     * @param internalTrackId the track number written in the cue
+     * @param keyFrame        the key frame the cue points to
+     * @return the size of the cue point
+     */
+    private int makeCuePoint(final int internalTrackId, final KeyFrame keyFrame) {
+        ebml.reset();
 
         /* CuePoint */
-        cue.add(new byte[]{(byte) 0xbb});
-        cue.add(null);
+        final int cuePoint = ebml.start(0xbb);
 
         /* CueTime */
-        cue.add(new byte[]{(byte) 0xb3});
-        cue.add(encode(keyFrame.duration, true));
-
-        /* CueTrackPosition */
-        cue.addAll(makeCueTrackPosition(internalTrackId, keyFrame));
-
-        int size = 0;
-        lengthFor(cue);
-
-        for (final byte[] buff : cue) {
-            System.arraycopy(buff, 0, buffer, size, buff.length);
-            size += buff.length;
-        }
-
-        return size;
-    }
-
-    private ArrayList<byte[]> makeCueTrackPosition(final int internalTrackId,
-                                                   final KeyFrame keyFrame) {
-        final ArrayList<byte[]> buffer = new ArrayList<>(8);
+        ebml.putId(0xb3).putUnsigned(keyFrame.duration);
 
         /* CueTrackPositions */
-        buffer.add(new byte[]{(byte) 0xb7});
-        buffer.add(null);
+        final int positions = ebml.start(0xb7);
 
         /* CueTrack */
-        buffer.add(new byte[]{(byte) 0xf7});
-        buffer.add(encode(internalTrackId + 1, true));
+        ebml.putId(0xf7).putUnsigned(internalTrackId + 1);
 
         /* CueClusterPosition */
-        buffer.add(new byte[]{(byte) 0xf1});
-        buffer.add(encode(keyFrame.clusterPosition, true));
+        ebml.putId(0xf1).putUnsigned(keyFrame.clusterPosition);
 
         /* CueRelativePosition */
         if (keyFrame.relativePosition > 0) {
-            buffer.add(new byte[]{(byte) 0xf0});
-            buffer.add(encode(keyFrame.relativePosition, true));
+            ebml.putId(0xf0).putUnsigned(keyFrame.relativePosition);
         }
 
-        return lengthFor(buffer);
+        ebml.end(positions);
+        ebml.end(cuePoint);
+
+        return ebml.length();
     }
 
     private void makeEbmlVoid(final SharpStream out, final int amount, final boolean wipe)
@@ -616,68 +597,9 @@ public class WebMWriter implements Closeable {
         written += count;
     }
 
-    private void dump(final ArrayList<byte[]> buffers, final SharpStream stream)
-            throws IOException {
-        for (final byte[] buffer : buffers) {
-            stream.write(buffer);
-            written += buffer.length;
-        }
-    }
-
-    private ArrayList<byte[]> lengthFor(final ArrayList<byte[]> buffer) {
-        long size = 0;
-        for (int i = 2; i < buffer.size(); i++) {
-            size += buffer.get(i).length;
-        }
-        buffer.set(1, encode(size, false));
-        return buffer;
-    }
-
-    private byte[] encode(final long number, final boolean withLength) {
-        int length = -1;
-        for (int i = 1; i <= 7; i++) {
-            if (number < Math.pow(2, 7 * i)) {
-                length = i;
-                break;
-            }
-        }
-
-        if (length < 1) {
-            throw new ArithmeticException("Can't encode a number of bigger than 7 bytes");
-        }
-
-        if (number == (Math.pow(2, 7 * length)) - 1) {
-            length++;
-        }
-
-        final int offset = withLength ? 1 : 0;
-        final byte[] buffer = new byte[offset + length];
-        final long marker = Math.floorDiv(length - 1, 8);
-
-        int shift = 0;
-        for (int i = length - 1; i >= 0; i--, shift += 8) {
-            long b = number >>> shift;
-            if (!withLength && i == marker) {
-                b = b | (0x80 >>> (length - 1));
-            }
-            buffer[offset + i] = (byte) b;
-        }
-
-        if (withLength) {
-            buffer[0] = (byte) (0x80 | length);
-        }
-
-        return buffer;
-    }
-
-    private ArrayList<byte[]> encode(final String value) {
-        final byte[] str = value.getBytes(StandardCharsets.UTF_8); // or use "utf-8"
-
-        final ArrayList<byte[]> buffer = new ArrayList<>(2);
-        buffer.add(encode(str.length, false));
-        buffer.add(str);
-
-        return buffer;
+    private void dump(final EbmlBuffer buffer, final SharpStream stream) throws IOException {
+        buffer.writeTo(stream);
+        written += buffer.length();
     }
 
     private boolean valid(final byte[] buffer) {
@@ -736,7 +658,7 @@ public class WebMWriter implements Closeable {
     }
 
     static class Block {
-        InputStream data;
+        DataReader.View data;
         int trackNumber;
         byte flags;
         int dataSize;
@@ -753,9 +675,4 @@ public class WebMWriter implements Closeable {
                     isKeyframe(), absoluteTimecode);
         }
     }
-
-    static class ClusterInfo {
-        long offset;
-        int size;
-    }
 }
@@ -1,8 +1,13 @@
 package org.schabi.newpipe.streams.io;
 
+import androidx.annotation.Nullable;
+
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
 
 /**
  * Based on C#'s Stream class. SharpStream is a wrapper around the 2 different APIs for SAF
@@ -60,6 +65,18 @@ public abstract class SharpStream implements Closeable, Flushable {
         throw new IOException("Not implemented");
     }
 
+    /**
+     * Sets the length of the stream reserving the disk space, unlike {@link #setLength(long)}
+     * which can leave a sparse file. Writes done later in the reserved region can not fail due
+     * to lack of free space. Streams which can not reserve the space only set the length.
+     *
+     * @param length the new length
+     * @throws IOException if there is not enough free space or the stream can not be resized
+     */
+    public void preallocate(final long length) throws IOException {
+        setLength(length);
+    }
+
     public void seek(final long offset) throws IOException {
         throw new IOException("Not implemented");
     }
@@ -67,4 +84,96 @@ public abstract class SharpStream implements Closeable, Flushable {
     public long length() throws IOException {
         throw new UnsupportedOperationException("Unsupported operation");
     }
+
+    /**
+     * Get the channel of the underlying file, if any. Positional reads and writes done through
+     * the channel do not change the stream position and are safe to use from multiple threads.
+     *
+     * @return the {@link FileChannel} or {@code null} if this stream is not backed by a file
+     */
+    @Nullable
+    public FileChannel getChannel() {
+        return null;
+    }
+
+    /**
+     * Get the position in the channel returned by {@link #getChannel()} where the next byte is
+     * read or written.
+     *
+     * @return the position or {@code -1} if this stream is not backed by a file
+     * @throws IOException if an I/O error occurs
+     */
+    public long getChannelPosition() throws IOException {
+        return -1;
+    }
+
+    /**
+     * Waits until the given amount of bytes, starting at the current position, can be read. The
+     * data of a file being written by someone else is read from the channel after calling this.
+     *
+     * @param amount the amount of bytes
+     * @throws IOException if the data will not be available
+     */
+    public void waitFor(final long amount) throws IOException {
+        // STUB
+    }
+
+    /**
+     * Copies data from this stream into the target using the channels of both files, the data
+     * does not pass through the heap. The position of both streams is advanced.
+     *
+     * @param count  the maximum amount of bytes to copy
+     * @param target where the data is written
+     * @return the amount of bytes copied, zero if any of the streams has no channel
+     * @throws IOException if an I/O error occurs
+     */
+    public long transferTo(final long count, final SharpStream target) throws IOException {
+        final FileChannel channel = getChannel();
+        final long position = getChannelPosition();
+
+        if (channel == null || position < 0 || !canRead()) {
+            return 0;
+        }
+
+        final long transferred = target.transferFrom(channel, position, count);
+        if (transferred > 0) {
+            skip(transferred);
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Writes data read from the given channel at the current position of this stream. The
+     * position of the source channel is not changed.
+     *
+     * @param source   the channel to read from
+     * @param position where the data starts in the source channel
+     * @param count    the maximum amount of bytes to copy
+     * @return the amount of bytes written, zero if this stream has no channel or any of the
+     * channels can not be used in that direction
+     * @throws IOException if an I/O error occurs
+     * @see #transferTo(long, SharpStream)
+     */
+    public long transferFrom(final FileChannel source, final long position, final long count)
+            throws IOException {
+        final FileChannel channel = getChannel();
+        final long offset = getChannelPosition();
+
+        if (channel == null || offset < 0 || !canWrite()) {
+            return 0;
+        }
+
+        // the data is written at the channel position, which is the position of the stream
+        final long transferred;
+        try {
+            transferred = source.transferTo(position, count, channel);
+        } catch (final NonReadableChannelException | NonWritableChannelException e) {
+            // a channel of a SAF stream is write-only, the caller copies through the heap
+            return 0;
+        }
+        seek(offset + transferred);
+
+        return transferred;
+    }
 }
@@ -179,6 +179,32 @@ public class StoredFileHelper implements Serializable {
         return instance;
     }
 
+    /**
+     * Gets the fields kept when this instance is serialized, without querying the storage
+     * provider. The instance can be created again with {@link #fromSerializedFields(String[])}.
+     *
+     * @return the source, the source tree, the tag, the name and the mime type
+     */
+    public String[] getSerializedFields() {
+        return new String[]{source, sourceTree, tag, srcName, srcType};
+    }
+
+    /**
+     * Creates an instance from the fields returned by {@link #getSerializedFields()}, like a
+     * deserialized instance it must be passed to {@link #deserialize(StoredFileHelper, Context)}
+     * before being used.
+     *
+     * @param fields the serialized fields
+     * @return the new instance
+     */
+    public static StoredFileHelper fromSerializedFields(@NonNull final String[] fields) {
+        final StoredFileHelper storage = new StoredFileHelper(null, fields[3], null, fields[2]);
+        storage.source = fields[0];
+        storage.sourceTree = fields[1];
+        storage.srcType = fields[4];
+        return storage;
+    }
+
     public SharpStream getStream() throws IOException {
         assertValid();
 
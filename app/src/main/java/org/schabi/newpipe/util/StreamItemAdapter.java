@@ -21,6 +21,7 @@ import org.schabi.newpipe.R;
 import org.schabi.newpipe.extractor.MediaFormat;
 import org.schabi.newpipe.extractor.downloader.Response;
 import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.DeliveryMethod;
 import org.schabi.newpipe.extractor.stream.Stream;
 import org.schabi.newpipe.extractor.stream.SubtitlesStream;
 import org.schabi.newpipe.extractor.stream.VideoStream;
@@ -259,7 +260,10 @@ public class StreamItemAdapter<T extends Stream, U extends Stream> extends BaseA
             final Callable<Boolean> fetchAndSet = () -> {
                 boolean hasChanged = false;
                 for (final X stream : streamsWrapper.getStreamsList()) {
-                    final boolean changeSize = streamsWrapper.getSizeInBytes(stream) <= SIZE_UNSET;
+                    // the length of a manifest is not the size of the stream
+                    final boolean changeSize =
+                            stream.getDeliveryMethod() == DeliveryMethod.PROGRESSIVE_HTTP
+                                    && streamsWrapper.getSizeInBytes(stream) <= SIZE_UNSET;
                     final boolean changeFormat = stream.getFormat() == null;
                     if (!changeSize && !changeFormat) {
                         continue;
@@ -0,0 +1,118 @@
+package us.shandian.giga.get;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket shared by all download threads of all missions. Every thread asks for
+ * permission before reading from the socket and gives back whatever was not read. The rate
+ * can be changed at any time, the waiting threads pick the new rate immediately.
+ */
+public class BandwidthLimiter {
+    private static final int MIN_CHUNK = 1024;// 1 KiB
+    private static final int MIN_CAPACITY = 16 * 1024;// 16 KiB
+
+    private static final BandwidthLimiter INSTANCE = new BandwidthLimiter();
+
+    /**
+     * bytes per second, zero or less means no limit
+     */
+    private volatile long rate;
+
+    private long tokens;
+    private long lastRefill;
+
+    public static BandwidthLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Changes the maximum download speed
+     *
+     * @param bytesPerSecond the new limit, zero for no limit
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond == rate) return;
+
+        rate = bytesPerSecond;
+        tokens = 0;
+        lastRefill = System.nanoTime();
+
+        // wake up the waiting threads, so they use the new rate
+        notifyAll();
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Waits until some bytes can be read
+     *
+     * @param amount the amount of bytes the caller wants to read
+     * @return the amount of bytes allowed to read, between 1 and {@code amount}. The bytes not
+     * read must be returned with {@link #release(int)}
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    int acquire(int amount) throws InterruptedIOException {
+        if (rate <= 0) return amount;
+
+        synchronized (this) {
+            while (true) {
+                long limit = rate;
+                if (limit <= 0) return amount;
+
+                long capacity = Math.max(limit / 4, MIN_CAPACITY);
+                long chunk = Math.min(amount, Math.min(Math.max(limit / 20, MIN_CHUNK), capacity));
+
+                refill(limit, capacity);
+
+                if (tokens >= chunk) {
+                    int granted = (int) Math.min(amount, tokens);
+                    tokens -= granted;
+                    return granted;
+                }
+
+                long millis = (chunk - tokens) * 1000L / limit;
+
+                try {
+                    wait(Math.max(millis, 1));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for bandwidth");
+                }
+            }
+        }
+    }
+
+    private void refill(long limit, long capacity) {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefill;
+
+        if (elapsed >= 1000000000L) {
+            // idle for a long time, also avoids overflows
+            tokens = capacity;
+            lastRefill = now;
+            return;
+        }
+
+        long added = elapsed * limit / 1000000000L;
+        if (added < 1) return;
+
+        // only consume the time used to generate the tokens, the remainder is kept for the next call
+        lastRefill += added * 1000000000L / limit;
+        tokens = Math.min(capacity, tokens + added);
+    }
+
+    /**
+     * Gives back the bytes allowed by {@link #acquire(int)} but not read
+     *
+     * @param unused amount of bytes not read
+     */
+    void release(int unused) {
+        if (unused < 1 || rate <= 0) return;
+
+        synchronized (this) {
+            tokens += unused;
+            notifyAll();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package us.shandian.giga.get;
 
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -7,10 +9,15 @@ import androidx.annotation.NonNull;
 
 import org.schabi.newpipe.streams.io.SharpStream;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.net.HttpURLConnection;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import us.shandian.giga.util.Utility;
 
@@ -24,7 +31,7 @@ public class DownloadInitializer extends Thread {
     private static final int RESERVE_SPACE_MAXIMUM = 150 * 1024 * 1024;// 150 MiB
 
     private final DownloadMission mMission;
-    private HttpURLConnection mConn;
+    private HttpConnection mConn;
 
     DownloadInitializer(@NonNull DownloadMission mission) {
         mMission = mission;
@@ -33,7 +40,7 @@ public class DownloadInitializer extends Thread {
 
     private void dispose() {
         try {
-            mConn.getInputStream().close();
+            mConn.disconnect();
         } catch (Exception e) {
             // nothing to do
         }
@@ -52,6 +59,9 @@ public class DownloadInitializer extends Thread {
                     // calculate the whole size of the mission
                     long finalLength = 0;
                     long lowestSize = Long.MAX_VALUE;
+                    long[] lengths = new long[mMission.urls.length];
+                    boolean[] manifests = new boolean[mMission.urls.length];
+                    boolean segmented = false;
 
                     for (int i = 0; i < mMission.urls.length && mMission.running; i++) {
                         mConn = mMission.openConnection(mMission.urls[i], true, 0, 0);
@@ -60,6 +70,9 @@ public class DownloadInitializer extends Thread {
 
                         if (Thread.interrupted()) return;
                         long length = Utility.getTotalContentLength(mConn);
+                        lengths[i] = length;
+                        manifests[i] = SegmentManifest.isManifest(mMission.urls[i], mConn.getHeaderField("Content-Type"));
+                        segmented |= manifests[i];
 
                         if (i == 0) {
                             httpCode = mConn.getResponseCode();
@@ -70,18 +83,33 @@ public class DownloadInitializer extends Thread {
                         if (length < lowestSize) lowestSize = length;
                     }
 
+                    if (!mMission.running || Thread.interrupted()) return;
+
+                    if (mMission.clip != null) {
+                        if (segmented)
+                            throw new SegmentManifest.UnsupportedManifestException("clips of manifests");
+                        if (!initClip()) return;
+
+                        mMission.running = false;
+                        break;
+                    }
+
+                    if (segmented) {
+                        if (!initSegmented(manifests)) return;
+
+                        mMission.running = false;
+                        break;
+                    }
+
                     mMission.nearLength = finalLength;
+                    reserveSpace(mMission.offsets, lowestSize);
 
-                    // reserve space at the start of the file
-                    if (mMission.psAlgorithm != null && mMission.psAlgorithm.reserveSpace) {
-                        if (lowestSize < 1) {
-                            // the length is unknown use the default size
-                            mMission.offsets[0] = RESERVE_SPACE_DEFAULT;
-                        } else {
-                            // use the smallest resource size to download, otherwise, use the maximum
-                            mMission.offsets[0] = lowestSize < RESERVE_SPACE_MAXIMUM ? lowestSize : RESERVE_SPACE_MAXIMUM;
-                        }
+                    if (mMission.urls.length > 1 && mMission.threadCount > 1 && httpCode != 204 && initParallel(lengths)) {
+                        mMission.running = false;
+                        break;
                     }
+
+                    if (!mMission.running || Thread.interrupted()) return;
                 } else {
                     // ask for the current resource length
                     mConn = mMission.openConnection(true, 0, 0);
@@ -148,7 +176,7 @@ public class DownloadInitializer extends Thread {
                 }
 
                 try (SharpStream fs = mMission.storage.getStream()) {
-                    fs.setLength(mMission.offsets[mMission.current] + mMission.length);
+                    fs.preallocate(mMission.offsets[mMission.current] + mMission.length);
                     fs.seek(mMission.offsets[mMission.current]);
                 }
 
@@ -172,6 +200,10 @@ public class DownloadInitializer extends Thread {
                 break;
             } catch (InterruptedIOException | ClosedByInterruptException e) {
                 return;
+            } catch (SegmentManifest.UnsupportedManifestException e) {
+                // retrying is useless
+                mMission.notifyError(e);
+                return;
             } catch (Exception e) {
                 if (!mMission.running || super.isInterrupted()) return;
 
@@ -182,6 +214,13 @@ public class DownloadInitializer extends Thread {
                     return;
                 }
 
+                if (e.getCause() instanceof ErrnoException
+                        && ((ErrnoException) e.getCause()).errno == OsConstants.ENOSPC) {
+                    // the space for the whole file can not be reserved, fail before downloading
+                    mMission.notifyError(DownloadMission.ERROR_INSUFFICIENT_STORAGE, null);
+                    return;
+                }
+
                 if (e instanceof IOException && e.getMessage().contains("Permission denied")) {
                     mMission.notifyError(DownloadMission.ERROR_PERMISSION_DENIED, e);
                     return;
@@ -200,9 +239,282 @@ public class DownloadInitializer extends Thread {
         mMission.start();
     }
 
+    /**
+     * Reserves space at the start of the file for the post-processing
+     *
+     * @param offsets    offset of every resource, the first one is changed
+     * @param lowestSize the length of the smallest resource, -1 if is unknown
+     */
+    private void reserveSpace(long[] offsets, long lowestSize) {
+        if (mMission.psAlgorithm == null || !mMission.psAlgorithm.reserveSpace) return;
+
+        if (lowestSize < 1) {
+            // the length is unknown use the default size
+            offsets[0] = RESERVE_SPACE_DEFAULT;
+        } else {
+            // use the smallest resource size to download, otherwise, use the maximum
+            offsets[0] = lowestSize < RESERVE_SPACE_MAXIMUM ? lowestSize : RESERVE_SPACE_MAXIMUM;
+        }
+    }
+
+    /**
+     * Prepares the mission to download all resources at the same time, every resource is
+     * written in its own region of the file. Requires the length of every resource and
+     * range requests support.
+     *
+     * @param lengths the length of every resource
+     * @return {@code true} if the mission is ready, otherwise, {@code false} to download the
+     * resources one after another
+     */
+    private boolean initParallel(long[] lengths) throws IOException, DownloadMission.HttpError {
+        String[] conditions = new String[lengths.length];
+
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] < 1) return false;
+
+            mConn = mMission.openConnection(mMission.urls[i], true, lengths[i] - 10, lengths[i]);
+            mMission.establishConnection(mId, mConn);
+            dispose();
+
+            if (!mMission.running || mConn.getResponseCode() != 206) return false;
+
+            String entityTag = mConn.getHeaderField("ETAG");
+            String lastModified = mConn.getHeaderField("Last-Modified");
+
+            if (!TextUtils.isEmpty(entityTag)) {
+                conditions[i] = entityTag;
+            } else if (!TextUtils.isEmpty(lastModified)) {
+                conditions[i] = lastModified;// Note: this is less precise
+            }
+        }
+
+        // every resource is placed after the previous one
+        long[] offsets = new long[lengths.length];
+        long length = lengths[0];
+        int count = 0;
+
+        offsets[0] = mMission.offsets[0];
+        for (int i = 0; i < lengths.length; i++) {
+            if (i > 0) {
+                offsets[i] = offsets[i - 1] + lengths[i - 1];
+                length += lengths[i];
+            }
+            count += (int) ((lengths[i] + DownloadMission.BLOCK_SIZE - 1) / DownloadMission.BLOCK_SIZE);
+        }
+
+        try (SharpStream fs = mMission.storage.getStream()) {
+            fs.preallocate(offsets[0] + length);
+        }
+
+        if (!mMission.running) return false;
+
+        if (mMission.recoveryInfo != null) {
+            for (int i = 0; i < conditions.length; i++) {
+                mMission.recoveryInfo[i].setValidateCondition(conditions[i]);
+            }
+        }
+
+        synchronized (mMission.LOCK) {
+            System.arraycopy(offsets, 0, mMission.offsets, 0, offsets.length);
+            mMission.length = length;
+            mMission.lengths = lengths;
+            mMission.unknownLength = false;
+            mMission.blocks = new int[count];
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "downloading " + lengths.length + " resources in parallel, blocks = " + count);
+        }
+
+        return true;
+    }
+
+    /**
+     * Replaces the manifests with their segments, every segment is downloaded as a block of a
+     * parallel mission and retried individually. The length of a segment is learned from its
+     * response, so every segment is placed after the previous one while downloading, see
+     * {@link DownloadMission#placeSegment(DownloadMission.Block, long)}. The resources given to
+     * the post-processing are the segments of every manifest, see
+     * {@link DownloadMission#getSourceCount()}
+     *
+     * @param manifests which urls are manifests, the other ones are downloaded as a single segment
+     * @return {@code true} if the mission is ready, otherwise, {@code false} if was stopped
+     */
+    private boolean initSegmented(boolean[] manifests) throws IOException {
+        List<String> segments = new ArrayList<>();
+        int[] starts = new int[manifests.length];
+
+        for (int i = 0; i < manifests.length; i++) {
+            starts[i] = segments.size();
+
+            if (manifests[i]) {
+                String url = mMission.urls[i];
+                segments.addAll(SegmentManifest.parse(url, load(url), this::load));
+            } else {
+                segments.add(mMission.urls[i]);
+            }
+
+            if (!mMission.running || Thread.interrupted()) return false;
+        }
+
+        String[] urls = segments.toArray(new String[0]);
+        long[] offsets = new long[urls.length];
+        long[] lengths = new long[urls.length];
+        reserveSpace(offsets, -1);
+        Arrays.fill(lengths, -1);
+
+        synchronized (mMission.LOCK) {
+            mMission.originalUrls = mMission.urls;
+            mMission.segmentStarts = starts;
+            mMission.urls = urls;
+            mMission.offsets = offsets;
+            mMission.nearLength = 0;
+            mMission.length = 0;
+            mMission.lengths = lengths;
+            mMission.wholeSegments = true;
+            mMission.unknownLength = false;
+            mMission.blocks = new int[urls.length];
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "downloading " + urls.length + " segments of " + starts.length + " sources");
+        }
+
+        return true;
+    }
+
+    /**
+     * Replaces every url with the header and the fragments of the {@link DownloadMission#clip}
+     * time range, both are read from the segment index of the file. Every source of the
+     * post-processing is a standalone file (header followed by the fragments).
+     *
+     * @return {@code true} if the mission is ready, otherwise, {@code false} if was stopped
+     */
+    private boolean initClip() throws IOException, DownloadMission.HttpError {
+        int count = mMission.urls.length;
+        String[] urls = new String[count * 2];
+        long[] rangeStarts = new long[urls.length];
+        long[] lengths = new long[urls.length];
+        int[] starts = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            mConn = mMission.openConnection(mMission.urls[i], false, 0, -1);
+            mMission.establishConnection(mId, mConn);
+
+            SegmentIndex index;
+            try (InputStream stream = mConn.getInputStream()) {
+                index = SegmentIndex.read(stream);
+            } finally {
+                dispose();
+            }
+
+            if (!mMission.running || Thread.interrupted()) return false;
+
+            long[] range = index.getRange(mMission.clip[0], mMission.clip[1]);
+            int header = i * 2;
+            int fragments = header + 1;
+
+            starts[i] = header;
+            urls[header] = urls[fragments] = mMission.urls[i];
+            lengths[header] = index.headerLength;
+            rangeStarts[fragments] = range[0];
+            lengths[fragments] = range[1] - range[0];
+        }
+
+        return initSegments(urls, rangeStarts, lengths, starts);
+    }
+
+    /**
+     * Prepares a segmented mission, every segment is placed after the previous one
+     *
+     * @param urls        the url of every segment
+     * @param rangeStarts where every segment starts in the remote file, {@code null} for the whole file
+     * @param lengths     the length of every segment
+     * @param starts      the first segment of every original url
+     * @return {@code true} if the mission is ready, otherwise, {@code false} if was stopped
+     */
+    private boolean initSegments(String[] urls, long[] rangeStarts, long[] lengths, int[] starts)
+            throws IOException {
+        long[] offsets = new long[urls.length];
+        long lowestSize = Long.MAX_VALUE;
+        long length = 0;
+        int count = 0;
+
+        for (int i = 0; i < urls.length; i++) {
+            if (lengths[i] < 1) throw new IOException("unknown length of the segment " + i);
+
+            length += lengths[i];
+            count += (int) ((lengths[i] + DownloadMission.BLOCK_SIZE - 1) / DownloadMission.BLOCK_SIZE);
+        }
+
+        // reserve space using the smallest source, not the smallest segment
+        for (int i = 0; i < starts.length; i++) {
+            int end = i + 1 < starts.length ? starts[i + 1] : urls.length;
+            long size = 0;
+            for (int j = starts[i]; j < end; j++) size += lengths[j];
+            if (size < lowestSize) lowestSize = size;
+        }
+
+        reserveSpace(offsets, lowestSize);
+        for (int i = 1; i < offsets.length; i++) offsets[i] = offsets[i - 1] + lengths[i - 1];
+
+        try (SharpStream fs = mMission.storage.getStream()) {
+            fs.preallocate(offsets[0] + length);
+        }
+
+        if (!mMission.running) return false;
+
+        synchronized (mMission.LOCK) {
+            mMission.originalUrls = mMission.urls;
+            mMission.segmentStarts = starts;
+            mMission.rangeStarts = rangeStarts;
+            mMission.urls = urls;
+            mMission.offsets = offsets;
+            mMission.nearLength = length;
+            mMission.length = length;
+            mMission.lengths = lengths;
+            mMission.unknownLength = false;
+            mMission.blocks = new int[count];
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "downloading " + urls.length + " segments of " + starts.length + " sources, blocks = " + count);
+        }
+
+        return true;
+    }
+
+    /**
+     * Downloads a manifest
+     *
+     * @param url the url of the manifest
+     * @return the content
+     */
+    private String load(String url) throws IOException {
+        mConn = mMission.openConnection(url, false, -1, -1);
+
+        try {
+            mMission.establishConnection(mId, mConn);
+
+            try (InputStream stream = mConn.getInputStream()) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                int read;
+
+                while ((read = stream.read(chunk)) > 0) buffer.write(chunk, 0, read);
+
+                return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+            }
+        } catch (DownloadMission.HttpError e) {
+            throw new IOException("can not load the manifest " + url, e);
+        } finally {
+            dispose();
+        }
+    }
+
     @Override
     public void interrupt() {
         super.interrupt();
-        if (mConn != null) dispose();
+        if (mConn != null) mConn.cancel();
     }
 }
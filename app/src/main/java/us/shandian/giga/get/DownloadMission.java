@@ -8,6 +8,8 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.android.exoplayer2.upstream.cache.Cache;
+
 import org.schabi.newpipe.DownloaderImpl;
 
 import java.io.File;
@@ -16,18 +18,29 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.net.ConnectException;
-import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
-import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.net.ssl.SSLException;
 
+import org.schabi.newpipe.streams.io.SharpStream;
 import org.schabi.newpipe.streams.io.StoredFileHelper;
+import us.shandian.giga.get.sqlite.PendingMissionStore;
 import us.shandian.giga.postprocessing.Postprocessing;
+import us.shandian.giga.postprocessing.PostprocessingScheduler;
 import us.shandian.giga.service.DownloadManagerService;
+import us.shandian.giga.util.Crc32c;
+import us.shandian.giga.util.StripedCounter;
 import us.shandian.giga.util.Utility;
 
 import static org.schabi.newpipe.BuildConfig.DEBUG;
@@ -37,6 +50,11 @@ public class DownloadMission extends Mission {
 
     static final int BUFFER_SIZE = 64 * 1024;
     static final int BLOCK_SIZE = 512 * 1024;
+    static final int MIN_STEAL_SIZE = 2 * BUFFER_SIZE;
+    static final long CONNECT_GRACE_PERIOD = 3000000000L;// 3 seconds, in nanoseconds
+    static final int PROGRESS_SAMPLE_INTERVAL = 500;// milliseconds
+    private static final long PROGRESS_SAVE_INTERVAL = 5000000000L;// 5 seconds, in nanoseconds
+    static final int PIPELINE_STOP_TIMEOUT = 1000;// milliseconds
 
     private static final String TAG = "DownloadMission";
 
@@ -58,6 +76,9 @@ public class DownloadMission extends Mission {
     public static final int ERROR_HTTP_NO_CONTENT = 204;
     static final int ERROR_HTTP_FORBIDDEN = 403;
 
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
     /**
      * The urls of the file to download
      */
@@ -87,6 +108,12 @@ public class DownloadMission extends Mission {
      */
     public volatile int psState;
 
+    /**
+     * Indicates if the post-processing was started before the download finished, the
+     * downloaded data can be already overwritten by the post-processing result
+     */
+    boolean psPipelined;
+
     /**
      * the post-processing algorithm instance
      */
@@ -119,6 +146,84 @@ public class DownloadMission extends Mission {
      */
     int[] blocks;
 
+    /**
+     * CRC-32C of every fully downloaded block, -1 if is unknown. Used to verify the blocks
+     * saved in the journal (the mission was not saved properly) before resuming the download
+     */
+    long[] checksums;
+
+    /**
+     * Fully downloaded blocks that must be verified before trusting them, see {@link #replayJournal()}
+     */
+    BitSet unverified;
+
+    /**
+     * Length of every resource if all of them are downloaded at the same time, in this case
+     * the blocks of all resources are interleaved in {@link #blocks}. Is {@code null} if the
+     * resources are downloaded one after another. The length of a segment is -1 until is
+     * learned, see {@link #wholeSegments}
+     */
+    long[] lengths;
+
+    /**
+     * Every block is a whole segment, used for the segments of a manifest because their length
+     * is only known once they are requested, see {@link #placeSegment(Block, long)}
+     */
+    boolean wholeSegments;
+
+    /**
+     * The urls given to the mission if they are split in segments, in this case {@link #urls}
+     * are replaced with the segments of every url. Used for manifests (HLS/DASH), see
+     * {@link SegmentManifest}, and for clips, see {@link #clip}
+     */
+    String[] originalUrls;
+
+    /**
+     * Index in {@link #urls} of the first segment of every original url, {@code null} if the
+     * mission is not segmented
+     */
+    int[] segmentStarts;
+
+    /**
+     * Offset in the remote file where every resource starts, {@code null} if all resources
+     * start at zero. Used to download only a range of the file
+     */
+    long[] rangeStarts;
+
+    /**
+     * Time range to download, start and end in milliseconds, only the fragments of a DASH
+     * file in the range are downloaded, see {@link SegmentIndex}. {@code null} to download
+     * the whole file
+     */
+    public long[] clip;
+
+    /**
+     * Key of every resource in the player cache, the data already played is copied from the
+     * cache instead of downloading it again. {@code null} or a {@code null} entry if unknown
+     */
+    public String[] cacheKeys;
+
+    /**
+     * The player cache, see {@link #cacheKeys}
+     */
+    public transient Cache playerCache;
+    private transient PlayerCacheReader[] cacheReaders;
+
+    /**
+     * Resource of every block and the index of the block in it, see {@link #mapBlocks()}
+     */
+    private transient int[] blockResources;
+    private transient int[] blockIndexes;
+
+    /**
+     * Amount of segments whose offset is known and amount of segments whose length is known,
+     * see {@link #placeSegments()}. The lengths learned after the last save are written in the
+     * next checkpoint
+     */
+    private transient volatile int placedSegments;
+    private transient int learnedSegments;
+    private transient volatile boolean unsavedSegments;
+
     /**
      * Download/File resume offset in fallback mode (if applicable) {@link DownloadRunnableFallback}
      */
@@ -129,6 +234,11 @@ public class DownloadMission extends Mission {
      */
     public int threadCount = 3;
 
+    /**
+     * Queue priority, missions with higher priority are started first
+     */
+    public int priority = PRIORITY_NORMAL;
+
     /**
      * information required to recover a download
      */
@@ -142,11 +252,70 @@ public class DownloadMission extends Mission {
     public Exception errObject = null;
 
     public transient Handler mHandler;
-    private transient boolean[] blockAcquired;
+
+    /**
+     * Store of the pending missions, updated every time this mission is saved
+     */
+    public transient PendingMissionStore store;
+
+    /**
+     * Values loaded from {@link PendingMissionStore}, {@code null} if the whole mission state
+     * is loaded. See {@link #loadState()}
+     */
+    public transient Summary summary;
+
+    /**
+     * Bitmap of blocks acquired or downloaded, a bit is set when the block is taken by
+     * a thread and is cleared again only if the block was released unfinished
+     */
+    private transient AtomicLongArray blockClaims;
+
+    /**
+     * Index of the first block that can be free, all blocks before it are claimed. The high 32
+     * bits are a stamp increased on every release, so a thread which scanned past a block
+     * released meanwhile can not move the cursor beyond it
+     */
+    private transient AtomicLong blockCursor;
+
+    private transient ArrayList<Block> blocksInFlight;
+
+    /**
+     * Progress reported by the download threads and not yet added to {@link #done}
+     */
+    private transient StripedCounter progress;
+    private transient Runnable progressSampler;
 
     private transient long writingToFileNext;
     private transient volatile boolean writingToFile;
 
+    /**
+     * Released blocks are appended here instead of saving the whole mission state
+     */
+    private transient volatile MissionJournal journal;
+
+    /**
+     * Incremented every time the mission state is saved, used to validate the journal
+     */
+    private long journalGeneration;
+
+    /**
+     * Last time the progress was saved in the summary, see {@link #checkpointBlock(int, int, long)}
+     */
+    private transient volatile long progressSavedAt;
+
+    /**
+     * Output shared by all download threads, every thread writes its blocks with positional
+     * writes on the file channel, the stream is closed when the last thread releases it
+     */
+    private transient SharpStream output;
+    private transient int outputUsers;
+
+    /**
+     * Post-processing running while the mission is downloading, see {@link #startPipeline()}
+     */
+    private transient volatile MissionPipeline pipeline;
+    private transient Thread psThread;
+
     final Object LOCK = new Lock();
 
     @NonNull
@@ -170,38 +339,787 @@ public class DownloadMission extends Mission {
     }
 
     /**
-     * Acquire a block
+     * Creates a mission from its summary, the whole state is read from the metadata file
+     * before the mission is started or saved
+     *
+     * @param summary  the values which require the whole mission state
+     * @param urlCount amount of resources to download
+     */
+    public DownloadMission(@NonNull Summary summary, int urlCount) {
+        this.summary = summary;
+        this.urls = new String[urlCount];
+        this.offsets = new long[urlCount];
+    }
+
+    /**
+     * Reads the whole mission state from the metadata file, if only the summary is loaded
+     *
+     * @return {@code true} if the state is loaded, {@code false} if the metadata file can not be read
+     */
+    boolean loadState() {
+        synchronized (LOCK) {
+            if (summary == null) return true;
+            if (metadata == null) return false;
+
+            DownloadMission state = Utility.readFromFile(metadata);
+            if (state == null) return false;
+
+            // the values stored in the summary (queue state, storage, etc.) are kept
+            urls = state.urls;
+            offsets = state.offsets;
+            blocks = state.blocks;
+            checksums = state.checksums;
+            unverified = state.unverified;
+            lengths = state.lengths;
+            wholeSegments = state.wholeSegments;
+            originalUrls = state.originalUrls;
+            segmentStarts = state.segmentStarts;
+            rangeStarts = state.rangeStarts;
+            clip = state.clip;
+            cacheKeys = state.cacheKeys;
+            current = state.current;
+            length = state.length;
+            done = state.done;
+            unknownLength = state.unknownLength;
+            nearLength = state.nearLength;
+            fallbackResumeOffset = state.fallbackResumeOffset;
+            threadCount = state.threadCount;
+            recoveryInfo = state.recoveryInfo;
+            errObject = state.errObject;
+            psAlgorithm = state.psAlgorithm;
+            psPipelined = state.psPipelined;
+            journalGeneration = state.journalGeneration;
+
+            if (psAlgorithm != null) {
+                psAlgorithm.cleanupTemporalDir();
+                psAlgorithm.setTemporalDir(summary.temporalDir);
+            }
+
+            summary = null;
+            replayJournal();
+
+            return true;
+        }
+    }
+
+    /**
+     * @return {@code true} if a block is not downloaded or not verified yet
+     */
+    private boolean hasPendingBlocks() {
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] >= 0 || (unverified != null && unverified.get(i))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Prepares the block claims, must be called before any download thread is started
+     *
+     * @return the amount of blocks left to download
+     */
+    int prepareBlocks() {
+        int remaining = 0;
+
+        mapBlocks();
+        prepareChecksums();
+
+        long lost = prepareSegments();
+        if (lost > 0) notifyProgress(-lost);
+
+        blockClaims = new AtomicLongArray((blocks.length + 63) >>> 6);
+        blockCursor = new AtomicLong(blocks.length);
+        blocksInFlight = new ArrayList<>(threadCount * 2);
+
+        for (int i = blocks.length - 1; i >= 0; i--) {
+            if (blocks[i] < 0 && (unverified == null || !unverified.get(i))) {
+                blockClaims.set(i >>> 6, blockClaims.get(i >>> 6) | (1L << i));
+            } else {
+                blockCursor.set(i);
+                remaining++;
+            }
+        }
+
+        return remaining;
+    }
+
+    /**
+     * Acquire a block, if all blocks are taken the unfinished tail of the slowest
+     * in-flight block is split and given to the caller
      *
      * @return the block or {@code null} if no more blocks left
      */
     @Nullable
     Block acquireBlock() {
+        long cursor = blockCursor.get();
+        int i = (int) cursor;
+
+        while (i < blocks.length) {
+            int word = i >>> 6;
+            long claims = blockClaims.get(word);
+            long free = ~claims & (-1L << i);// Note: the shift distance is masked to 6 bits
+
+            if (free == 0) {
+                i = (word + 1) << 6;
+                continue;
+            }
+
+            int position = (word << 6) | Long.numberOfTrailingZeros(free);
+            if (position >= blocks.length) break;
+
+            if (!blockClaims.compareAndSet(word, claims, claims | (1L << position))) {
+                continue;// lost the race against another thread, try again
+            }
+
+            // every block between the cursor and this one is already claimed, unless one was
+            // released after reading the cursor (the stamp changed)
+            blockCursor.compareAndSet(cursor, (cursor & 0xFFFFFFFF00000000L) | (position + 1));
+
+            int resource = lengths == null ? current : blockResources[position];
+            long offset = (long) (lengths == null ? position : blockIndexes[position]) * BLOCK_SIZE;
+            Block block;
+            if (blocks[position] < 0) {
+                // downloaded but not verified yet, see DownloadRunnable
+                block = new Block(position, resource, offset, 0, (int) getBlockLength(position));
+                block.verify = true;
+            } else {
+                block = new Block(position, resource, offset, blocks[position], (int) getBlockLength(position));
+            }
+
+            synchronized (blocksInFlight) {
+                blocksInFlight.add(block);
+            }
+
+            return block;
+        }
+
+        synchronized (blocksInFlight) {
+            return stealBlock();
+        }
+    }
+
+    /**
+     * Splits the in-flight block which is expected to finish last. Must be called
+     * while holding the {@link #blocksInFlight} monitor
+     *
+     * @return the second half of the split block or {@code null} if nothing is worth stealing
+     */
+    @Nullable
+    private Block stealBlock() {
+        long now = System.nanoTime();
+        double slowest = 0;
+        Block victim = null;
+
+        // average throughput of a connection, used for the parts which did not start yet
+        double throughput = 0;
+        int transferring = 0;
+        for (Block block : blocksInFlight) {
+            double blockThroughput = block.throughput(now);
+            if (blockThroughput > 0) {
+                throughput += blockThroughput;
+                transferring++;
+            }
+        }
+        if (transferring > 0) throughput /= transferring;
+
+        for (Block block : blocksInFlight) {
+            double remainingTime = block.estimateRemainingTime(now, throughput);
+            if (remainingTime > slowest) {
+                slowest = remainingTime;
+                victim = block;
+            }
+        }
+
+        if (victim == null) return null;
+
+        Block tail = victim.split();
+        if (tail != null) blocksInFlight.add(tail);
+        return tail;
+    }
+
+    /**
+     * Release a block, once all parts of a split block are released the block offset is saved
+     *
+     * @param block the block to release
+     */
+    void releaseBlock(Block block) {
+        synchronized (blocksInFlight) {
+            blocksInFlight.remove(block);
+            if (--block.head.pending > 0) return;
+        }
+
+        // the offset can be -1 if all parts were downloaded successfully
+        int offset = -1;
+        long lost = 0;
+        for (Block part = block.head; part != null; part = part.next) {
+            if (offset >= 0)
+                lost += part.done - part.start;
+            else if (part.done < part.limit)
+                offset = part.done;
+        }
+
+        int position = block.position;
+        long checksum = offset < 0 ? getChecksum(block.head) : -1;
+
+        blocks[position] = offset;
+        checksums[position] = checksum;
+        checkpointBlock(position, offset, checksum);
+
+        MissionPipeline pipeline = this.pipeline;
+        if (offset < 0 && pipeline != null) pipeline.blockDone(position);
+
+        if (offset >= 0) {
+            // unfinished, make the block available again
+            int word = position >>> 6;
+            long claims;
+            do {
+                claims = blockClaims.get(word);
+            } while (!blockClaims.compareAndSet(word, claims, claims & ~(1L << position)));
+
+            long cursor;
+            do {
+                cursor = blockCursor.get();
+            } while (!blockCursor.compareAndSet(cursor, ((cursor & 0xFFFFFFFF00000000L) + (1L << 32))
+                    | Math.min((int) cursor, position)));
+        }
+
+        // anything downloaded after the first unfinished part can not be resumed
+        if (lost > 0) notifyProgress(-lost);
+    }
+
+    /**
+     * Appends the block offset to the journal, the journal is compacted if is too long
+     *
+     * @param position the index of the block
+     * @param offset   the block offset
+     * @param checksum the block checksum, -1 if unknown
+     */
+    private void checkpointBlock(int position, int offset, long checksum) {
+        MissionJournal journal = this.journal;
+        if (journal == null || metadata == null) return;
+
+        try {
+            if (journal.append(journalGeneration, position, offset, checksum) >= MissionJournal.COMPACT_THRESHOLD && !writingToFile) {
+                writingToFile = true;
+                writeThisToFileAsync();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "checkpointBlock() failed to append to the journal", e);
+        }
+
+        long now = System.nanoTime();
+        if (now - progressSavedAt < PROGRESS_SAVE_INTERVAL) return;
+        progressSavedAt = now;
+
+        PendingMissionStore store = this.store;
+        if (unsavedSegments && !writingToFile) {
+            // the segments placed since the last save are lost if the mission is not saved
+            writingToFile = true;
+            writeThisToFileAsync();
+        } else if (store != null) {
+            // the summary is listed without replaying the journal, keep its progress close to it
+            store.updateProgress(this);
+        }
+    }
+
+    /**
+     * Applies the journal over the mission state loaded from the metadata file
+     */
+    public void replayJournal() {
+        if (metadata == null || blocks == null || blocks.length < 1) return;
+
+        prepareChecksums();
+
+        BitSet replayed = new BitSet(blocks.length);
+        if (getJournal().replay(journalGeneration, blocks, checksums, replayed) < 1) return;
+
+        // the mission was not saved before closing, the blocks downloaded after the last save
+        // can be lost (the file is not synced) or damaged
+        if (unverified == null) unverified = new BitSet(blocks.length);
+        for (int i = replayed.nextSetBit(0); i >= 0; i = replayed.nextSetBit(i + 1)) {
+            if (blocks[i] < 0 && checksums[i] >= 0) unverified.set(i);
+        }
+
+        prepareSegments();
+        mapBlocks();
+
+        // calculate again the amount of bytes downloaded
+        long calculated = offsets[current] - offsets[0];
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] < 0)
+                calculated += getBlockLength(i);
+            else
+                calculated += blocks[i];
+        }
+
+        done = calculated;
+    }
+
+    private void prepareChecksums() {
+        if (checksums != null && checksums.length == blocks.length) return;
+
+        // older missions do not have checksums
+        checksums = new long[blocks.length];
+        Arrays.fill(checksums, -1);
+    }
+
+    /**
+     * Calculates the checksum of a fully downloaded block from the checksum of its parts
+     *
+     * @param head the first part of the block
+     * @return the checksum or -1 if cannot be calculated
+     */
+    private long getChecksum(Block head) {
+        int crc = 0;
+
+        if (head.start > 0) {
+            // resumed block, the checksum of the part downloaded before is lost
+            long prefix = readChecksum(head, head.start);
+            if (prefix < 0) return -1;
+            crc = (int) prefix;
+        }
+
+        for (Block part = head; part != null; part = part.next) {
+            crc = Crc32c.combine(crc, part.checksum, part.limit - part.start);
+        }
+
+        return crc & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Calculates the checksum of the start of a block, reading it from the file
+     *
+     * @param block  the block
+     * @param length amount of bytes to read
+     * @return the checksum or -1 if the file can not be read or is write-only
+     */
+    private long readChecksum(Block block, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, BUFFER_SIZE));
+        long position = offsets[block.resource] + block.offset;
+        int crc = 0;
+
+        SharpStream out = null;
+        try {
+            out = acquireOutput();
+            FileChannel channel = out.getChannel();
+            if (channel == null) return -1;
+
+            while (length > 0) {
+                buffer.clear();
+                buffer.limit(Math.min(length, buffer.capacity()));
+
+                int read = channel.read(buffer, position);
+                if (read < 1) return -1;// the file is shorter than expected
+
+                crc = Crc32c.update(crc, buffer.array(), 0, read);
+                position += read;
+                length -= read;
+            }
+        } catch (NonReadableChannelException e) {
+            // write-only output (like the SAF streams), the block is downloaded again
+            return -1;
+        } catch (IOException e) {
+            Log.w(TAG, "readChecksum() cannot read the block " + block.position, e);
+            return -1;
+        } finally {
+            if (out != null) releaseOutput(out);
+        }
+
+        return crc & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Checks if a downloaded block is intact, the block must be acquired with the verify flag
+     * set. If the block is damaged, it can be downloaded as any other block
+     *
+     * @param block the block to check
+     * @return {@code true} if the block is intact and nothing has to be downloaded
+     */
+    boolean verifyBlock(Block block) {
+        long expected = checksums[block.position];
+        boolean intact = expected >= 0 && readChecksum(block, block.limit) == expected;
+
         synchronized (LOCK) {
-            for (int i = 0; i < blockAcquired.length; i++) {
-                if (!blockAcquired[i] && blocks[i] >= 0) {
-                    Block block = new Block();
-                    block.position = i;
-                    block.done = blocks[i];
-
-                    blockAcquired[i] = true;
-                    return block;
-                }
+            // do not save the block as downloaded while is downloaded again
+            if (!intact) blocks[block.position] = 0;
+            unverified.clear(block.position);
+        }
+
+        block.verify = false;
+
+        if (intact) {
+            block.checksum = (int) expected;
+            block.advance(block.limit);
+            return true;
+        }
+
+        Log.w(TAG, "verifyBlock() the block " + block.position + " is damaged, downloading it again");
+
+        notifyProgress(-block.limit);
+        return false;
+    }
+
+    /**
+     * Interleaves the blocks of all resources, the blocks of every resource are spread
+     * according to its size. Threads take the blocks in order, so the threads are shared
+     * between the resources by the amount of bytes left and all of them finish at the
+     * same time.
+     */
+    private void mapBlocks() {
+        if (lengths == null || blockResources != null) return;
+
+        int[] counts = new int[lengths.length];
+        int[] next = new int[lengths.length];
+
+        for (int i = 0; i < lengths.length; i++) {
+            counts[i] = wholeSegments ? 1 : (int) ((lengths[i] + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+
+        int[] resources = new int[blocks.length];
+        int[] indexes = new int[blocks.length];
+
+        for (int position = 0; position < blocks.length; position++) {
+            int pick = -1;
+
+            // take the resource whose next block is the least advanced, relative to its size
+            for (int i = 0; i < counts.length; i++) {
+                if (next[i] >= counts[i]) continue;
+                if (pick < 0 || (2L * next[i] + 1) * counts[pick] < (2L * next[pick] + 1) * counts[i])
+                    pick = i;
             }
+
+            resources[position] = pick;
+            indexes[position] = next[pick]++;
         }
 
-        return null;
+        blockIndexes = indexes;
+        blockResources = resources;
     }
 
     /**
-     * Release an block
+     * Gets the length of a block, the last block of every resource can be shorter
      *
      * @param position the index of the block
-     * @param done     amount of bytes downloaded
+     * @return the length in bytes
+     */
+    private long getBlockLength(int position) {
+        if (wholeSegments)
+            return position < placedSegments && lengths[position] >= 0 ? lengths[position] : 0;
+        if (lengths == null)
+            return Math.min(BLOCK_SIZE, length - (long) position * BLOCK_SIZE);
+
+        long offset = (long) blockIndexes[position] * BLOCK_SIZE;
+        return Math.min(BLOCK_SIZE, lengths[blockResources[position]] - offset);
+    }
+
+    /**
+     * Places the segments of the mission, see {@link #placeSegments()}. A segment is written
+     * once its offset is known, but the learned lengths are saved in the metadata file once per
+     * checkpoint, so the progress of a segment placed after the last save is forgotten
+     *
+     * @return the amount of bytes forgotten
+     */
+    private long prepareSegments() {
+        if (!wholeSegments) return 0;
+
+        placedSegments = 0;
+        learnedSegments = 0;
+        placeSegments();
+
+        long lost = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            if (lengths[i] >= 0) learnedSegments++;
+            if (blocks[i] == 0 || (i < placedSegments && lengths[i] >= 0)) continue;
+
+            // the segment is downloaded again from the start
+            if (blocks[i] > 0) lost += blocks[i];
+            blocks[i] = 0;
+            checksums[i] = -1;
+            if (unverified != null) unverified.clear(i);
+        }
+
+        return lost;
+    }
+
+    /**
+     * Calculates the offset of the segments after the last placed one, every segment is
+     * written after the previous one, so the offset is known once the length of every
+     * previous segment is known
+     */
+    private void placeSegments() {
+        int placed = Math.max(placedSegments, 1);
+
+        while (placed < lengths.length && lengths[placed - 1] >= 0) {
+            offsets[placed] = offsets[placed - 1] + lengths[placed - 1];
+            placed++;
+        }
+
+        placedSegments = placed;
+    }
+
+    /**
+     * Indicates if the block is a segment whose offset or length is not known yet, the
+     * segment must be requested without range and placed with {@link #placeSegment(Block, long)}
+     *
+     * @param block the block to check
+     * @return {@code true} if the segment is not placed, otherwise, {@code false}
+     */
+    boolean isUnplaced(Block block) {
+        return wholeSegments && (block.resource >= placedSegments || lengths[block.resource] < 0);
+    }
+
+    /**
+     * Learns the length of a segment from its response and waits until the segment is placed,
+     * the segments before it are requested at the same time by the other threads
+     *
+     * @param block  the block of the segment, nothing is downloaded yet
+     * @param length the length of the segment, -1 if the response has no length. In this case
+     *               the segment ends with the response, see {@link #finishSegment(Block)}
+     * @return {@code true} if the segment can be written, {@code false} if the mission was stopped
+     * @throws IOException          if the segment does not fit in a block
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    boolean placeSegment(Block block, long length) throws IOException, InterruptedException {
+        if (length > Integer.MAX_VALUE) throw new IOException("the segment " + block.resource + " is too long");
+
+        synchronized (LOCK) {
+            if (length >= 0) learnSegment(block.resource, length);
+
+            while (block.resource >= placedSegments) {
+                if (!running || errCode != ERROR_NOTHING) return false;
+                LOCK.wait();
+            }
+        }
+
+        // the block was not split before because its limit was zero
+        if (length >= 0) {
+            block.limit = (int) length;
+        } else {
+            block.unbounded = true;
+            block.limit = Integer.MAX_VALUE;
+        }
+
+        return true;
+    }
+
+    /**
+     * Learns the length of a segment whose response has no length, once the whole response
+     * is written
+     *
+     * @param block the block of the segment
+     */
+    void finishSegment(Block block) {
+        synchronized (LOCK) {
+            block.limit = block.done;
+            block.unbounded = false;
+            learnSegment(block.resource, block.done);
+        }
+    }
+
+    /**
+     * Sets the length of a segment and places the segments after it, must be called while
+     * holding the {@link #LOCK} monitor
+     *
+     * @param segment the index of the segment
+     * @param length  the length of the segment
+     */
+    private void learnSegment(int segment, long length) {
+        if (lengths[segment] >= 0) return;
+
+        lengths[segment] = length;
+        this.length += length;
+        nearLength = this.length * lengths.length / ++learnedSegments;
+        unsavedSegments = true;
+
+        int placed = placedSegments;
+        placeSegments();
+        if (placedSegments > placed) LOCK.notifyAll();
+    }
+
+    /**
+     * Indicates if all resources of this mission are downloaded at the same time
+     *
+     * @return {@code true} if the resources are downloaded in parallel, otherwise, {@code false}
+     */
+    boolean isParallel() {
+        return lengths != null;
+    }
+
+    private void prepareCacheReaders() {
+        cacheReaders = null;
+
+        // the resources of segmented missions are not the streams played
+        if (playerCache == null || cacheKeys == null || originalUrls != null) return;
+
+        PlayerCacheReader[] readers = new PlayerCacheReader[urls.length];
+        for (int i = 0; i < readers.length && i < cacheKeys.length; i++) {
+            if (cacheKeys[i] != null) readers[i] = new PlayerCacheReader(playerCache, cacheKeys[i]);
+        }
+
+        cacheReaders = readers;
+    }
+
+    /**
+     * Gets the reader of the player cache for the resource
+     *
+     * @param resource the index of the resource
+     * @return the reader or {@code null} if the resource can not be in the player cache
+     */
+    @Nullable
+    PlayerCacheReader getCacheReader(int resource) {
+        PlayerCacheReader[] readers = cacheReaders;
+        return readers == null ? null : readers[resource];
+    }
+
+    /**
+     * Gets the amount of sources given to the post-processing, usually one source per url
+     * but all segments of a manifest are a single source
+     *
+     * @return the amount of sources
+     */
+    public int getSourceCount() {
+        return segmentStarts == null ? urls.length : segmentStarts.length;
+    }
+
+    /**
+     * Gets where the source is written in the file
+     *
+     * @param index the index of the source
+     * @return offset in the file
      */
-    void releaseBlock(int position, int done) {
+    public long getSourceOffset(int index) {
+        return offsets[segmentStarts == null ? index : segmentStarts[index]];
+    }
+
+    /**
+     * Gets the pipeline used by the post-processing to read the resources while downloading
+     *
+     * @return the pipeline or {@code null} if the post-processing runs after the download
+     */
+    @Nullable
+    public MissionPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Starts the post-processing while downloading, requires the offset of every resource,
+     * so the resources must be downloaded in parallel or the mission must have only one
+     */
+    private void startPipeline() {
+        if (psAlgorithm == null || !psAlgorithm.streaming || !psAlgorithm.worksOnSameFile || psState != 0)
+            return;
+        if (lengths == null && urls.length > 1) return;
+
+        // the segments of a source are different resources
+        if (segmentStarts != null) return;
+
+        // the blocks not verified yet can be damaged
+        if (unverified != null && !unverified.isEmpty()) return;
+
+        if (lengths == null) {
+            int[] indexes = new int[blocks.length];
+            for (int i = 0; i < indexes.length; i++) indexes[i] = i;
+
+            pipeline = new MissionPipeline(blocks, new int[blocks.length], indexes, new long[]{length});
+        } else {
+            pipeline = new MissionPipeline(blocks, blockResources, blockIndexes, lengths);
+        }
+
+        psThread = runAsync(-3, this::doPostprocessing);
+    }
+
+    /**
+     * Stops the post-processing started by {@link #startPipeline()}, the blocks overwritten
+     * with the post-processing result are downloaded again
+     */
+    private void stopPipeline() {
+        MissionPipeline pipeline = this.pipeline;
+        if (pipeline == null) return;
+
+        pipeline.cancel();
+
+        Thread thread = psThread;
+        if (thread != Thread.currentThread()) {
+            thread.interrupt();
+
+            try {
+                thread.join(PIPELINE_STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "stopPipeline() interrupted while waiting for the post-processing", e);
+            }
+        }
+
+        // if still running, is not known how much data was overwritten
+        long overwritten = thread.isAlive() && thread != Thread.currentThread() ? Long.MAX_VALUE : pipeline.getOverwritten();
+
+        this.pipeline = null;
+        psThread = null;
+
+        invalidateBlocks(overwritten);
+        psPipelined = false;
+    }
+
+    /**
+     * Marks as not downloaded every block stored before the given offset in the file
+     *
+     * @param end absolute offset in the file
+     */
+    private void invalidateBlocks(long end) {
+        if (blocks == null) return;
+
+        mapBlocks();
+
+        long lost = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            int resource = lengths == null ? current : blockResources[i];
+            long offset = (long) (lengths == null ? i : blockIndexes[i]) * BLOCK_SIZE;
+
+            if (blocks[i] == 0 || offsets[resource] + offset >= end) continue;
+
+            lost += blocks[i] < 0 ? getBlockLength(i) : blocks[i];
+            blocks[i] = 0;
+        }
+
+        if (lost > 0) notifyProgress(-lost);
+    }
+
+    private MissionJournal getJournal() {
         synchronized (LOCK) {
-            blockAcquired[position] = false;
-            blocks[position] = done;
+            if (journal == null) journal = new MissionJournal(metadata);
+            return journal;
+        }
+    }
+
+    /**
+     * Gets the output shared by the download threads, opens it if necessary
+     *
+     * @return the output stream, must be released with {@link #releaseOutput(SharpStream)}
+     * @throws IOException if the file cannot be opened
+     */
+    SharpStream acquireOutput() throws IOException {
+        synchronized (LOCK) {
+            // a thread interrupted while writing closes the channel, reopen the file
+            if (output == null || (output.getChannel() != null && !output.getChannel().isOpen())) {
+                output = storage.getStream();
+                outputUsers = 0;
+            }
+
+            outputUsers++;
+            return output;
+        }
+    }
+
+    void releaseOutput(SharpStream stream) {
+        synchronized (LOCK) {
+            if (stream != output) {
+                // stale stream, replaced after its channel was closed
+                stream.close();
+                return;
+            }
+
+            if (--outputUsers > 0) return;
+
+            output.close();
+            output = null;
         }
     }
 
@@ -211,25 +1129,18 @@ public class DownloadMission extends Mission {
      * @param headRequest {@code true} for use {@code HEAD} request method, otherwise, {@code GET} is used
      * @param rangeStart  range start
      * @param rangeEnd    range end
-     * @return a {@link java.net.URLConnection URLConnection} linking to the URL.
-     * @throws IOException if an I/O exception occurs.
+     * @return a {@link HttpConnection} linking to the URL, the request is sent later
      */
-    HttpURLConnection openConnection(boolean headRequest, long rangeStart, long rangeEnd) throws IOException {
+    HttpConnection openConnection(boolean headRequest, long rangeStart, long rangeEnd) {
         return openConnection(urls[current], headRequest, rangeStart, rangeEnd);
     }
 
-    HttpURLConnection openConnection(String url, boolean headRequest, long rangeStart, long rangeEnd) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setInstanceFollowRedirects(true);
+    HttpConnection openConnection(String url, boolean headRequest, long rangeStart, long rangeEnd) {
+        HttpConnection conn = new HttpConnection(url, headRequest);
         conn.setRequestProperty("User-Agent", DownloaderImpl.USER_AGENT);
         conn.setRequestProperty("Accept", "*/*");
         conn.setRequestProperty("Accept-Encoding", "*");
 
-        if (headRequest) conn.setRequestMethod("HEAD");
-
-        // BUG workaround: switching between networks can freeze the download forever
-        conn.setConnectTimeout(30000);
-
         if (rangeStart >= 0) {
             String req = "bytes=" + rangeStart + "-";
             if (rangeEnd > 0) req += rangeEnd;
@@ -246,7 +1157,7 @@ public class DownloadMission extends Mission {
      * @throws IOException if an error occurred connecting to the server.
      * @throws HttpError   if the HTTP Status-Code is not satisfiable
      */
-    void establishConnection(int threadId, HttpURLConnection conn) throws IOException, HttpError {
+    void establishConnection(int threadId, HttpConnection conn) throws IOException, HttpError {
         int statusCode = conn.getResponseCode();
 
         if (DEBUG) {
@@ -277,14 +1188,46 @@ public class DownloadMission extends Mission {
         mHandler.obtainMessage(what, this).sendToTarget();
     }
 
-    synchronized void notifyProgress(long deltaLen) {
+    /**
+     * Reports downloaded (or discarded if negative) bytes, called from the download loop
+     * so only touches the striped counter. The value is added to {@link #done} by the
+     * progress sampler
+     *
+     * @param deltaLen amount of bytes
+     */
+    void notifyProgress(long deltaLen) {
+        progress.add(deltaLen);
+    }
+
+    /**
+     * Replaces the amount of bytes downloaded, any progress not sampled yet is applied first
+     *
+     * @param value the new amount of bytes downloaded
+     */
+    synchronized void setProgress(long value) {
+        drainProgress();
+        done = value;
+    }
+
+    private synchronized long drainProgress() {
+        if (progress == null) return 0;
+
+        long deltaLen = progress.sumThenReset();
+        if (deltaLen == 0) return 0;
+
         if (unknownLength) {
             length += deltaLen;// Update length before proceeding
         }
 
         done += deltaLen;
+        return deltaLen;
+    }
+
+    private void sampleProgress() {
+        long deltaLen = drainProgress();
 
-        if (metadata == null) return;
+        // the blocks progress is saved in the journal, see releaseBlock() method
+        if (metadata == null || (blocks != null && blocks.length > 0)) return;
 
         if (!writingToFile && (done > writingToFileNext || deltaLen < 0)) {
             writingToFile = true;
@@ -293,6 +1236,23 @@ public class DownloadMission extends Mission {
         }
     }
 
+    /**
+     * Samples the progress periodically until the mission is stopped
+     */
+    private void startProgressSampler() {
+        if (mHandler == null) return;
+
+        if (progressSampler == null) {
+            progressSampler = () -> {
+                sampleProgress();
+                if (running) mHandler.postDelayed(progressSampler, PROGRESS_SAMPLE_INTERVAL);
+            };
+        }
+
+        mHandler.removeCallbacks(progressSampler);
+        mHandler.postDelayed(progressSampler, PROGRESS_SAMPLE_INTERVAL);
+    }
+
     synchronized void notifyError(Exception err) {
         Log.e(TAG, "notifyError()", err);
 
@@ -364,11 +1324,28 @@ public class DownloadMission extends Mission {
         if (current < urls.length) {
             if (++finishCount < threads.length) return;
 
+            if (blocks.length > 0 && hasPendingBlocks()) {
+                // a block was released unfinished after the other threads exited
+                if (DEBUG) Log.w(TAG, "onFinish: blocks left, restarting the download threads");
+
+                finishCount = 0;
+                prepareBlocks();
+                threads = new Thread[threadCount];
+
+                for (int i = 0; i < threads.length; i++) {
+                    threads[i] = runAsync(i + 1, new DownloadRunnable(this, i));
+                }
+                return;
+            }
+
+            drainProgress();
+
             if (DEBUG) {
-                Log.d(TAG, "onFinish: downloaded " + (current + 1) + "/" + urls.length);
+                Log.d(TAG, "onFinish: downloaded " + (lengths == null ? current + 1 : urls.length) + "/" + urls.length);
             }
 
-            current++;
+            // all resources are completed at the same time if downloaded in parallel
+            current = lengths == null ? current + 1 : urls.length;
             if (current < urls.length) {
                 // prepare next sub-mission
                 offsets[current] = offsets[current - 1] + length;
@@ -378,6 +1355,20 @@ public class DownloadMission extends Mission {
         }
 
         if (psAlgorithm != null && psState == 0) {
+            MissionPipeline pipeline = this.pipeline;
+
+            if (pipeline != null) {
+                // the post-processing is already running, let it finish
+                threads = new Thread[]{psThread};
+                this.pipeline = null;
+                psThread = null;
+
+                psPipelined = false;
+                notifyPostProcessing(1);
+                pipeline.finish();
+                return;
+            }
+
             threads = new Thread[]{
                     runAsync(1, this::doPostprocessing)
             };
@@ -427,7 +1418,14 @@ public class DownloadMission extends Mission {
      * Start downloading with multiple threads.
      */
     public void start() {
-        if (running || isFinished() || urls.length < 1) return;
+        if (running) return;
+
+        if (!loadState()) {
+            notifyError(ERROR_PROGRESS_LOST, null);
+            return;
+        }
+
+        if (isFinished() || urls.length < 1) return;
 
         // ensure that the previous state is completely paused.
         joinForThreads(10000);
@@ -435,6 +1433,14 @@ public class DownloadMission extends Mission {
         running = true;
         errCode = ERROR_NOTHING;
 
+        if (progress == null) progress = new StripedCounter();
+
+        if (psPipelined && psState == 0) {
+            // the app was closed while post-processing and downloading, any block can be overwritten
+            invalidateBlocks(Long.MAX_VALUE);
+            psPipelined = false;
+        }
+
         if (hasInvalidStorage()) {
             notifyError(ERROR_FILE_CREATION, null);
             return;
@@ -447,7 +1453,7 @@ public class DownloadMission extends Mission {
 
         notify(DownloadManagerService.MESSAGE_RUNNING);
 
-        if (urls[current] == null) {
+        if (urls[current] == null || (lengths != null && hasMissingUrls())) {
             doRecover(ERROR_RESOURCE_GONE);
             return;
         }
@@ -459,20 +1465,25 @@ public class DownloadMission extends Mission {
 
         init = null;
         finishCount = 0;
-        blockAcquired = new boolean[blocks.length];
+        if (metadata != null) getJournal();
+
+        startProgressSampler();
 
         if (blocks.length < 1) {
             threads = new Thread[]{runAsync(1, new DownloadRunnableFallback(this))};
         } else {
-            int remainingBlocks = 0;
-            for (int block : blocks) if (block >= 0) remainingBlocks++;
+            int remainingBlocks = prepareBlocks();
 
             if (remainingBlocks < 1) {
                 notifyFinished();
                 return;
             }
 
-            threads = new Thread[Math.min(threadCount, remainingBlocks)];
+            prepareCacheReaders();
+            startPipeline();
+
+            // idle threads steal the tail of in-flight blocks, so use all of them
+            threads = new Thread[threadCount];
 
             for (int i = 0; i < threads.length; i++) {
                 threads[i] = runAsync(i + 1, new DownloadRunnable(this, i));
@@ -516,7 +1527,11 @@ public class DownloadMission extends Mission {
     private void pauseThreads() {
         running = false;
         joinForThreads(-1);
+        stopPipeline();
         writeThisToFile();
+
+        // Note: if a thread is still running the journal will be opened again
+        if (journal != null) journal.close();
     }
 
     /**
@@ -524,6 +1539,11 @@ public class DownloadMission extends Mission {
      */
     @Override
     public boolean delete() {
+        loadState();
+
+        MissionPipeline pipeline = this.pipeline;
+        if (pipeline != null) pipeline.cancel();
+
         if (psAlgorithm != null) psAlgorithm.cleanupTemporalDir();
 
         notify(DownloadManagerService.MESSAGE_DELETED);
@@ -542,6 +1562,8 @@ public class DownloadMission extends Mission {
      * @param persistChanges {@code true} to commit changes to the metadata file, otherwise, {@code false}
      */
     public void resetState(boolean rollback, boolean persistChanges, int errorCode) {
+        loadState();
+
         length = 0;
         errCode = errorCode;
         errObject = null;
@@ -549,7 +1571,31 @@ public class DownloadMission extends Mission {
         threads = new Thread[0];
         fallbackResumeOffset = 0;
         blocks = null;
-        blockAcquired = null;
+        checksums = null;
+        unverified = null;
+        blockClaims = null;
+        blockCursor = null;
+        blocksInFlight = null;
+        blockResources = null;
+        blockIndexes = null;
+        psPipelined = false;
+
+        if (lengths != null) {
+            // all resources were downloaded together, the progress of all of them is lost
+            lengths = null;
+            wholeSegments = false;
+            done = 0;
+        }
+
+        if (originalUrls != null) {
+            // the segments can change, the manifests or indexes must be loaded again
+            urls = originalUrls;
+            offsets = new long[urls.length];
+            originalUrls = null;
+            segmentStarts = null;
+            rangeStarts = null;
+            current = 0;
+        }
 
         if (rollback) current = 0;
         if (persistChanges) writeThisToFile();
@@ -564,14 +1610,42 @@ public class DownloadMission extends Mission {
     }
 
     /**
-     * Write this {@link DownloadMission} to the meta file asynchronously
-     * if no thread is already running.
+     * Write this {@link DownloadMission} to the meta file and starts a new journal
      */
     void writeThisToFile() {
         synchronized (LOCK) {
-            if (metadata == null) return;
-            Utility.writeToFile(metadata, this);
+            if (metadata == null || !loadState()) return;
+
+            drainProgress();
+
+            if (output != null && output.getChannel() != null) {
+                // the saved blocks are trusted without verifying them, ensure they are in the disk
+                try {
+                    output.getChannel().force(false);
+                } catch (IOException e) {
+                    Log.w(TAG, "writeThisToFile() cannot sync the file", e);
+                }
+            }
+
+            MissionJournal journal = getJournal();
+
+            // block any journal append until the new journal is created
+            synchronized (journal) {
+                journalGeneration++;
+                unsavedSegments = false;
+                Utility.writeToFile(metadata, this);
+
+                try {
+                    journal.reset(journalGeneration);
+                } catch (IOException e) {
+                    // the stale journal will be ignored
+                    Log.w(TAG, "writeThisToFile() cannot reset the journal", e);
+                }
+            }
+
             writingToFile = false;
+
+            if (store != null) store.updateMission(this);
         }
     }
 
@@ -581,6 +1655,9 @@ public class DownloadMission extends Mission {
      * @return true, otherwise, false
      */
     public boolean isFinished() {
+        // finished missions are removed from the store
+        if (summary != null) return false;
+
         return current >= urls.length && (psAlgorithm == null || psState == 2);
     }
 
@@ -590,6 +1667,8 @@ public class DownloadMission extends Mission {
      * @return {@code true} if this mission is unrecoverable
      */
     public boolean isPsFailed() {
+        if (summary != null) return summary.psFailed;
+
         switch (errCode) {
             case ERROR_POSTPROCESSING:
             case ERROR_POSTPROCESSING_STOPPED:
@@ -614,6 +1693,8 @@ public class DownloadMission extends Mission {
      * @return true, otherwise, false
      */
     public boolean isInitialized() {
+        if (summary != null) return summary.initialized;
+
         return blocks != null; // DownloadMissionInitializer was executed
     }
 
@@ -624,16 +1705,34 @@ public class DownloadMission extends Mission {
      */
     public long getLength() {
         long calculated;
+        if (summary != null) {
+            return summary.length;
+        }
         if (psState == 1 || psState == 3) {
             return length;
         }
 
-        calculated = offsets[current < offsets.length ? current : (offsets.length - 1)] + length;
-        calculated -= offsets[0];// don't count reserved space
+        if (lengths != null) {
+            // the length of all resources
+            calculated = length;
+        } else {
+            calculated = offsets[current < offsets.length ? current : (offsets.length - 1)] + length;
+            calculated -= offsets[0];// don't count reserved space
+        }
 
         return Math.max(calculated, nearLength);
     }
 
+    /**
+     * set the priority of this mission on the queue
+     *
+     * @param priority the new priority, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+        writeThisToFileAsync();
+    }
+
     /**
      * set this mission state on the queue
      *
@@ -684,21 +1783,47 @@ public class DownloadMission extends Mission {
     }
 
     private void doPostprocessing() {
-        errCode = ERROR_NOTHING;
-        errObject = null;
+        MissionPipeline pipeline = this.pipeline;
         Thread thread = Thread.currentThread();
 
-        notifyPostProcessing(1);
+        if (pipeline == null) {
+            errCode = ERROR_NOTHING;
+            errObject = null;
+
+            notifyPostProcessing(1);
+        } else {
+            synchronized (LOCK) {
+                // the downloaded data is about to be overwritten
+                psPipelined = true;
+                writeThisToFile();
+            }
+        }
 
         if (DEBUG) {
             thread.setName("[" + TAG + "]  ps = " + psAlgorithm + "  filename = " + storage.getName());
         }
 
         Exception exception = null;
+        boolean downloading = false;
+        boolean scheduled = false;
 
         try {
+            if (pipeline == null) {
+                // wait until the post-processing of other missions finish
+                PostprocessingScheduler.acquire(this);
+                scheduled = true;
+            }
+
             psAlgorithm.run(this);
         } catch (Exception err) {
+            downloading = pipeline != null && (pipeline.isCancelled() || this.pipeline == pipeline);
+
+            if (downloading) {
+                // the download is not finished, stop it and download again the overwritten blocks
+                if (!pipeline.isCancelled()) notifyError(err);
+                return;
+            }
+
             Log.e(TAG, "Post-processing failed. " + psAlgorithm.toString(), err);
 
             if (err instanceof InterruptedIOException || err instanceof ClosedByInterruptException || thread.isInterrupted()) {
@@ -710,7 +1835,8 @@ public class DownloadMission extends Mission {
 
             exception = err;
         } finally {
-            notifyPostProcessing(errCode == ERROR_NOTHING ? 2 : 0);
+            if (scheduled) PostprocessingScheduler.release();
+            if (!downloading) notifyPostProcessing(errCode == ERROR_NOTHING ? 2 : 0);
         }
 
         if (errCode != ERROR_NOTHING) {
@@ -736,15 +1862,35 @@ public class DownloadMission extends Mission {
             return;
         }
 
+        if (originalUrls != null) {
+            // the segment urls can not be recovered, start again from the original urls
+            notifyError(errorCode, null);
+            resetState(true, true, errorCode);
+            return;
+        }
+
         joinForThreads(0);
+        stopPipeline();
 
         threads = new Thread[]{
                 runAsync(DownloadMissionRecover.mID, new DownloadMissionRecover(this, errorCode))
         };
     }
 
+    private boolean hasMissingUrls() {
+        for (String url : urls) {
+            if (url == null) return true;
+        }
+        return false;
+    }
+
     private boolean deleteThisFromFile() {
         synchronized (LOCK) {
+            getJournal().delete();
+            journal = null;
+
+            if (store != null) store.deleteMission(metadata.getName());
+
             boolean res = metadata.delete();
             metadata = null;
             return res;
@@ -770,7 +1916,8 @@ public class DownloadMission extends Mission {
      */
     private Thread runAsync(int id, Thread who) {
         // known thread ids:
-        //   -2:     state saving by  notifyProgress()  method
+        //   -3:     post-processing while downloading
+        //   -2:     state saving by  sampleProgress()  method
         //   -1:     wait for saving the state by  pause()  method
         //    0:     initializer
         //  >=1:     any download thread
@@ -845,6 +1992,160 @@ public class DownloadMission extends Mission {
     public static class Block {
         public int position;
         public int done;
+
+        /**
+         * the resource of this block, index in {@link DownloadMission#urls}
+         */
+        final int resource;
+
+        /**
+         * offset of the block in the resource
+         */
+        final long offset;
+
+        /**
+         * offset in the block where this part starts
+         */
+        final int start;
+
+        /**
+         * offset in the block where this part ends, can be shortened by {@link #split()}
+         */
+        volatile int limit;
+
+        /**
+         * the first part of the block and the part that follows this one
+         */
+        Block head;
+        Block next;
+
+        /**
+         * amount of parts not released yet, only used by the head and guarded by
+         * the monitor of {@link DownloadMission#blocksInFlight}
+         */
+        int pending;
+
+        /**
+         * CRC-32C of the bytes downloaded in this part, only updated by the owner thread
+         */
+        int checksum;
+
+        /**
+         * the block is already downloaded, must be read from the file and checked before
+         */
+        boolean verify;
+
+        /**
+         * the length of the segment is unknown, the part ends with the response and can not be split
+         */
+        boolean unbounded;
+
+        private final long acquiredAt;
+
+        Block(int position, int resource, long offset, int done, int limit) {
+            this.position = position;
+            this.resource = resource;
+            this.offset = offset;
+            this.done = done;
+            this.start = done;
+            this.limit = limit;
+            this.head = this;
+            this.pending = 1;
+            this.acquiredAt = System.nanoTime();
+        }
+
+        synchronized int remaining() {
+            return limit - done;
+        }
+
+        /**
+         * Adds downloaded bytes to this part
+         *
+         * @param amount bytes written
+         * @return the amount of bytes that belongs to this part, bytes past the limit
+         * are owned by the thread which stolen the tail
+         */
+        synchronized int advance(int amount) {
+            amount = Math.min(amount, limit - done);
+            done += amount;
+            return amount;
+        }
+
+        /**
+         * Forgets the downloaded bytes of this part
+         *
+         * @return the amount of bytes discarded
+         */
+        synchronized int rollback() {
+            int amount = done - start;
+            done = start;
+            checksum = 0;
+            return amount;
+        }
+
+        /**
+         * @param now current time in nanoseconds
+         * @return the measured throughput of this part in bytes per nanosecond, zero if nothing
+         * was downloaded yet
+         */
+        synchronized double throughput(long now) {
+            return (double) (done - start) / (now - acquiredAt + 1);
+        }
+
+        /**
+         * Estimates the remaining time using the measured throughput of this part. A part which
+         * did not download anything yet is probably still connecting, it is ignored during
+         * {@link #CONNECT_GRACE_PERIOD} and then estimated with the average throughput.
+         *
+         * @param now        current time in nanoseconds
+         * @param throughput average throughput of a connection in bytes per nanosecond, zero if
+         *                   unknown
+         * @return the remaining time, or zero if is not worth splitting this part
+         */
+        synchronized double estimateRemainingTime(long now, double throughput) {
+            int remaining = limit - done;
+            if (remaining < MIN_STEAL_SIZE || verify || unbounded) return 0;
+
+            double elapsed = now - acquiredAt + 1;
+            if (done > start) return elapsed * remaining / (done - start);
+            if (elapsed < CONNECT_GRACE_PERIOD) return 0;
+
+            return throughput > 0 ? remaining / throughput : elapsed * remaining;
+        }
+
+        /**
+         * Splits this part in two halves, this part keeps the first one
+         *
+         * @return the second half or {@code null} if the remaining bytes are too few
+         */
+        synchronized Block split() {
+            int remaining = limit - done;
+            if (remaining < MIN_STEAL_SIZE) return null;
+
+            Block tail = new Block(position, resource, offset, done + remaining / 2, limit);
+            tail.head = head;
+            tail.next = next;
+            next = tail;
+            limit = tail.start;
+            head.pending++;
+
+            return tail;
+        }
+    }
+
+    /**
+     * Values of a mission loaded from {@link PendingMissionStore} which can not be calculated
+     * without the whole mission state
+     */
+    public static class Summary {
+        public long length;
+        public boolean initialized;
+        public boolean psFailed;
+
+        /**
+         * temporal directory for the post-processing algorithm, applied when the state is loaded
+         */
+        public File temporalDir;
     }
 
     private static class Lock implements Serializable {
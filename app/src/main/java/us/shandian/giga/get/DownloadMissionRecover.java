@@ -2,23 +2,20 @@ package us.shandian.giga.get;
 
 import android.util.Log;
 
-import org.schabi.newpipe.extractor.NewPipe;
-import org.schabi.newpipe.extractor.StreamingService;
 import org.schabi.newpipe.extractor.exceptions.ExtractionException;
 import org.schabi.newpipe.extractor.stream.AudioStream;
 import org.schabi.newpipe.extractor.stream.DeliveryMethod;
-import org.schabi.newpipe.extractor.stream.StreamExtractor;
 import org.schabi.newpipe.extractor.stream.SubtitlesStream;
 import org.schabi.newpipe.extractor.stream.VideoStream;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.net.HttpURLConnection;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.List;
 
 import us.shandian.giga.get.DownloadMission.HttpError;
 
+import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
 import static us.shandian.giga.get.DownloadMission.ERROR_RESOURCE_GONE;
 
 public class DownloadMissionRecover extends Thread {
@@ -30,9 +27,11 @@ public class DownloadMissionRecover extends Thread {
 
     private final int mErrCode;
 
-    private HttpURLConnection mConn;
+    private HttpConnection mConn;
     private MissionRecoveryInfo mRecovery;
-    private StreamExtractor mExtractor;
+    private int mResource;
+    private boolean mStale;
+    private StreamResolver.Streams mStreams;
 
     DownloadMissionRecover(DownloadMission mission, int errCode) {
         mMission = mission;
@@ -67,28 +66,51 @@ public class DownloadMissionRecover extends Thread {
     }
 
     private void tryRecover() throws ExtractionException, IOException, HttpError {
-        if (mExtractor == null) {
-            try {
-                StreamingService svr = NewPipe.getServiceByUrl(mMission.source);
-                mExtractor = svr.getStreamExtractor(mMission.source);
-                mExtractor.fetchPage();
-            } catch (ExtractionException e) {
-                mExtractor = null;
-                throw e;
+        if (mStreams == null) {
+            StreamResolver resolver = StreamResolver.getInstance();
+            StreamResolver.Streams streams = resolver.resolve(mMission.source);
+
+            // the shared streams contains the urls rejected by the server, extract again
+            if (mErrCode == ERROR_HTTP_FORBIDDEN && streams.containsAny(mMission.urls)) {
+                resolver.invalidate(mMission.source, streams);
+                streams = resolver.resolve(mMission.source);
             }
+
+            mStreams = streams;
         }
 
         // maybe the following check is redundant
         if (!mMission.running || super.isInterrupted()) return;
 
         if (!mNotInitialized) {
-            // set the current download url to null in case if the recovery
+            // if downloaded in parallel, all urls are resolved again
+            int first = mMission.isParallel() ? 0 : mMission.current;
+            int last = mMission.isParallel() ? mMission.urls.length - 1 : mMission.current;
+
+            // set the download urls to null in case if the recovery
             // process is canceled. Next time start() method is called the
             // recovery will be executed, saving time
-            mMission.urls[mMission.current] = null;
+            for (mResource = first; mResource <= last; mResource++) {
+                mMission.urls[mResource] = null;
+            }
 
-            mRecovery = mMission.recoveryInfo[mMission.current];
-            resolveStream();
+            for (mResource = first; mResource <= last; mResource++) {
+                mRecovery = mMission.recoveryInfo[mResource];
+                resolveStream();
+
+                if (!mMission.running || mMission.urls.length < 1) return;
+            }
+
+            if (mStale) {
+                mMission.resetState(false, false, DownloadMission.ERROR_NOTHING);
+            }
+
+            mMission.writeThisToFile();
+
+            if (!mMission.running || super.isInterrupted()) return;
+
+            mMission.running = false;
+            mMission.start();
             return;
         }
 
@@ -96,6 +118,7 @@ public class DownloadMissionRecover extends Thread {
 
         try {
             for (; mMission.current < mMission.urls.length; mMission.current++) {
+                mResource = mMission.current;
                 mRecovery = mMission.recoveryInfo[mMission.current];
 
                 if (test()) continue;
@@ -132,7 +155,7 @@ public class DownloadMissionRecover extends Thread {
 
         switch (mRecovery.getKind()) {
             case 'a':
-                for (final AudioStream audio : mExtractor.getAudioStreams()) {
+                for (final AudioStream audio : mStreams.audio) {
                     if (audio.getAverageBitrate() == mRecovery.getDesiredBitrate()
                             && audio.getFormat() == mRecovery.getFormat()
                             && audio.getDeliveryMethod() == DeliveryMethod.PROGRESSIVE_HTTP) {
@@ -144,9 +167,9 @@ public class DownloadMissionRecover extends Thread {
             case 'v':
                 final List<VideoStream> videoStreams;
                 if (mRecovery.isDesired2())
-                    videoStreams = mExtractor.getVideoOnlyStreams();
+                    videoStreams = mStreams.videoOnly;
                 else
-                    videoStreams = mExtractor.getVideoStreams();
+                    videoStreams = mStreams.video;
                 for (final VideoStream video : videoStreams) {
                     if (video.getResolution().equals(mRecovery.getDesired())
                             && video.getFormat() == mRecovery.getFormat()
@@ -157,8 +180,9 @@ public class DownloadMissionRecover extends Thread {
                 }
                 break;
             case 's':
-                for (final SubtitlesStream subtitles : mExtractor.getSubtitles(mRecovery
-                        .getFormat())) {
+                for (final SubtitlesStream subtitles : mStreams.subtitles) {
+                    if (subtitles.getFormat() != mRecovery.getFormat()) continue;
+
                     String tag = subtitles.getLanguageTag();
                     if (tag.equals(mRecovery.getDesired())
                             && subtitles.isAutoGenerated() == mRecovery.isDesired2()
@@ -188,8 +212,10 @@ public class DownloadMissionRecover extends Thread {
         ///////////////////////////////////////////////////////////////////////
         ////// Validate the http resource doing a range request
         /////////////////////
+        long length = mMission.isParallel() ? mMission.lengths[mResource] : mMission.length;
+
         try {
-            mConn = mMission.openConnection(url, true, mMission.length - 10, mMission.length);
+            mConn = mMission.openConnection(url, true, length - 10, length);
             mConn.setRequestProperty("If-Range", mRecovery.getValidateCondition());
             mMission.establishConnection(mID, mConn);
 
@@ -204,7 +230,7 @@ public class DownloadMissionRecover extends Thread {
                 case 206:
                     // in case of validation using the Last-Modified date, check the resource length
                     long[] contentRange = parseContentRange(mConn.getHeaderField("Content-Range"));
-                    boolean lengthMismatch = contentRange[2] != -1 && contentRange[2] != mMission.length;
+                    boolean lengthMismatch = contentRange[2] != -1 && contentRange[2] != length;
 
                     recover(url, lengthMismatch);
                     return;
@@ -221,7 +247,7 @@ public class DownloadMissionRecover extends Thread {
                 String.format("recover()  name=%s  isStale=%s  url=%s", mMission.storage.getName(), stale, url)
         );
 
-        mMission.urls[mMission.current] = url;
+        mMission.urls[mResource] = url;
 
         if (url == null) {
             mMission.urls = new String[0];
@@ -229,18 +255,8 @@ public class DownloadMissionRecover extends Thread {
             return;
         }
 
-        if (mNotInitialized) return;
-
-        if (stale) {
-            mMission.resetState(false, false, DownloadMission.ERROR_NOTHING);
-        }
-
-        mMission.writeThisToFile();
-
-        if (!mMission.running || super.isInterrupted()) return;
-
-        mMission.running = false;
-        mMission.start();
+        // the mission is restarted once all urls are resolved, see tryRecover() method
+        if (stale) mStale = true;
     }
 
     private long[] parseContentRange(String value) {
@@ -301,11 +317,7 @@ public class DownloadMissionRecover extends Thread {
 
     private void disconnect() {
         try {
-            try {
-                mConn.getInputStream().close();
-            } finally {
-                mConn.disconnect();
-            }
+            mConn.disconnect();
         } catch (Exception e) {
             // nothing to do
         } finally {
@@ -316,6 +328,8 @@ public class DownloadMissionRecover extends Thread {
     @Override
     public void interrupt() {
         super.interrupt();
-        if (mConn != null) disconnect();
+
+        HttpConnection conn = mConn;
+        if (conn != null) conn.cancel();
     }
 }
@@ -5,13 +5,17 @@ import android.util.Log;
 import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Objects;
 
 import us.shandian.giga.get.DownloadMission.Block;
 import us.shandian.giga.get.DownloadMission.HttpError;
+import us.shandian.giga.io.DirectBufferPool;
+import us.shandian.giga.util.Crc32c;
+import us.shandian.giga.util.Utility;
 
 import static org.schabi.newpipe.BuildConfig.DEBUG;
 import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
@@ -24,35 +28,42 @@ import static us.shandian.giga.get.DownloadMission.ERROR_HTTP_FORBIDDEN;
 public class DownloadRunnable extends Thread {
     private static final String TAG = "DownloadRunnable";
 
+    private static final DirectBufferPool BUFFERS = new DirectBufferPool(DownloadMission.BUFFER_SIZE, 16);
+
     private final DownloadMission mMission;
     private final int mId;
 
-    private HttpURLConnection mConn;
+    private HttpConnection mConn;
 
     DownloadRunnable(DownloadMission mission, int id) {
         mMission = Objects.requireNonNull(mission);
         mId = id;
     }
 
-    private void releaseBlock(Block block, long remain) {
-        // set the block offset to -1 if it is completed
-        mMission.releaseBlock(block.position, remain < 0 ? -1 : block.done);
-    }
-
     @Override
     public void run() {
         boolean retry = false;
         Block block = null;
         int retryCount = 0;
         SharpStream f;
+        FileChannel channel;
 
         try {
-            f = mMission.storage.getStream();
+            f = mMission.acquireOutput();
+            channel = f.getChannel();
+
+            if (channel == null) {
+                mMission.releaseOutput(f);
+                throw new IOException("positional writes are not supported by the storage");
+            }
         } catch (IOException e) {
             mMission.notifyError(e);// this never should happen
             return;
         }
 
+        ByteBuffer buffer = BUFFERS.acquire();
+        BandwidthLimiter limiter = BandwidthLimiter.getInstance();
+
         while (mMission.running && mMission.errCode == DownloadMission.ERROR_NOTHING) {
             if (!retry) {
                 block = mMission.acquireBlock();
@@ -65,32 +76,49 @@ public class DownloadRunnable extends Thread {
 
             if (DEBUG) {
                 if (retry)
-                    Log.d(TAG, mId + ":retry block at position=" + block.position + " from the start");
+                    Log.d(TAG, mId + ":retry block at position=" + block.position + " done=" + block.done);
                 else
-                    Log.d(TAG, mId + ":acquired block at position=" + block.position + " done=" + block.done);
+                    Log.d(TAG, mId + ":acquired block at position=" + block.position + " done=" + block.done + " limit=" + block.limit);
             }
 
-            long start = (long)block.position * DownloadMission.BLOCK_SIZE;
-            long end = start + DownloadMission.BLOCK_SIZE - 1;
+            if (block.verify && mMission.verifyBlock(block)) {
+                // the block in the file is intact, nothing to download
+                mMission.releaseBlock(block);
+                continue;
+            }
 
-            start += block.done;
+            if (copyFromCache(block, channel, buffer)) {
+                // the whole block was in the player cache
+                retry = false;
+                mMission.releaseBlock(block);
+                continue;
+            }
 
-            if (end >= mMission.length) {
-                end = mMission.length - 1;
+            boolean unplaced = mMission.isUnplaced(block);
+            if (unplaced && block.done > block.start) {
+                // the segment has no length, the response is written again from the start
+                mMission.notifyProgress(-block.rollback());
             }
 
+            long start = block.offset + block.done;
+            long end = block.offset + block.limit - 1;
+            long rangeStart = mMission.rangeStarts == null ? 0 : mMission.rangeStarts[block.resource];
+
             try {
-                mConn = mMission.openConnection(false, start, end);
+                if (unplaced) {
+                    // the length of the segment is learned from the response, see DownloadMission#placeSegment
+                    mConn = mMission.openConnection(mMission.urls[block.resource], false, -1, -1);
+                } else {
+                    mConn = mMission.openConnection(mMission.urls[block.resource], false, rangeStart + start, rangeStart + end);
+                }
                 mMission.establishConnection(mId, mConn);
 
                 // check if the download can be resumed
                 if (mConn.getResponseCode() == 416) {
-                    if (block.done > 0) {
-                        // try again from the start (of the block)
-                        mMission.notifyProgress(-block.done);
-                        block.done = 0;
+                    if (block.done > block.start) {
+                        // try again from the start (of the block part)
+                        mMission.notifyProgress(-block.rollback());
                         retry = true;
-                        mConn.disconnect();
                         continue;
                     }
 
@@ -99,8 +127,16 @@ public class DownloadRunnable extends Thread {
 
                 retry = false;
 
-                // The server may be ignoring the range request
-                if (mConn.getResponseCode() != 206) {
+                // The server may be ignoring the range request, the whole resource is the same
+                // as the requested range if the resource fits in the block (like small segments)
+                boolean whole = mMission.lengths != null && rangeStart == 0 && start == 0 && end == mMission.lengths[block.resource] - 1;
+                if (mMission.wholeSegments && block.start == 0 && mConn.getResponseCode() == 200) {
+                    // a segment is sent again from its start
+                    if (block.done > 0) mMission.notifyProgress(-block.rollback());
+                    start = 0;
+                    whole = true;
+                }
+                if (mConn.getResponseCode() != 206 && !(whole && mConn.getResponseCode() == 200)) {
                     if (DEBUG) {
                         Log.e(TAG, mId + ":Unsupported " + mConn.getResponseCode());
                     }
@@ -108,31 +144,41 @@ public class DownloadRunnable extends Thread {
                     break;
                 }
 
-                f.seek(mMission.offsets[mMission.current] + start);
+                if (unplaced && !mMission.placeSegment(block, Utility.getTotalContentLength(mConn))) {
+                    break;
+                }
 
-                try (InputStream is = mConn.getInputStream()) {
-                    byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
-                    int len;
+                long position = mMission.offsets[block.resource] + start;
+                int done = block.done;
 
-                    // use always start <= end
-                    // fixes a deadlock because in some videos, youtube is sending one byte alone
-                    while (start <= end && mMission.running && (len = is.read(buf, 0, buf.length)) != -1) {
-                        f.write(buf, 0, len);
-                        start += len;
-                        block.done += len;
-                        mMission.notifyProgress(len);
-                    }
+                try (ReadableByteChannel source = mConn.getChannel()) {
+                    transfer(source, channel, buffer, block, position, Long.MAX_VALUE, limiter);
                 }
 
+                // the segment without length ends with the response
+                if (block.unbounded && mMission.running) mMission.finishSegment(block);
+
                 if (DEBUG && mMission.running) {
-                    Log.d(TAG, mId + ":position " + block.position + " stopped " + start + "/" + end);
+                    Log.d(TAG, mId + ":position " + block.position + " stopped " + block.done + "/" + block.limit);
+                }
+
+                // the server closed the connection early, resume the block. Attempts without
+                // progress are retries, a server sending short (or empty) responses gives up
+                if (mMission.running && block.remaining() > 0) {
+                    if (block.done == done && retryCount++ >= mMission.maxRetry) {
+                        mMission.notifyError(new IOException("the server closed the connection without sending data"));
+                        break;
+                    }
+                    retry = true;
                 }
             } catch (Exception e) {
                 if (!mMission.running || e instanceof ClosedByInterruptException) break;
 
                 if (e instanceof HttpError && ((HttpError) e).statusCode == ERROR_HTTP_FORBIDDEN) {
                     // for youtube streams. The url has expired, recover
-                    f.close();
+                    mMission.releaseOutput(f);
+                    BUFFERS.release(buffer);
+                    retry = false;
 
                     if (mId == 1) {
                         // only the first thread will execute the recovery procedure
@@ -143,16 +189,23 @@ public class DownloadRunnable extends Thread {
 
                 if (retryCount++ >= mMission.maxRetry) {
                     mMission.notifyError(e);
+                    retry = false;
                     break;
                 }
 
                 retry = true;
             } finally {
-                if (!retry) releaseBlock(block, end - start);
+                // return the connection to the pool
+                mConn.disconnect();
+                if (!retry) mMission.releaseBlock(block);
             }
         }
 
-        f.close();
+        // the mission was stopped while retrying
+        if (retry) mMission.releaseBlock(block);
+
+        mMission.releaseOutput(f);
+        BUFFERS.release(buffer);
 
         if (DEBUG) {
             Log.d(TAG, "thread " + mId + " exited from main download loop");
@@ -170,12 +223,86 @@ public class DownloadRunnable extends Thread {
         }
     }
 
+    /**
+     * Writes the data of the source in the block
+     *
+     * @param source   the data
+     * @param channel  the file
+     * @param buffer   buffer used to copy the data
+     * @param block    the block to fill, the data is written after the downloaded part of it
+     * @param position where the data is written in the file
+     * @param amount   maximum amount of bytes to copy
+     * @param limiter  the bandwidth limiter, {@code null} if the source is not the network
+     */
+    private void transfer(ReadableByteChannel source, FileChannel channel, ByteBuffer buffer,
+                          Block block, long position, long amount, BandwidthLimiter limiter)
+            throws IOException {
+        int remain;
+        int len;
+
+        // the block limit can be shortened at any time by a thread stealing the tail,
+        // also fixes a deadlock because in some videos, youtube is sending one byte alone
+        while ((remain = (int) Math.min(block.remaining(), amount)) > 0 && mMission.running) {
+            int allowed = Math.min(remain, buffer.capacity());
+            if (limiter != null) allowed = limiter.acquire(allowed);
+
+            buffer.clear();
+            buffer.limit(allowed);
+
+            len = source.read(buffer);
+            if (limiter != null) limiter.release(allowed - Math.max(len, 0));
+
+            if (len == -1) break;
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+
+            len = block.advance(len);
+            block.checksum = Crc32c.update(block.checksum, buffer, 0, len);
+            amount -= len;
+
+            mMission.notifyProgress(len);
+        }
+    }
+
+    /**
+     * Copies the start of the block from the player cache, if was played recently. The rest of
+     * the block (if any) must be downloaded
+     *
+     * @return {@code true} if the whole block was copied, otherwise, {@code false}
+     */
+    private boolean copyFromCache(Block block, FileChannel channel, ByteBuffer buffer) {
+        PlayerCacheReader reader = mMission.getCacheReader(block.resource);
+        if (reader == null) return false;
+
+        long start = block.offset + block.done;
+        long length = reader.getCachedLength(start, block.remaining());
+        if (length < 1) return false;
+
+        long position = mMission.offsets[block.resource] + start;
+
+        try (ReadableByteChannel source = reader.open(start, length)) {
+            transfer(source, channel, buffer, block, position, length, null);
+        } catch (IOException e) {
+            // evicted while reading, download the remaining part
+            if (DEBUG) Log.w(TAG, mId + ":failed to read the player cache", e);
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, mId + ":position " + block.position + " copied from the player cache " + block.done + "/" + block.limit);
+        }
+
+        return block.remaining() < 1;
+    }
+
     @Override
     public void interrupt() {
         super.interrupt();
 
         try {
-            if (mConn != null) mConn.disconnect();
+            if (mConn != null) mConn.cancel();
         } catch (Exception e) {
             // nothing to do
         }
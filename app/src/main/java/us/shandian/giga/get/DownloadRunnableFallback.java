@@ -8,7 +8,6 @@ import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.nio.channels.ClosedByInterruptException;
 
 import us.shandian.giga.get.DownloadMission.HttpError;
@@ -28,7 +27,7 @@ public class DownloadRunnableFallback extends Thread {
     private int mRetryCount = 0;
     private InputStream mIs;
     private SharpStream mF;
-    private HttpURLConnection mConn;
+    private HttpConnection mConn;
 
     DownloadRunnableFallback(@NonNull DownloadMission mission) {
         mMission = mission;
@@ -83,8 +82,10 @@ public class DownloadRunnableFallback extends Thread {
                 mMission.unknownLength = Utility.getContentLength(mConn) == -1;
 
             if (mMission.unknownLength || mConn.getResponseCode() == 200) {
-                // restart amount of bytes downloaded
-                mMission.done = mMission.offsets[mMission.current] - mMission.offsets[0];
+                // restart amount of bytes downloaded, the response starts at the beginning
+                mMission.setProgress(mMission.offsets[mMission.current] - mMission.offsets[0]);
+                if (mMission.unknownLength) mMission.length = 0;
+                start = 0;
             }
 
             mF = mMission.storage.getStream();
@@ -95,7 +96,16 @@ public class DownloadRunnableFallback extends Thread {
             byte[] buf = new byte[DownloadMission.BUFFER_SIZE];
             int len = 0;
 
-            while (mMission.running && (len = mIs.read(buf, 0, buf.length)) != -1) {
+            BandwidthLimiter limiter = BandwidthLimiter.getInstance();
+
+            while (mMission.running) {
+                int allowed = limiter.acquire(buf.length);
+
+                len = mIs.read(buf, 0, allowed);
+                limiter.release(allowed - Math.max(len, 0));
+
+                if (len == -1) break;
+
                 mF.write(buf, 0, len);
                 start += len;
                 mMission.notifyProgress(len);
@@ -145,7 +155,7 @@ public class DownloadRunnableFallback extends Thread {
 
         if (mConn != null) {
             try {
-                mConn.disconnect();
+                mConn.cancel();
             } catch (Exception e) {
                 // nothing to do
             }
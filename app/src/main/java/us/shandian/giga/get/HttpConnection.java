@@ -0,0 +1,172 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.schabi.newpipe.DownloaderImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * HTTP connection used by the download engine, backed by the OkHttp client shared with
+ * {@link DownloaderImpl}. Connections are pooled and reused between block requests, TLS
+ * sessions are resumed and HTTP/2 is used if the server supports it.
+ * <p>
+ * Like {@link java.net.HttpURLConnection} the request is sent when the response is
+ * requested for the first time.
+ */
+public class HttpConnection {
+    private static final int CONNECT_TIMEOUT = 30;// seconds
+
+    private static OkHttpClient client;
+
+    private final String url;
+    private final boolean headRequest;
+    private final Headers.Builder headers = new Headers.Builder();
+
+    private volatile Call call;
+    private volatile Response response;
+
+    HttpConnection(@NonNull String url, boolean headRequest) {
+        this.url = url;
+        this.headRequest = headRequest;
+    }
+
+    /**
+     * Gets the client used by all downloads, shares the connection pool and the dispatcher
+     * with {@link DownloaderImpl}
+     *
+     * @return the client
+     */
+    static synchronized OkHttpClient getClient() {
+        if (client == null) {
+            DownloaderImpl downloader = DownloaderImpl.getInstance();
+            OkHttpClient.Builder builder = downloader == null ? new OkHttpClient.Builder() : downloader.getClient().newBuilder();
+
+            // BUG workaround: switching between networks can freeze the download forever
+            client = builder
+                    .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
+                    .followRedirects(true)
+                    .followSslRedirects(true)
+                    .build();
+        }
+
+        return client;
+    }
+
+    void setRequestProperty(@NonNull String name, @NonNull String value) {
+        headers.set(name, value);
+    }
+
+    @Nullable
+    String getRequestProperty(@NonNull String name) {
+        return headers.get(name);
+    }
+
+    private Response connect() throws IOException {
+        if (response != null) return response;
+
+        Request request = new Request.Builder()
+                .url(url)
+                .headers(headers.build())
+                .method(headRequest ? "HEAD" : "GET", null)
+                .build();
+
+        call = getClient().newCall(request);
+        response = call.execute();
+
+        return response;
+    }
+
+    /**
+     * Sends the request (if not sent yet) and gets the HTTP status code
+     *
+     * @return the HTTP status code
+     * @throws IOException if an error occurred connecting to the server
+     */
+    public int getResponseCode() throws IOException {
+        return connect().code();
+    }
+
+    /**
+     * Gets the value of a response header
+     *
+     * @param name the header name
+     * @return the value or {@code null} if the header is not present or the request was not sent
+     */
+    @Nullable
+    public String getHeaderField(@NonNull String name) {
+        Response response = this.response;
+        return response == null ? null : response.header(name);
+    }
+
+    /**
+     * Gets the value of the {@code Content-Length} header
+     *
+     * @return the content length or -1 if is unknown
+     */
+    public long getContentLength() {
+        try {
+            return Long.parseLong(getHeaderField("Content-Length"));
+        } catch (Exception err) {
+            // nothing to do
+        }
+
+        return -1;
+    }
+
+    InputStream getInputStream() throws IOException {
+        ResponseBody body = connect().body();
+        if (body == null) throw new IOException("The response has no body");
+
+        return body.byteStream();
+    }
+
+    /**
+     * Gets the response body as a channel, so it can be read into any
+     * {@link java.nio.ByteBuffer} (like a direct one) without the intermediate array of
+     * {@link #getInputStream()}. The data is still buffered by Okio in heap segments
+     *
+     * @return the response body
+     * @throws IOException if an error occurred connecting to the server
+     */
+    ReadableByteChannel getChannel() throws IOException {
+        ResponseBody body = connect().body();
+        if (body == null) throw new IOException("The response has no body");
+
+        return body.source();
+    }
+
+    /**
+     * Releases the connection, the connection is reused if the response body was
+     * fully read
+     */
+    void disconnect() {
+        Response response = this.response;
+        if (response == null) return;
+
+        try {
+            response.close();
+        } catch (Exception e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Aborts the request and any read in progress, can be called from any thread
+     */
+    void cancel() {
+        Call call = this.call;
+        if (call != null) call.cancel();
+    }
+}
@@ -0,0 +1,170 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Append-only journal of released blocks, stored next to the mission metadata file.
+ * Every entry holds a block index and its offset (-1 if the block is fully downloaded),
+ * the entries are applied over the last saved mission state when the mission is loaded.
+ * A fully downloaded block is preceded by an entry with its checksum, that entry has the
+ * highest bit of the block index set (older versions skip it).
+ * <p>
+ * The header holds the generation of the mission state where the journal starts, any
+ * journal with a different generation is stale and ignored.
+ */
+public class MissionJournal {
+    public static final String SUFFIX = ".journal";
+
+    /**
+     * amount of entries before the journal is compacted into the mission metadata file
+     */
+    static final int COMPACT_THRESHOLD = 1024;
+
+    private static final int MAGIC = 0x4E504A31;// "NPJ1"
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_SIZE = 8;
+    private static final int CHECKSUM_FLAG = 0x80000000;
+
+    private final File file;
+    private final byte[] entry = new byte[ENTRY_SIZE * 2];
+
+    private FileOutputStream out;
+    private int entries;
+
+    MissionJournal(@NonNull File metadata) {
+        file = new File(metadata.getPath() + SUFFIX);
+    }
+
+    /**
+     * Discards all entries and starts a new journal
+     *
+     * @param generation generation of the mission state just saved
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void reset(long generation) throws IOException {
+        close();
+        out = new FileOutputStream(file, false);
+        writeHeader(generation);
+    }
+
+    /**
+     * Appends a released block
+     *
+     * @param generation generation of the last saved mission state
+     * @param position   the index of the block
+     * @param offset     the block offset
+     * @param checksum   the checksum of the block if fully downloaded, otherwise, -1
+     * @return the amount of entries in the journal
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized int append(long generation, int position, int offset, long checksum) throws IOException {
+        if (out == null) {
+            out = new FileOutputStream(file, true);
+            if (file.length() < HEADER_SIZE) {
+                out.getChannel().truncate(0);
+                writeHeader(generation);
+            } else {
+                entries = (int) ((file.length() - HEADER_SIZE) / ENTRY_SIZE);
+            }
+        }
+
+        int length = 0;
+
+        if (offset < 0 && checksum >= 0) {
+            writeInt(position | CHECKSUM_FLAG, 0);
+            writeInt((int) checksum, 4);
+            length += ENTRY_SIZE;
+            entries++;
+        }
+
+        writeInt(position, length);
+        writeInt(offset, length + 4);
+        out.write(entry, 0, length + ENTRY_SIZE);
+
+        return ++entries;
+    }
+
+    synchronized void close() {
+        if (out == null) return;
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+
+        out = null;
+        entries = 0;
+    }
+
+    synchronized boolean delete() {
+        close();
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * Applies the journal entries to the given blocks
+     *
+     * @param generation generation of the loaded mission state
+     * @param blocks     blocks of the loaded mission state
+     * @param checksums  checksums of the blocks of the loaded mission state
+     * @param replayed   where the index of every block found in the journal is set
+     * @return the amount of entries applied
+     */
+    synchronized int replay(long generation, @NonNull int[] blocks, @NonNull long[] checksums, @NonNull BitSet replayed) {
+        if (!file.exists()) return 0;
+
+        int applied = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readLong() != generation) return 0;
+
+            while (true) {
+                int position = in.readInt();
+                int offset = in.readInt();
+
+                if ((position & CHECKSUM_FLAG) != 0) {
+                    position &= ~CHECKSUM_FLAG;
+                    if (position < checksums.length) checksums[position] = offset & 0xFFFFFFFFL;
+                    continue;
+                }
+
+                if (position >= blocks.length) continue;
+
+                blocks[position] = offset;
+                replayed.set(position);
+                applied++;
+            }
+        } catch (EOFException e) {
+            // reached the end of the journal, an incomplete entry is ignored
+        } catch (IOException e) {
+            // nothing to do, use whatever was read
+        }
+
+        return applied;
+    }
+
+    private void writeHeader(long generation) throws IOException {
+        writeInt(MAGIC, 0);
+        writeInt((int) (generation >>> 32), 4);
+        writeInt((int) generation, 8);
+        out.write(entry, 0, HEADER_SIZE);
+        entries = 0;
+    }
+
+    private void writeInt(int value, int offset) {
+        entry[offset] = (byte) (value >>> 24);
+        entry[offset + 1] = (byte) (value >>> 16);
+        entry[offset + 2] = (byte) (value >>> 8);
+        entry[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,148 @@
+package us.shandian.giga.get;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Tracks the contiguous downloaded range of every resource of a parallel mission, so the
+ * post-processing can consume the resources while they are being downloaded.
+ * <p>
+ * The post-processing writes the result over the data already consumed, the highest offset
+ * handed to the writer is recorded. If the download is stopped before finishing, every block
+ * below that offset must be downloaded again.
+ */
+public class MissionPipeline {
+    private final int[] blocks;
+    private final int[] resources;
+    private final long[] lengths;
+
+    /**
+     * position of every block, by resource and by index in the resource
+     */
+    private final int[][] positions;
+
+    /**
+     * amount of leading blocks of every resource fully downloaded
+     */
+    private final int[] ready;
+
+    private volatile long overwritten;
+    private boolean finished;
+    private boolean cancelled;
+
+    MissionPipeline(int[] blocks, int[] resources, int[] indexes, long[] lengths) {
+        this.blocks = blocks;
+        this.resources = resources;
+        this.lengths = lengths;
+
+        int[] counts = new int[lengths.length];
+        for (int resource : resources) counts[resource]++;
+
+        positions = new int[lengths.length][];
+        for (int i = 0; i < positions.length; i++) positions[i] = new int[counts[i]];
+        for (int i = 0; i < resources.length; i++) positions[resources[i]][indexes[i]] = i;
+
+        ready = new int[lengths.length];
+        for (int i = 0; i < ready.length; i++) advance(i);
+    }
+
+    private void advance(int resource) {
+        int[] order = positions[resource];
+        while (ready[resource] < order.length && blocks[order[ready[resource]]] < 0) {
+            ready[resource]++;
+        }
+    }
+
+    private long getAvailable(int resource) {
+        return Math.min((long) ready[resource] * DownloadMission.BLOCK_SIZE, lengths[resource]);
+    }
+
+    /**
+     * Called after the block was fully written in the file
+     *
+     * @param position the index of the block
+     */
+    synchronized void blockDone(int position) {
+        advance(resources[position]);
+        notifyAll();
+    }
+
+    /**
+     * Called once all resources are downloaded
+     */
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Stops any wait, used when the download is stopped before finishing
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Waits until the resource is downloaded up to the given offset
+     *
+     * @param resource the index of the resource
+     * @param end      offset, relative to the start of the resource
+     * @return the amount of contiguous bytes available from the start of the resource
+     * @throws InterruptedIOException if the download was stopped
+     */
+    public synchronized long await(int resource, long end) throws InterruptedIOException {
+        end = Math.min(end, lengths[resource]);
+
+        while (true) {
+            if (cancelled) throw new InterruptedIOException("the download was stopped");
+
+            long available = getAvailable(resource);
+            if (available >= end) return available;
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for the download");
+            }
+        }
+    }
+
+    /**
+     * Waits until all resources are downloaded and the download threads are done
+     *
+     * @throws InterruptedIOException if the download was stopped
+     */
+    public synchronized void awaitFinish() throws InterruptedIOException {
+        while (!finished) {
+            if (cancelled) throw new InterruptedIOException("the download was stopped");
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for the download");
+            }
+        }
+    }
+
+    /**
+     * Records the offset in the file where the post-processing can write, must be called
+     * before writing
+     *
+     * @param offset absolute offset in the file, {@link Long#MAX_VALUE} for the whole file
+     */
+    public void setOverwritten(long offset) {
+        if (offset > overwritten) overwritten = offset;
+    }
+
+    /**
+     * @return absolute offset in the file where the data written by the download ends being
+     * valid, anything before can be overwritten by the post-processing
+     */
+    long getOverwritten() {
+        return overwritten;
+    }
+}
@@ -0,0 +1,62 @@
+package us.shandian.giga.get;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.exoplayer2.upstream.DataSourceInputStream;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.PlaceholderDataSource;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the bytes of a resource already stored in the player cache, the same key used by the
+ * player is required (see {@code PlaybackResolver.cacheKeyOf()}). The cache only has the
+ * ranges played recently, any gap must be downloaded.
+ */
+class PlayerCacheReader {
+    private final Cache cache;
+    private final String key;
+
+    PlayerCacheReader(@NonNull Cache cache, @NonNull String key) {
+        this.cache = cache;
+        this.key = key;
+    }
+
+    /**
+     * Gets the amount of contiguous bytes in the cache
+     *
+     * @param position offset in the resource
+     * @param length   maximum amount of bytes
+     * @return amount of bytes stored starting at the position, zero if the position is not cached
+     */
+    long getCachedLength(long position, long length) {
+        return Math.max(cache.getCachedLength(key, position, length), 0);
+    }
+
+    /**
+     * Opens a range of the resource, the whole range must be cached, see {@link #getCachedLength(long, long)}
+     *
+     * @param position offset in the resource
+     * @param length   amount of bytes to read
+     * @return the cached data, must be closed
+     */
+    ReadableByteChannel open(long position, long length) {
+        // without upstream, reading anything evicted meanwhile fails instead of going to the network
+        CacheDataSource source = new CacheDataSource(cache, PlaceholderDataSource.INSTANCE, 0);
+        DataSpec spec = new DataSpec.Builder()
+                .setUri(Uri.EMPTY)
+                .setKey(key)
+                .setPosition(position)
+                .setLength(length)
+                .build();
+
+        InputStream stream = new DataSourceInputStream(source, spec);
+        return Channels.newChannel(stream);
+    }
+}
@@ -0,0 +1,187 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Segment index ({@code sidx} box) of a fragmented MPEG-4 (DASH) file. Maps a time range to
+ * the bytes of the fragments, used to download a clip without downloading the whole file.
+ * <p>
+ * The file is read from the start up to the index, the data before the index (ftyp, moov) is
+ * the header required to demux the fragments.
+ */
+public final class SegmentIndex {
+    private static final int ATOM_SIDX = 0x73696478;
+    private static final int ATOM_MOOF = 0x6D6F6F66;
+    private static final int ATOM_MDAT = 0x6D646174;
+
+    /**
+     * maximum size of the boxes before the index, anything bigger is not a DASH header
+     */
+    private static final long HEADER_MAXIMUM = 8 * 1024 * 1024;// 8 MiB
+
+    /**
+     * Length of the data before the index, starting at zero
+     */
+    public final long headerLength;
+
+    /**
+     * Offset in the file of the first fragment
+     */
+    public final long anchor;
+
+    public final long timescale;
+    public final long earliestTime;
+
+    /**
+     * size in bytes and duration (in {@link #timescale} units) of every fragment
+     */
+    final long[] sizes;
+    final long[] durations;
+
+    private SegmentIndex(long headerLength, long anchor, long timescale, long earliestTime,
+                         long[] sizes, long[] durations) {
+        this.headerLength = headerLength;
+        this.anchor = anchor;
+        this.timescale = timescale;
+        this.earliestTime = earliestTime;
+        this.sizes = sizes;
+        this.durations = durations;
+    }
+
+    /**
+     * Reads the boxes of the file up to the index, the stream is not closed and is left
+     * positioned after the index
+     *
+     * @param stream the file, from the start
+     * @return the index
+     * @throws SegmentManifest.UnsupportedManifestException if the file has no index
+     * @throws IOException                                  if the file is malformed
+     */
+    @NonNull
+    public static SegmentIndex read(@NonNull InputStream stream) throws IOException {
+        DataInputStream data = new DataInputStream(stream);
+        long offset = 0;
+
+        while (true) {
+            long size = data.readInt() & 0xFFFFFFFFL;
+            int type = data.readInt();
+            int header = 8;
+
+            if (size == 1) {
+                size = data.readLong();
+                header += 8;
+            }
+            if (size < header) throw new IOException("invalid box size at " + offset);
+
+            if (type == ATOM_SIDX) {
+                return parseSidx(data, offset, offset + size);
+            }
+            if (type == ATOM_MOOF || type == ATOM_MDAT || offset + size > HEADER_MAXIMUM) {
+                throw new SegmentManifest.UnsupportedManifestException("the file has no segment index");
+            }
+
+            skip(data, size - header);
+            offset += size;
+        }
+    }
+
+    private static SegmentIndex parseSidx(DataInputStream data, long start, long end) throws IOException {
+        int version = data.readUnsignedByte();
+        skip(data, 3);// flags
+        skip(data, 4);// reference id
+
+        long timescale = data.readInt() & 0xFFFFFFFFL;
+        long earliestTime;
+        long firstOffset;
+
+        if (version == 0) {
+            earliestTime = data.readInt() & 0xFFFFFFFFL;
+            firstOffset = data.readInt() & 0xFFFFFFFFL;
+        } else {
+            earliestTime = data.readLong();
+            firstOffset = data.readLong();
+        }
+
+        skip(data, 2);// reserved
+        int count = data.readUnsignedShort();
+
+        if (timescale < 1 || count < 1) throw new IOException("empty segment index");
+
+        long[] sizes = new long[count];
+        long[] durations = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            int reference = data.readInt();
+            if (reference < 0) {
+                throw new SegmentManifest.UnsupportedManifestException("hierarchical segment index");
+            }
+
+            sizes[i] = reference;
+            durations[i] = data.readInt() & 0xFFFFFFFFL;
+            skip(data, 4);// SAP
+        }
+
+        return new SegmentIndex(start, end + firstOffset, timescale, earliestTime, sizes, durations);
+    }
+
+    private static void skip(DataInputStream data, long amount) throws IOException {
+        while (amount > 0) {
+            int skipped = data.skipBytes((int) Math.min(amount, Integer.MAX_VALUE));
+            if (skipped < 1) throw new EOFException();
+            amount -= skipped;
+        }
+    }
+
+    /**
+     * Gets the fragments covering the time range, the clip starts at the fragment boundary
+     * before the requested start
+     *
+     * @param start start of the clip, in milliseconds
+     * @param end   end of the clip, in milliseconds
+     * @return the offset in the file of the first byte and the offset after the last byte
+     */
+    @NonNull
+    public long[] getRange(long start, long end) {
+        if (end <= start) throw new IllegalArgumentException("empty time range");
+
+        long startTime = toTimescale(start);
+        long endTime = toTimescale(end);
+
+        long time = earliestTime;
+        long offset = anchor;
+        long rangeStart = -1;
+        long rangeEnd = -1;
+
+        for (int i = 0; i < sizes.length; i++) {
+            long next = time + durations[i];
+
+            if (rangeStart < 0 && (next > startTime || i == sizes.length - 1)) rangeStart = offset;
+
+            offset += sizes[i];
+            time = next;
+
+            if (rangeStart >= 0 && time >= endTime) {
+                rangeEnd = offset;
+                break;
+            }
+        }
+
+        if (rangeEnd < 0) rangeEnd = offset;// the clip ends after the last fragment
+
+        return new long[]{rangeStart, rangeEnd};
+    }
+
+    /**
+     * @param time time in milliseconds, {@link Long#MAX_VALUE} for the end of the file
+     * @return the time in the timescale of the index, saturated instead of overflowing
+     */
+    private long toTimescale(long time) {
+        if (time >= Long.MAX_VALUE / timescale) return Long.MAX_VALUE;
+        return earliestTime + time * timescale / 1000;
+    }
+}
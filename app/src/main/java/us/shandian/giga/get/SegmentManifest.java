@@ -0,0 +1,433 @@
+package us.shandian.giga.get;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Parses HLS playlists and DASH manifests (VOD only) into the list of segment urls, the
+ * initialization segment (if any) goes first. The segments concatenated in order are the
+ * stream, so every segment can be downloaded as a resource of a parallel mission.
+ */
+public final class SegmentManifest {
+
+    /**
+     * Loads the content of a manifest, used for the variant playlists referenced by an
+     * HLS master playlist
+     */
+    public interface Loader {
+        String load(String url) throws IOException;
+    }
+
+    /**
+     * The manifest is well-formed but describes something that can not be downloaded as a
+     * list of segments (live streams, encrypted segments, byte ranges, etc.)
+     */
+    public static class UnsupportedManifestException extends IOException {
+        UnsupportedManifestException(String message) {
+            super(message);
+        }
+    }
+
+    private static final Pattern HLS_ATTRIBUTE = Pattern.compile("([A-Z0-9-]+)=(\"[^\"]*\"|[^,]*)");
+    private static final Pattern DASH_IDENTIFIER = Pattern.compile("\\$(RepresentationID|Number|Time|Bandwidth)?(%0(\\d+)d)?\\$");
+    private static final Pattern ISO_DURATION = Pattern.compile("^P(?:(\\d+)D)?(?:T(?:(\\d+)H)?(?:(\\d+)M)?(?:([\\d.]+)S)?)?$");
+
+    private SegmentManifest() {
+    }
+
+    /**
+     * Checks if the response is a manifest
+     *
+     * @param url         the requested url
+     * @param contentType the {@code Content-Type} header of the response, can be {@code null}
+     * @return {@code true} if the response must be parsed with {@link #parse(String, String, Loader)}
+     */
+    public static boolean isManifest(@NonNull String url, @Nullable String contentType) {
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.ROOT);
+            if (type.contains("mpegurl") || type.contains("dash+xml")) return true;
+            if (!type.startsWith("text/") && !type.startsWith("application/octet-stream")) return false;
+        }
+
+        String path = url.toLowerCase(Locale.ROOT);
+        int query = path.indexOf('?');
+        if (query >= 0) path = path.substring(0, query);
+
+        return path.endsWith(".m3u8") || path.endsWith(".m3u") || path.endsWith(".mpd");
+    }
+
+    /**
+     * Gets the segments of a manifest
+     *
+     * @param url     the url of the manifest, relative urls are resolved against it
+     * @param content the manifest
+     * @param loader  used to load the variant playlists
+     * @return the urls of all segments, in order
+     * @throws UnsupportedManifestException if the stream can not be downloaded
+     * @throws IOException                  if the manifest is malformed or can not be loaded
+     */
+    @NonNull
+    public static List<String> parse(@NonNull String url, @NonNull String content, @NonNull Loader loader)
+            throws IOException {
+        String text = content.trim();
+
+        if (text.startsWith("#EXTM3U")) return parseHls(url, text, loader);
+        if (text.startsWith("<")) return parseDash(url, text);
+
+        throw new IOException("unknown manifest format");
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="HLS">
+    private static List<String> parseHls(String url, String content, Loader loader) throws IOException {
+        String[] lines = content.split("\r?\n");
+
+        // master playlist, use the variant with the highest bandwidth
+        String variant = null;
+        long bandwidth = -1;
+
+        for (int i = 0; i < lines.length; i++) {
+            if (!lines[i].startsWith("#EXT-X-STREAM-INF:")) continue;
+
+            String value = getHlsAttribute(lines[i], "BANDWIDTH");
+            long current = value == null ? 0 : Long.parseLong(value);
+
+            // the uri is in the next line, after any comment
+            for (int j = i + 1; j < lines.length; j++) {
+                String line = lines[j].trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                if (current > bandwidth) {
+                    bandwidth = current;
+                    variant = resolve(url, line);
+                }
+                break;
+            }
+        }
+
+        if (variant != null) {
+            String playlist = loader.load(variant).trim();
+            if (playlist.contains("#EXT-X-STREAM-INF:"))
+                throw new IOException("nested master playlist");
+
+            return parseHls(variant, playlist, loader);
+        }
+
+        List<String> segments = new ArrayList<>();
+        boolean ended = false;
+
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            if (!line.startsWith("#")) {
+                segments.add(resolve(url, line));
+            } else if (line.startsWith("#EXT-X-MAP:")) {
+                if (getHlsAttribute(line, "BYTERANGE") != null)
+                    throw new UnsupportedManifestException("byte range initialization segment");
+
+                String uri = getHlsAttribute(line, "URI");
+                if (uri == null) throw new IOException("initialization segment without uri");
+
+                if (segments.isEmpty()) {
+                    segments.add(resolve(url, uri));
+                } else if (!segments.get(0).equals(resolve(url, uri))) {
+                    throw new UnsupportedManifestException("multiple initialization segments");
+                }
+            } else if (line.startsWith("#EXT-X-BYTERANGE:")) {
+                throw new UnsupportedManifestException("byte range segments");
+            } else if (line.startsWith("#EXT-X-KEY:")) {
+                if (!"NONE".equals(getHlsAttribute(line, "METHOD")))
+                    throw new UnsupportedManifestException("encrypted segments");
+            } else if (line.equals("#EXT-X-ENDLIST") || line.equals("#EXT-X-PLAYLIST-TYPE:VOD")) {
+                ended = true;
+            }
+        }
+
+        if (!ended) throw new UnsupportedManifestException("live playlist");
+        if (segments.isEmpty()) throw new IOException("empty playlist");
+
+        return segments;
+    }
+
+    @Nullable
+    private static String getHlsAttribute(String line, String name) {
+        Matcher matcher = HLS_ATTRIBUTE.matcher(line.substring(line.indexOf(':') + 1));
+
+        while (matcher.find()) {
+            if (!matcher.group(1).equals(name)) continue;
+
+            String value = matcher.group(2);
+            if (value.startsWith("\"")) value = value.substring(1, value.length() - 1);
+
+            return value;
+        }
+
+        return null;
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="DASH">
+    private static List<String> parseDash(String url, String content) throws IOException {
+        Document document;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            document = factory.newDocumentBuilder()
+                    .parse(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new IOException("malformed manifest", e);
+        }
+
+        Element mpd = document.getDocumentElement();
+        if (!"MPD".equals(getName(mpd))) throw new IOException("not a DASH manifest");
+        if ("dynamic".equals(mpd.getAttribute("type"))) throw new UnsupportedManifestException("live manifest");
+
+        List<Element> periods = getChildren(mpd, "Period");
+        if (periods.size() != 1) throw new UnsupportedManifestException("multi-period manifest");
+
+        Element period = periods.get(0);
+        String duration = period.getAttribute("duration");
+        if (duration.isEmpty()) duration = mpd.getAttribute("mediaPresentationDuration");
+
+        // use the representation with the highest bandwidth
+        Element adaptation = null;
+        Element representation = null;
+        long bandwidth = -1;
+
+        for (Element set : getChildren(period, "AdaptationSet")) {
+            for (Element item : getChildren(set, "Representation")) {
+                long value = parseLong(item.getAttribute("bandwidth"), 0);
+                if (value > bandwidth) {
+                    bandwidth = value;
+                    adaptation = set;
+                    representation = item;
+                }
+            }
+        }
+
+        if (representation == null) throw new IOException("no representation found");
+
+        String base = resolveBaseUrl(url, mpd);
+        base = resolveBaseUrl(base, period);
+        base = resolveBaseUrl(base, adaptation);
+        base = resolveBaseUrl(base, representation);
+
+        Element list = getChild(representation, "SegmentList");
+        if (list == null) list = getChild(adaptation, "SegmentList");
+
+        Element template = getChild(representation, "SegmentTemplate");
+        Element inherited = getChild(adaptation, "SegmentTemplate");
+        if (template == null) {
+            template = inherited;
+            inherited = null;
+        }
+
+        List<String> segments = new ArrayList<>();
+
+        if (list != null) {
+            Element init = getChild(list, "Initialization");
+            if (init != null) {
+                if (!init.getAttribute("range").isEmpty())
+                    throw new UnsupportedManifestException("byte range initialization segment");
+                segments.add(resolve(base, init.getAttribute("sourceURL")));
+            }
+
+            for (Element segment : getChildren(list, "SegmentURL")) {
+                if (!segment.getAttribute("mediaRange").isEmpty())
+                    throw new UnsupportedManifestException("byte range segments");
+
+                String media = segment.getAttribute("media");
+                segments.add(media.isEmpty() ? base : resolve(base, media));
+            }
+        } else if (template != null) {
+            parseDashTemplate(template, inherited, representation, base, duration, segments);
+        } else {
+            // SegmentBase or nothing, the representation is a single file
+            segments.add(base);
+        }
+
+        if (segments.isEmpty()) throw new IOException("empty manifest");
+
+        return segments;
+    }
+
+    private static void parseDashTemplate(Element template, @Nullable Element inherited,
+                                          Element representation, String base, String duration,
+                                          List<String> segments) throws IOException {
+        String id = representation.getAttribute("id");
+        long bandwidth = parseLong(representation.getAttribute("bandwidth"), 0);
+        long timescale = parseLong(getAttribute(template, inherited, "timescale"), 1);
+        long number = parseLong(getAttribute(template, inherited, "startNumber"), 1);
+        String media = getAttribute(template, inherited, "media");
+        String initialization = getAttribute(template, inherited, "initialization");
+
+        if (media.isEmpty()) throw new IOException("segment template without media");
+        if (!initialization.isEmpty()) {
+            segments.add(resolve(base, replaceIdentifiers(initialization, id, bandwidth, 0, 0)));
+        }
+
+        long end = (long) Math.ceil(parseIsoDuration(duration) * timescale);
+
+        Element timeline = getChild(template, "SegmentTimeline");
+        if (timeline == null && inherited != null) timeline = getChild(inherited, "SegmentTimeline");
+
+        if (timeline != null) {
+            long time = 0;
+            List<Element> entries = getChildren(timeline, "S");
+
+            for (int i = 0; i < entries.size(); i++) {
+                Element entry = entries.get(i);
+                if (!entry.getAttribute("t").isEmpty()) time = parseLong(entry.getAttribute("t"), 0);
+
+                long length = parseLong(entry.getAttribute("d"), 0);
+                long repeat = parseLong(entry.getAttribute("r"), 0);
+                if (length < 1) throw new IOException("invalid segment duration");
+
+                if (repeat < 0) {
+                    // repeat until the next entry or the end of the period
+                    long limit = end;
+                    if (i + 1 < entries.size() && !entries.get(i + 1).getAttribute("t").isEmpty()) {
+                        limit = parseLong(entries.get(i + 1).getAttribute("t"), 0);
+                    }
+                    if (limit < 1) throw new UnsupportedManifestException("unknown period duration");
+
+                    repeat = (limit - time + length - 1) / length - 1;
+                }
+
+                for (long j = 0; j <= repeat; j++, time += length, number++) {
+                    segments.add(resolve(base, replaceIdentifiers(media, id, bandwidth, number, time)));
+                }
+            }
+        } else {
+            long length = parseLong(getAttribute(template, inherited, "duration"), 0);
+            if (length < 1 || end < 1) throw new UnsupportedManifestException("unknown segment count");
+
+            long count = (end + length - 1) / length;
+            for (long j = 0; j < count; j++, number++) {
+                segments.add(resolve(base, replaceIdentifiers(media, id, bandwidth, number, j * length)));
+            }
+        }
+    }
+
+    static String replaceIdentifiers(String template, String id, long bandwidth, long number, long time) {
+        Matcher matcher = DASH_IDENTIFIER.matcher(template);
+        StringBuilder result = new StringBuilder(template.length() + 16);
+        int last = 0;
+
+        while (matcher.find()) {
+            result.append(template, last, matcher.start());
+            last = matcher.end();
+
+            String identifier = matcher.group(1);
+            String value;
+
+            if (identifier == null) {
+                value = "$";// escaped dollar sign "$$"
+            } else if (identifier.equals("RepresentationID")) {
+                value = id;
+            } else {
+                long variable = identifier.equals("Number") ? number : identifier.equals("Time") ? time : bandwidth;
+                value = String.valueOf(variable);
+
+                if (matcher.group(3) != null) {
+                    int width = Integer.parseInt(matcher.group(3));
+                    StringBuilder padded = new StringBuilder(width);
+                    for (int i = value.length(); i < width; i++) padded.append('0');
+                    value = padded.append(value).toString();
+                }
+            }
+
+            result.append(value);
+        }
+
+        return result.append(template, last, template.length()).toString();
+    }
+
+    /**
+     * Parses an ISO 8601 duration like {@code PT1H2M3.5S}
+     *
+     * @return the duration in seconds, 0 if is empty
+     */
+    static double parseIsoDuration(String duration) throws IOException {
+        if (duration.isEmpty()) return 0;
+
+        Matcher matcher = ISO_DURATION.matcher(duration.trim());
+        if (!matcher.matches()) throw new IOException("invalid duration " + duration);
+
+        double seconds = 0;
+        if (matcher.group(1) != null) seconds += Long.parseLong(matcher.group(1)) * 86400;
+        if (matcher.group(2) != null) seconds += Long.parseLong(matcher.group(2)) * 3600;
+        if (matcher.group(3) != null) seconds += Long.parseLong(matcher.group(3)) * 60;
+        if (matcher.group(4) != null) seconds += Double.parseDouble(matcher.group(4));
+
+        return seconds;
+    }
+
+    private static String getAttribute(Element element, @Nullable Element inherited, String name) {
+        String value = element.getAttribute(name);
+        if (value.isEmpty() && inherited != null) value = inherited.getAttribute(name);
+        return value;
+    }
+
+    private static String resolveBaseUrl(String url, Element element) throws IOException {
+        Element base = getChild(element, "BaseURL");
+        return base == null ? url : resolve(url, base.getTextContent().trim());
+    }
+
+    private static String getName(Node node) {
+        String name = node.getLocalName();
+        return name == null ? node.getNodeName() : name;
+    }
+
+    @Nullable
+    private static Element getChild(Element parent, String name) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && name.equals(getName(node))) return (Element) node;
+        }
+        return null;
+    }
+
+    private static List<Element> getChildren(Element parent, String name) {
+        List<Element> children = new ArrayList<>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && name.equals(getName(node))) children.add((Element) node);
+        }
+        return children;
+    }
+
+    private static long parseLong(String value, long defaultValue) throws IOException {
+        if (value == null || value.isEmpty()) return defaultValue;
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid number " + value, e);
+        }
+    }
+    //</editor-fold>
+
+    private static String resolve(String base, String url) throws IOException {
+        try {
+            return new URL(new URL(base), url).toString();
+        } catch (MalformedURLException e) {
+            throw new IOException("invalid url " + url, e);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package us.shandian.giga.get;
+
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.schabi.newpipe.extractor.NewPipe;
+import org.schabi.newpipe.extractor.StreamingService;
+import org.schabi.newpipe.extractor.exceptions.ExtractionException;
+import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.Stream;
+import org.schabi.newpipe.extractor.stream.StreamExtractor;
+import org.schabi.newpipe.extractor.stream.SubtitlesStream;
+import org.schabi.newpipe.extractor.stream.VideoStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Resolves the streams of a source again, used by {@link DownloadMissionRecover} when the urls
+ * of a mission expire. The result is shared by all missions of the same source until the urls
+ * expire, concurrent requests of the same source wait for a single extraction and only a few
+ * extractions run at the same time. Many missions recovering at once (after the device sleeps)
+ * do not extract the same page many times or flood the service.
+ */
+final class StreamResolver {
+    private static final String TAG = "StreamResolver";
+
+    /**
+     * maximum extractions running at the same time
+     */
+    private static final int MAX_EXTRACTIONS = 2;
+
+    /**
+     * maximum amount of sources stored
+     */
+    private static final int MAX_ENTRIES = 64;
+
+    /**
+     * lifetime of the streams if the urls does not have an expiration date
+     */
+    private static final long DEFAULT_LIFETIME = 10 * 60 * 1000;// 10 minutes
+
+    /**
+     * the streams are discarded before the urls expire, the download must be started in time
+     */
+    private static final long EXPIRATION_MARGIN = 5 * 60 * 1000;// 5 minutes
+
+    private static final StreamResolver INSTANCE = new StreamResolver();
+
+    /**
+     * The streams of a source
+     */
+    static class Streams {
+        final List<AudioStream> audio;
+        final List<VideoStream> video;
+        final List<VideoStream> videoOnly;
+        final List<SubtitlesStream> subtitles;
+        final long expiration;
+
+        Streams(StreamExtractor extractor) throws IOException, ExtractionException {
+            audio = nonNull(extractor.getAudioStreams());
+            video = nonNull(extractor.getVideoStreams());
+            videoOnly = nonNull(extractor.getVideoOnlyStreams());
+            subtitles = nonNull(extractor.getSubtitlesDefault());
+
+            long now = System.currentTimeMillis();
+            long earliest = Math.min(getExpiration(audio), getExpiration(video));
+            earliest = Math.min(earliest, getExpiration(videoOnly));
+
+            if (earliest == Long.MAX_VALUE) {
+                expiration = now + DEFAULT_LIFETIME;
+            } else {
+                expiration = earliest - EXPIRATION_MARGIN;
+            }
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiration;
+        }
+
+        /**
+         * Checks if any url belongs to these streams
+         *
+         * @param urls the urls
+         * @return {@code true} if any url is the content of a stream
+         */
+        boolean containsAny(String[] urls) {
+            for (String url : urls) {
+                if (url == null) continue;
+                if (contains(audio, url) || contains(video, url) || contains(videoOnly, url))
+                    return true;
+            }
+            return false;
+        }
+
+        private static boolean contains(List<? extends Stream> streams, String url) {
+            for (Stream stream : streams) {
+                if (url.equals(stream.getContent())) return true;
+            }
+            return false;
+        }
+
+        private static <T> List<T> nonNull(List<T> list) {
+            return list == null ? Collections.emptyList() : list;
+        }
+
+        /**
+         * Gets the earliest expiration date of the urls, from the {@code expire} parameter
+         * used by YouTube
+         *
+         * @return the date in milliseconds or {@link Long#MAX_VALUE} if is unknown
+         */
+        private static long getExpiration(List<? extends Stream> streams) {
+            long earliest = Long.MAX_VALUE;
+
+            for (Stream stream : streams) {
+                if (!stream.isUrl() || stream.getContent() == null) continue;
+
+                try {
+                    String expire = Uri.parse(stream.getContent()).getQueryParameter("expire");
+                    if (expire != null) earliest = Math.min(earliest, Long.parseLong(expire) * 1000);
+                } catch (Exception e) {
+                    // nothing to do
+                }
+            }
+
+            return earliest;
+        }
+    }
+
+    private final Map<String, FutureTask<Streams>> entries =
+            new LinkedHashMap<String, FutureTask<Streams>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FutureTask<Streams>> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private final Semaphore extractions = new Semaphore(MAX_EXTRACTIONS, true);
+
+    private StreamResolver() {
+    }
+
+    static StreamResolver getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the streams of the source, extracts the page if the streams are not stored or
+     * the urls are expired
+     *
+     * @param source the url of the page
+     * @return the streams
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    @NonNull
+    Streams resolve(@NonNull String source) throws IOException, ExtractionException {
+        FutureTask<Streams> task;
+        boolean owner = false;
+
+        synchronized (entries) {
+            task = entries.get(source);
+
+            if (task == null || (task.isDone() && isExpired(task))) {
+                task = new FutureTask<>(() -> extract(source));
+                entries.put(source, task);
+                owner = true;
+            }
+        }
+
+        // the extraction runs in the thread of the first mission asking for the source
+        if (owner) task.run();
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while resolving the streams");
+        } catch (ExecutionException e) {
+            // do not store the failure, the next attempt extracts again
+            synchronized (entries) {
+                if (entries.get(source) == task) entries.remove(source);
+            }
+
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof ExtractionException) throw (ExtractionException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Forgets the streams of the source, used if the stored urls are not valid anymore
+     *
+     * @param source  the url of the page
+     * @param streams the invalid streams, newer streams are kept
+     */
+    void invalidate(@NonNull String source, @NonNull Streams streams) {
+        synchronized (entries) {
+            FutureTask<Streams> task = entries.get(source);
+            if (task != null && task.isDone() && getNow(task) == streams) entries.remove(source);
+        }
+    }
+
+    private Streams extract(String source) throws IOException, ExtractionException {
+        try {
+            extractions.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for other extractions");
+        }
+
+        try {
+            Log.i(TAG, "extracting " + source);
+
+            StreamingService service = NewPipe.getServiceByUrl(source);
+            StreamExtractor extractor = service.getStreamExtractor(source);
+            extractor.fetchPage();
+
+            return new Streams(extractor);
+        } finally {
+            extractions.release();
+        }
+    }
+
+    private static boolean isExpired(FutureTask<Streams> task) {
+        Streams streams = getNow(task);
+        return streams == null || streams.isExpired();
+    }
+
+    private static Streams getNow(FutureTask<Streams> task) {
+        try {
+            return task.get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
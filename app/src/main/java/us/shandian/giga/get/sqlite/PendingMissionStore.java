@@ -0,0 +1,229 @@
+package us.shandian.giga.get.sqlite;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import androidx.annotation.NonNull;
+
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.util.HashMap;
+import java.util.Objects;
+
+import us.shandian.giga.get.DownloadMission;
+
+/**
+ * SQLite helper to store a summary of the pending {@link DownloadMission}'s. The summary is
+ * enough to list the missions, the whole state is still saved in the metadata file of every
+ * mission and is only read when the mission is started.
+ */
+public class PendingMissionStore extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "pending_downloads.db";
+
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String PENDING_TABLE_NAME = "pending_missions";
+
+    /**
+     * The key to the name of the metadata file
+     */
+    private static final String KEY_METADATA = "metadata";
+
+    private static final String KEY_SOURCE = "url";
+
+    private static final String KEY_TIMESTAMP = "timestamp";
+
+    private static final String KEY_KIND = "kind";
+
+    private static final String KEY_STORAGE_SOURCE = "storage_source";
+    private static final String KEY_STORAGE_TREE = "storage_tree";
+    private static final String KEY_STORAGE_TAG = "storage_tag";
+    private static final String KEY_STORAGE_NAME = "storage_name";
+    private static final String KEY_STORAGE_TYPE = "storage_type";
+
+    private static final String KEY_RESOURCES = "resources";
+    private static final String KEY_CURRENT = "current";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_DONE = "bytes_downloaded";
+    private static final String KEY_UNKNOWN_LENGTH = "unknown_length";
+    private static final String KEY_ERROR = "error";
+    private static final String KEY_ENQUEUED = "enqueued";
+    private static final String KEY_PRIORITY = "priority";
+    private static final String KEY_PS_STATE = "ps_state";
+    private static final String KEY_PS_FAILED = "ps_failed";
+    private static final String KEY_INITIALIZED = "initialized";
+
+    /**
+     * The statement to create the table
+     */
+    private static final String MISSIONS_CREATE_TABLE =
+            "CREATE TABLE " + PENDING_TABLE_NAME + " (" +
+                    KEY_METADATA + " TEXT PRIMARY KEY NOT NULL, " +
+                    KEY_SOURCE + " TEXT, " +
+                    KEY_TIMESTAMP + " INTEGER NOT NULL, " +
+                    KEY_KIND + " TEXT NOT NULL, " +
+                    KEY_STORAGE_SOURCE + " TEXT, " +
+                    KEY_STORAGE_TREE + " TEXT, " +
+                    KEY_STORAGE_TAG + " TEXT, " +
+                    KEY_STORAGE_NAME + " TEXT, " +
+                    KEY_STORAGE_TYPE + " TEXT, " +
+                    KEY_RESOURCES + " INTEGER NOT NULL, " +
+                    KEY_CURRENT + " INTEGER NOT NULL, " +
+                    KEY_LENGTH + " INTEGER NOT NULL, " +
+                    KEY_DONE + " INTEGER NOT NULL, " +
+                    KEY_UNKNOWN_LENGTH + " INTEGER NOT NULL, " +
+                    KEY_ERROR + " INTEGER NOT NULL, " +
+                    KEY_ENQUEUED + " INTEGER NOT NULL, " +
+                    KEY_PRIORITY + " INTEGER NOT NULL, " +
+                    KEY_PS_STATE + " INTEGER NOT NULL, " +
+                    KEY_PS_FAILED + " INTEGER NOT NULL, " +
+                    KEY_INITIALIZED + " INTEGER NOT NULL);";
+
+    private static final String MISSIONS_CREATE_INDEX =
+            "CREATE INDEX " + PENDING_TABLE_NAME + "_" + KEY_TIMESTAMP +
+                    " ON " + PENDING_TABLE_NAME + " (" + KEY_TIMESTAMP + ");";
+
+    public PendingMissionStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(MISSIONS_CREATE_TABLE);
+        db.execSQL(MISSIONS_CREATE_INDEX);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // nothing to do, first version
+    }
+
+    /**
+     * Returns the summary of the download mission as ContentValues.
+     *
+     * @param mission the download mission, the whole state must be loaded
+     * @return the content values
+     */
+    private ContentValues getValuesOfMission(@NonNull DownloadMission mission) {
+        String[] storage = mission.storage.getSerializedFields();
+
+        ContentValues values = new ContentValues();
+        values.put(KEY_METADATA, mission.metadata.getName());
+        values.put(KEY_SOURCE, mission.source);
+        values.put(KEY_TIMESTAMP, mission.timestamp);
+        values.put(KEY_KIND, String.valueOf(mission.kind));
+        values.put(KEY_STORAGE_SOURCE, storage[0]);
+        values.put(KEY_STORAGE_TREE, storage[1]);
+        values.put(KEY_STORAGE_TAG, storage[2]);
+        values.put(KEY_STORAGE_NAME, storage[3]);
+        values.put(KEY_STORAGE_TYPE, storage[4]);
+        values.put(KEY_RESOURCES, mission.urls.length);
+        values.put(KEY_CURRENT, mission.current);
+        values.put(KEY_LENGTH, mission.getLength());
+        values.put(KEY_DONE, mission.done);
+        values.put(KEY_UNKNOWN_LENGTH, mission.unknownLength);
+        values.put(KEY_ERROR, mission.errCode);
+        values.put(KEY_ENQUEUED, mission.enqueued);
+        values.put(KEY_PRIORITY, mission.priority);
+        values.put(KEY_PS_STATE, mission.psState);
+        values.put(KEY_PS_FAILED, mission.isPsFailed());
+        values.put(KEY_INITIALIZED, mission.isInitialized());
+        return values;
+    }
+
+    private DownloadMission getMissionFromCursor(Cursor cursor) {
+        String kind = Objects.requireNonNull(cursor).getString(cursor.getColumnIndexOrThrow(KEY_KIND));
+        if (kind == null || kind.isEmpty()) kind = "?";
+
+        DownloadMission.Summary summary = new DownloadMission.Summary();
+        summary.length = cursor.getLong(cursor.getColumnIndexOrThrow(KEY_LENGTH));
+        summary.initialized = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_INITIALIZED)) != 0;
+        summary.psFailed = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_PS_FAILED)) != 0;
+
+        DownloadMission mission = new DownloadMission(summary, cursor.getInt(cursor.getColumnIndexOrThrow(KEY_RESOURCES)));
+
+        mission.source = cursor.getString(cursor.getColumnIndexOrThrow(KEY_SOURCE));
+        mission.timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(KEY_TIMESTAMP));
+        mission.kind = kind.charAt(0);
+        mission.storage = StoredFileHelper.fromSerializedFields(new String[]{
+                cursor.getString(cursor.getColumnIndexOrThrow(KEY_STORAGE_SOURCE)),
+                cursor.getString(cursor.getColumnIndexOrThrow(KEY_STORAGE_TREE)),
+                cursor.getString(cursor.getColumnIndexOrThrow(KEY_STORAGE_TAG)),
+                cursor.getString(cursor.getColumnIndexOrThrow(KEY_STORAGE_NAME)),
+                cursor.getString(cursor.getColumnIndexOrThrow(KEY_STORAGE_TYPE))
+        });
+        mission.current = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_CURRENT));
+        mission.done = cursor.getLong(cursor.getColumnIndexOrThrow(KEY_DONE));
+        mission.unknownLength = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_UNKNOWN_LENGTH)) != 0;
+        mission.errCode = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_ERROR));
+        mission.enqueued = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_ENQUEUED)) != 0;
+        mission.priority = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_PRIORITY));
+        mission.psState = cursor.getInt(cursor.getColumnIndexOrThrow(KEY_PS_STATE));
+
+        return mission;
+    }
+
+
+    //////////////////////////////////
+    // Data source methods
+    ///////////////////////////////////
+
+    /**
+     * Loads the summary of all pending missions
+     *
+     * @return the missions, by the name of the metadata file
+     */
+    public HashMap<String, DownloadMission> loadPendingMissions() {
+        SQLiteDatabase database = getReadableDatabase();
+
+        try (Cursor cursor = database.query(PENDING_TABLE_NAME, null, null,
+                null, null, null, KEY_TIMESTAMP)) {
+            HashMap<String, DownloadMission> result = new HashMap<>(Math.max(cursor.getCount() * 2, 1));
+
+            while (cursor.moveToNext()) {
+                String metadata = cursor.getString(cursor.getColumnIndexOrThrow(KEY_METADATA));
+                result.put(metadata, getMissionFromCursor(cursor));
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Adds or replaces the summary of a mission
+     *
+     * @param mission the download mission, the whole state must be loaded
+     */
+    public void updateMission(DownloadMission mission) {
+        if (Objects.requireNonNull(mission).metadata == null || mission.storage == null) return;
+
+        ContentValues values = getValuesOfMission(mission);
+        SQLiteDatabase database = getWritableDatabase();
+        database.insertWithOnConflict(PENDING_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Updates the amount of downloaded bytes in the summary of a mission, the rest of the
+     * summary is only updated when the mission state is saved
+     *
+     * @param mission the download mission
+     */
+    public void updateProgress(@NonNull DownloadMission mission) {
+        if (mission.metadata == null) return;
+
+        ContentValues values = new ContentValues();
+        values.put(KEY_DONE, mission.done);
+
+        SQLiteDatabase database = getWritableDatabase();
+        database.update(PENDING_TABLE_NAME, values, KEY_METADATA + " = ?", new String[]{mission.metadata.getName()});
+    }
+
+    public void deleteMission(@NonNull String metadata) {
+        SQLiteDatabase database = getWritableDatabase();
+        database.delete(PENDING_TABLE_NAME, KEY_METADATA + " = ?", new String[]{metadata});
+    }
+}
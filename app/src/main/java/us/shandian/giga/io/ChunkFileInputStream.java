@@ -3,6 +3,9 @@ package us.shandian.giga.io;
 import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
 
 public class ChunkFileInputStream extends SharpStream {
     private static final int REPORT_INTERVAL = 256 * 1024;
@@ -15,6 +18,12 @@ public class ChunkFileInputStream extends SharpStream {
     private long progressReport;
     private final ProgressReport onProgress;
 
+    private Availability availability;
+    private long availableEnd;
+
+    private FileChannel channel;
+    private boolean channelChecked;
+
     public ChunkFileInputStream(SharpStream target, long start, long end, ProgressReport callback) throws IOException {
         source = target;
         offset = start;
@@ -38,6 +47,25 @@ public class ChunkFileInputStream extends SharpStream {
         source.seek(offset);
     }
 
+    /**
+     * Makes every read wait until the data is written in the file, allows reading a chunk
+     * while is being downloaded
+     *
+     * @param callback reports how much data is written
+     */
+    public void setAvailability(Availability callback) {
+        availability = callback;
+        availableEnd = offset;
+    }
+
+    @Override
+    public void waitFor(long amount) throws IOException {
+        long end = offset + position + amount;
+        if (availability == null || end <= availableEnd) return;
+
+        availableEnd = availability.await(end);
+    }
+
     /**
      * Get absolute position on file
      *
@@ -53,6 +81,8 @@ public class ChunkFileInputStream extends SharpStream {
             return 0;
         }
 
+        waitFor(1);
+
         int res = source.read();
         if (res >= 0) {
             position++;
@@ -75,6 +105,8 @@ public class ChunkFileInputStream extends SharpStream {
             return 0;
         }
 
+        waitFor(len);
+
         int res = source.read(b, off, len);
         position += res;
 
@@ -86,6 +118,54 @@ public class ChunkFileInputStream extends SharpStream {
         return res;
     }
 
+    @Override
+    public long transferTo(long count, SharpStream target) throws IOException {
+        if ((position + count) > length) {
+            count = length - position;
+        }
+        if (count < 1) {
+            return 0;
+        }
+
+        waitFor(count);
+
+        long res = super.transferTo(count, target);
+
+        if (onProgress != null && position > progressReport) {
+            onProgress.report(position);
+            progressReport = position + REPORT_INTERVAL;
+        }
+
+        return res;
+    }
+
+    /**
+     * Gets the channel of the source only if it can be read, the channel of the SAF streams is
+     * write-only and the data must be read through the stream
+     */
+    @Override
+    public FileChannel getChannel() {
+        if (!channelChecked) {
+            channelChecked = true;
+            channel = source.getChannel();
+
+            if (channel != null) {
+                try {
+                    channel.read(ByteBuffer.allocate(0), offset);
+                } catch (IOException | NonReadableChannelException e) {
+                    channel = null;
+                }
+            }
+        }
+
+        return channel;
+    }
+
+    @Override
+    public long getChannelPosition() {
+        return getChannel() == null ? -1 : getFilePointer();
+    }
+
     @Override
     public long skip(long pos) throws IOException {
         pos = Math.min(pos + position, length);
@@ -99,6 +179,12 @@ public class ChunkFileInputStream extends SharpStream {
         long oldPos = position;
         position = pos;
 
+        // readers of memory-mapped files only skip the data
+        if (onProgress != null && position > progressReport) {
+            onProgress.report(position);
+            progressReport = position + REPORT_INTERVAL;
+        }
+
         return pos - oldPos;
     }
 
@@ -112,6 +198,7 @@ public class ChunkFileInputStream extends SharpStream {
     public void close() {
         source.close();
         source = null;
+        channel = null;
     }
 
     @Override
@@ -152,4 +239,17 @@ public class ChunkFileInputStream extends SharpStream {
     public void write(byte[] buffer, int offset, int count) {
     }
 
+    public interface Availability {
+
+        /**
+         * Waits until the file is written up to the given offset
+         *
+         * @param end absolute offset in the file
+         * @return absolute offset in the file where the written data ends, never lower
+         * than {@code end}
+         * @throws IOException if the data will not be written
+         */
+        long await(long end) throws IOException;
+    }
+
 }
@@ -5,8 +5,9 @@ import androidx.annotation.NonNull;
 import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Objects;
 
 public class CircularFileWriter extends SharpStream {
@@ -14,7 +15,7 @@ public class CircularFileWriter extends SharpStream {
     private static final int QUEUE_BUFFER_SIZE = 8 * 1024;// 8 KiB
     private static final int COPY_BUFFER_SIZE = 128 * 1024; // 128 KiB
     private static final int NOTIFY_BYTES_INTERVAL = 64 * 1024;// 64 KiB
-    private static final int THRESHOLD_AUX_LENGTH = 15 * 1024 * 1024;// 15 MiB
+    private static final int FLUSH_AUX_LENGTH = 1024 * 1024;// 1 MiB
 
     private final OffsetChecker callback;
 
@@ -25,7 +26,7 @@ public class CircularFileWriter extends SharpStream {
     private long maxLengthKnown = -1;
 
     private BufferedFile out;
-    private BufferedFile aux;
+    private MappedRingBuffer aux;
 
     public CircularFileWriter(SharpStream target, File temp, OffsetChecker checker) throws IOException {
         Objects.requireNonNull(checker);
@@ -36,7 +37,7 @@ public class CircularFileWriter extends SharpStream {
             }
         }
 
-        aux = new BufferedFile(temp);
+        aux = new MappedRingBuffer(temp);
         out = new BufferedFile(target);
 
         callback = checker;
@@ -50,26 +51,18 @@ public class CircularFileWriter extends SharpStream {
         }
 
         out.flush();
-        aux.flush();
 
         boolean underflow = aux.offset < aux.length || out.offset < out.length;
-        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        if (amount > aux.length) amount = aux.length;
 
-        aux.target.seek(0);
-        out.target.seek(out.length);
+        // append the data straight from the mapped file
+        long copied = 0;
+        while (copied < amount) {
+            ByteBuffer data = aux.slice(copied, amount - copied);
+            long position = out.length + copied;
 
-        long length = amount;
-        while (length > 0) {
-            int read = (int) Math.min(length, Integer.MAX_VALUE);
-            read = aux.target.read(buffer, 0, Math.min(read, buffer.length));
-
-            if (read < 1) {
-                amount -= length;
-                break;
-            }
-
-            out.writeProof(buffer, read);
-            length -= read;
+            copied += data.remaining();
+            out.writeProof(data, position);
         }
 
         if (underflow) {
@@ -78,7 +71,6 @@ public class CircularFileWriter extends SharpStream {
                 if (aux.offset < amount) {
                     out.offset += aux.offset;
                     aux.offset = 0;
-                    out.target.seek(out.offset);
                 } else {
                     aux.offset -= amount;
                     out.offset = out.length + amount;
@@ -92,40 +84,18 @@ public class CircularFileWriter extends SharpStream {
         }
 
         out.length += amount;
+        out.target.seek(out.offset);
 
         if (out.length > maxLengthKnown) {
             maxLengthKnown = out.length;
         }
 
         if (amount < aux.length) {
-            // move the excess data to the beginning of the file
-            long readOffset = amount;
-            long writeOffset = 0;
-
-            aux.length -= amount;
-            length = aux.length;
-            while (length > 0) {
-                int read = (int) Math.min(length, Integer.MAX_VALUE);
-                read = aux.target.read(buffer, 0, Math.min(read, buffer.length));
-
-                aux.target.seek(writeOffset);
-                aux.writeProof(buffer, read);
-
-                writeOffset += read;
-                readOffset += read;
-                length -= read;
-
-                aux.target.seek(readOffset);
-            }
-
-            aux.target.setLength(aux.length);
+            // the excess data stays in the ring
+            aux.discard(amount);
             return;
         }
 
-        if (aux.length > THRESHOLD_AUX_LENGTH) {
-            aux.target.setLength(THRESHOLD_AUX_LENGTH);// or setLength(0);
-        }
-
         aux.reset();
     }
 
@@ -212,7 +182,8 @@ public class CircularFileWriter extends SharpStream {
 
             aux.write(b, off, len);
 
-            if (length >= THRESHOLD_AUX_LENGTH && length <= available) {
+            // the data left in the ring is not moved, flush as soon as a big part fits
+            if (length >= FLUSH_AUX_LENGTH && available >= FLUSH_AUX_LENGTH) {
                 flushAuxiliar(available);
             }
         } else {
@@ -240,9 +211,73 @@ public class CircularFileWriter extends SharpStream {
         }
     }
 
+    @Override
+    public long transferFrom(FileChannel source, long position, long count) throws IOException {
+        if (out.target.getChannel() == null) {
+            return 0;
+        }
+
+        long offsetOut = out.getOffset();
+        long end = callback.check();
+        long available = Long.MAX_VALUE;
+
+        if (end != -1) {
+            if (end < offsetOut) {
+                throw new IOException("The reported offset is invalid: " + end + "<" + offsetOut);
+            }
+            available = end - offsetOut;
+        }
+
+        // the data only goes straight to the file if the ring is empty, keep the order
+        if (aux.length > 0) {
+            if (aux.length >= available || offsetOut < out.length) {
+                return 0;
+            }
+
+            flushAuxiliar(aux.length);
+            offsetOut = out.getOffset();
+            available = end == -1 ? Long.MAX_VALUE : end - offsetOut;
+        }
+
+        count = Math.min(count, available);
+        if (count < 1) {
+            return 0;
+        }
+
+        out.flush();
+        out.target.seek(out.offset);
+
+        long transferred;
+        while (true) {
+            try {
+                transferred = out.target.transferFrom(source, position, count);
+                break;
+            } catch (Exception e) {
+                if (onWriteError == null || !onWriteError.handle(e)) {
+                    throw e;// give up
+                }
+                out.target.seek(out.offset);
+            }
+        }
+
+        out.offset += transferred;
+        if (out.offset > out.length) {
+            out.length = out.offset;
+        }
+
+        if (onProgress != null) {
+            long absoluteOffset = out.getOffset() + aux.getOffset();
+            if (absoluteOffset > reportPosition) {
+                reportPosition = absoluteOffset + NOTIFY_BYTES_INTERVAL;
+                onProgress.report(absoluteOffset);
+            }
+        }
+
+        return transferred;
+    }
+
     @Override
     public void flush() throws IOException {
-        aux.flush();
         out.flush();
 
         long total = out.length + aux.length;
@@ -378,10 +413,6 @@ public class CircularFileWriter extends SharpStream {
         private byte[] queue = new byte[QUEUE_BUFFER_SIZE];
         private int queueSize;
 
-        BufferedFile(File file) throws FileNotFoundException {
-            this.target = new FileStream(file);
-        }
-
         BufferedFile(SharpStream target) {
             this.target = target;
         }
@@ -466,6 +497,36 @@ public class CircularFileWriter extends SharpStream {
             }
         }
 
+        /**
+         * Writes the data at the given position, the current position of the file can change
+         */
+        void writeProof(ByteBuffer buffer, long position) throws IOException {
+            FileChannel channel = target.getChannel();
+
+            if (channel == null) {
+                // the stream has no channel, copy using the heap
+                byte[] copy = new byte[Math.min(buffer.remaining(), COPY_BUFFER_SIZE)];
+                target.seek(position);
+
+                while (buffer.hasRemaining()) {
+                    int amount = Math.min(buffer.remaining(), copy.length);
+                    buffer.get(copy, 0, amount);
+                    writeProof(copy, amount);
+                }
+                return;
+            }
+
+            while (buffer.hasRemaining()) {
+                try {
+                    position += channel.write(buffer, position);
+                } catch (Exception e) {
+                    if (onWriteError == null || !onWriteError.handle(e)) {
+                        throw e;// give up
+                    }
+                }
+            }
+        }
+
         @NonNull
         @Override
         public String toString() {
@@ -0,0 +1,39 @@
+package us.shandian.giga.io;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers, allocating direct memory is expensive so the buffers are reused
+ * between download threads and missions.
+ */
+public class DirectBufferPool {
+    private final int capacity;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> pool;
+
+    /**
+     * @param capacity  size of every buffer
+     * @param maxPooled maximum amount of buffers to keep, any extra buffer is left to the GC
+     */
+    public DirectBufferPool(int capacity, int maxPooled) {
+        this.capacity = capacity;
+        this.maxPooled = maxPooled;
+        this.pool = new ArrayDeque<>(maxPooled);
+    }
+
+    @NonNull
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = pool.pollFirst();
+        if (buffer == null) return ByteBuffer.allocateDirect(capacity);
+
+        buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release(@NonNull ByteBuffer buffer) {
+        if (pool.size() < maxPooled && buffer.capacity() == capacity) pool.addFirst(buffer);
+    }
+}
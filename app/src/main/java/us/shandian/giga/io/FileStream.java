@@ -1,13 +1,21 @@
 package us.shandian.giga.io;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStatVfs;
+
 import androidx.annotation.NonNull;
 
 import org.schabi.newpipe.streams.io.SharpStream;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * @author kapodamy
@@ -119,6 +127,11 @@ public class FileStream extends SharpStream {
         source.setLength(length);
     }
 
+    @Override
+    public void preallocate(long length) throws IOException {
+        preallocate(source.getFD(), source.getChannel(), length);
+    }
+
     @Override
     public void seek(long offset) throws IOException {
         source.seek(offset);
@@ -128,4 +141,55 @@ public class FileStream extends SharpStream {
     public long length() throws IOException {
         return source.length();
     }
+
+    @Override
+    public FileChannel getChannel() {
+        return source.getChannel();
+    }
+
+    @Override
+    public long getChannelPosition() throws IOException {
+        return source.getFilePointer();
+    }
+
+    /**
+     * Resizes the file reserving the disk space with {@code fallocate()}. If the file system does
+     * not support it (FAT, FUSE) the file is extended as a sparse file, but only if the free
+     * space is enough to write the rest of the file.
+     *
+     * @param fd      the file descriptor
+     * @param channel the channel of the same file
+     * @param length  the new length
+     * @throws IOException caused by an {@link ErrnoException} with {@link OsConstants#ENOSPC}
+     *                     if there is not enough free space
+     */
+    static void preallocate(FileDescriptor fd, FileChannel channel, long length) throws IOException {
+        long size = channel.size();
+
+        if (length <= size) {
+            channel.truncate(length);
+            return;
+        }
+
+        try {
+            Os.posix_fallocate(fd, 0, length);
+            return;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) throw new IOException("not enough free space", e);
+            // not supported, use a sparse file
+        }
+
+        try {
+            StructStatVfs stat = Os.fstatvfs(fd);
+            if (stat.f_bavail * stat.f_frsize < length - size) {
+                throw new IOException("not enough free space",
+                        new ErrnoException("fstatvfs", OsConstants.ENOSPC));
+            }
+        } catch (ErrnoException e) {
+            // the free space is unknown
+        }
+
+        // FileChannel.truncate() can not extend the file, write the last byte instead
+        channel.write(ByteBuffer.allocate(1), length - 1);
+    }
 }
@@ -138,6 +138,11 @@ public class FileStreamSAF extends SharpStream {
         channel.truncate(length);
     }
 
+    @Override
+    public void preallocate(long length) throws IOException {
+        FileStream.preallocate(file.getFileDescriptor(), channel, length);
+    }
+
     @Override
     public void seek(long offset) throws IOException {
         channel.position(offset);
@@ -147,4 +152,14 @@ public class FileStreamSAF extends SharpStream {
     public long length() throws IOException {
         return channel.size();
     }
+
+    @Override
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public long getChannelPosition() throws IOException {
+        return channel.position();// shared by the input and output streams
+    }
 }
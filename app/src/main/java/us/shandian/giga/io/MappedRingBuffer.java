@@ -0,0 +1,228 @@
+package us.shandian.giga.io;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ring buffer stored in a memory-mapped file, used by {@link CircularFileWriter} to hold the
+ * data which can not be written yet in the output file. Writing is a memory copy and the data
+ * consumed from the start is discarded moving the head, nothing is moved in the file.
+ * <p>
+ * The mapped window has a fixed size, the data which does not fit is spilled to the same file
+ * after the window and accessed with plain reads and writes, like the old auxiliary file. Once
+ * the start of the ring is discarded, the spilled data is moved into the free space.
+ *
+ * @see #slice(long, long) to write the data elsewhere without copying it to the heap
+ */
+class MappedRingBuffer implements Closeable {
+
+    private static final int WINDOW_SIZE = 8 * 1024 * 1024;// 8 MiB
+    private static final int SPILL_BUFFER_SIZE = 128 * 1024;// 128 KiB
+
+    /**
+     * a file bigger than the window plus this is truncated once empty
+     */
+    private static final int IDLE_SPILL_LENGTH = 16 * 1024 * 1024;// 16 MiB
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    private MappedByteBuffer buffer;
+    private final int capacity;
+    private int head;
+
+    /**
+     * amount of buffered bytes stored in the window, the rest is spilled
+     */
+    private long windowLength;
+
+    /**
+     * position of the first spilled byte, relative to the end of the window
+     */
+    private long spillHead;
+
+    private ByteBuffer spillBuffer;
+
+    /**
+     * write position, relative to the head
+     */
+    long offset;
+
+    /**
+     * amount of buffered bytes
+     */
+    long length;
+
+    MappedRingBuffer(@NonNull File file) throws IOException {
+        this(file, WINDOW_SIZE);
+    }
+
+    MappedRingBuffer(@NonNull File file, int capacity) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.capacity = capacity;
+
+        // the file is extended if required
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    void seek(long absoluteOffset) {
+        offset = absoluteOffset;
+    }
+
+    /**
+     * Writes at the current offset, the data which does not fit in the window is spilled
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            // the window can only be filled while nothing is spilled, keep the order
+            long windowEnd = length > windowLength ? windowLength : capacity;
+            int amount;
+
+            if (offset < windowEnd) {
+                int position = (int) ((head + offset) % capacity);
+                amount = (int) Math.min(len, Math.min(windowEnd - offset, capacity - position));
+
+                buffer.position(position);
+                buffer.put(b, off, amount);
+
+                if (offset + amount > windowLength) windowLength = offset + amount;
+            } else {
+                ByteBuffer source = ByteBuffer.wrap(b, off, len);
+                long position = spillPosition(offset);
+
+                while (source.hasRemaining()) {
+                    position += channel.write(source, position);
+                }
+
+                amount = len;
+            }
+
+            off += amount;
+            len -= amount;
+            offset += amount;
+        }
+
+        if (offset > length) length = offset;
+    }
+
+    /**
+     * Gets a view of the buffered data, the view ends at the end of the data or the window. The
+     * spilled data is read in a buffer reused by the next call
+     *
+     * @param start  position relative to the head
+     * @param amount maximum amount of bytes
+     * @return the view, shares the content of this ring
+     */
+    ByteBuffer slice(long start, long amount) throws IOException {
+        amount = Math.min(amount, length - start);
+
+        if (start >= windowLength) {
+            if (spillBuffer == null) spillBuffer = ByteBuffer.allocate(SPILL_BUFFER_SIZE);
+
+            spillBuffer.clear();
+            spillBuffer.limit((int) Math.min(amount, spillBuffer.capacity()));
+            readSpill(spillBuffer, spillPosition(start));
+            spillBuffer.flip();
+
+            return spillBuffer;
+        }
+
+        int position = (int) ((head + start) % capacity);
+        int limit = (int) Math.min(position + Math.min(amount, windowLength - start), capacity);
+
+        ByteBuffer view = buffer.duplicate();
+        view.limit(limit).position(position);
+
+        return view;
+    }
+
+    /**
+     * Discards the data at the start of the ring, the offset is not changed
+     *
+     * @param amount amount of bytes to discard
+     */
+    void discard(long amount) throws IOException {
+        if (amount >= windowLength) {
+            spillHead += amount - windowLength;
+            head = 0;
+            windowLength = 0;
+        } else {
+            head = (int) ((head + amount) % capacity);
+            windowLength -= amount;
+        }
+
+        length -= amount;
+
+        // move the spilled data to the free space of the window
+        long refill = Math.min(length - windowLength, capacity - windowLength);
+        while (refill > 0) {
+            int position = (int) ((head + windowLength) % capacity);
+            int size = (int) Math.min(refill, capacity - position);
+
+            ByteBuffer view = buffer.duplicate();
+            view.limit(position + size).position(position);
+            readSpill(view, capacity + spillHead);
+
+            spillHead += size;
+            windowLength += size;
+            refill -= size;
+        }
+
+        if (length == windowLength) spillHead = 0;
+    }
+
+    void reset() throws IOException {
+        head = 0;
+        offset = 0;
+        length = 0;
+        windowLength = 0;
+        spillHead = 0;
+
+        if (channel.size() > (long) capacity + IDLE_SPILL_LENGTH) {
+            // release the disk space used by the spilled data
+            channel.truncate(capacity);
+        }
+    }
+
+    /**
+     * @param position position relative to the head, must be after the data in the window
+     * @return the position in the file
+     */
+    private long spillPosition(long position) {
+        return capacity + spillHead + (position - windowLength);
+    }
+
+    private void readSpill(ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if (read < 0) throw new EOFException("The auxiliary file is truncated");
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() {
+        buffer = null;// unmapped by the garbage collector
+        spillBuffer = null;
+
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
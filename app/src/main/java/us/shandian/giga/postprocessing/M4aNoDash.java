@@ -9,7 +9,7 @@ import java.io.IOException;
 class M4aNoDash extends Postprocessing {
 
     M4aNoDash() {
-        super(false, true, ALGORITHM_M4A_NO_DASH);
+        super(false, true, false, ALGORITHM_M4A_NO_DASH);
     }
 
     @Override
@@ -34,7 +34,8 @@ class M4aNoDash extends Postprocessing {
         muxer.setMainBrand(0x4D344120);// binary string "M4A "
         muxer.parseSources();
         muxer.selectTracks(0);
-        muxer.build(out);
+        muxer.setTemporalDir(getTemporalDir());
+        muxer.buildSinglePass(out);
 
         return OK_RESULT;
     }
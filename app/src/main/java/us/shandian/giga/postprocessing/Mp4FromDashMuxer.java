@@ -11,7 +11,7 @@ import java.io.IOException;
 class Mp4FromDashMuxer extends Postprocessing {
 
     Mp4FromDashMuxer() {
-        super(true, true, ALGORITHM_MP4_FROM_DASH_MUXER);
+        super(true, true, true, ALGORITHM_MP4_FROM_DASH_MUXER);
     }
 
     @Override
@@ -19,7 +19,14 @@ class Mp4FromDashMuxer extends Postprocessing {
         Mp4FromDashWriter muxer = new Mp4FromDashWriter(sources);
         muxer.parseSources();
         muxer.selectTracks(0, 0);
-        muxer.build(out);
+        muxer.setTemporalDir(getTemporalDir());
+
+        if (getArgumentAt(0, "false").equals("true")) {
+            // keep the fragments, no sample tables are built
+            muxer.buildFragmented(out);
+        } else {
+            muxer.buildSinglePass(out);
+        }
 
         return OK_RESULT;
     }
@@ -11,7 +11,7 @@ import java.nio.ByteBuffer;
 class OggFromWebmDemuxer extends Postprocessing {
 
     OggFromWebmDemuxer() {
-        super(true, true, ALGORITHM_OGG_FROM_WEBM_DEMUXER);
+        super(true, true, true, ALGORITHM_OGG_FROM_WEBM_DEMUXER);
     }
 
     @Override
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.Serializable;
 
 import us.shandian.giga.get.DownloadMission;
+import us.shandian.giga.get.MissionPipeline;
 import us.shandian.giga.io.ChunkFileInputStream;
 import us.shandian.giga.io.CircularFileWriter;
 import us.shandian.giga.io.CircularFileWriter.OffsetChecker;
@@ -70,6 +71,12 @@ public abstract class Postprocessing implements Serializable {
      */
     public boolean reserveSpace;
 
+    /**
+     * Indicates whether the selected algorithm can read the sources while they are being
+     * downloaded, the sources are read in order and never rewound after writing
+     */
+    public boolean streaming;
+
     /**
      * Gets the given algorithm short name
      */
@@ -82,9 +89,10 @@ public abstract class Postprocessing implements Serializable {
 
     private transient File tempFile;
 
-    Postprocessing(boolean reserveSpace, boolean worksOnSameFile, String algorithmName) {
+    Postprocessing(boolean reserveSpace, boolean worksOnSameFile, boolean streaming, String algorithmName) {
         this.reserveSpace = reserveSpace;
         this.worksOnSameFile = worksOnSameFile;
+        this.streaming = streaming;
         this.name = algorithmName;// for debugging only
     }
 
@@ -93,6 +101,13 @@ public abstract class Postprocessing implements Serializable {
         tempFile = new File(directory, rnd + "_" + System.nanoTime() + ".tmp");
     }
 
+    /**
+     * Gets the directory where the temporal files are created, {@code null} if is not set
+     */
+    File getTemporalDir() {
+        return tempFile == null ? null : tempFile.getParentFile();
+    }
+
     public void cleanupTemporalDir() {
         if (tempFile != null && tempFile.exists()) {
             try {
@@ -111,50 +126,60 @@ public abstract class Postprocessing implements Serializable {
         int result;
         long finalLength = -1;
 
-        mission.done = 0;
+        // if the mission is still downloading, the progress belongs to the download
+        final MissionPipeline pipeline = mission.getPipeline();
+        final ProgressReport readProgress;
 
-        long length = mission.storage.length() - mission.offsets[0];
-        mission.length = Math.max(length, mission.nearLength);
+        if (pipeline == null) {
+            mission.done = 0;
 
-        final ProgressReport readProgress = (long position) -> {
-            position -= mission.offsets[0];
-            if (position > mission.done) mission.done = position;
-        };
+            long length = mission.storage.length() - mission.offsets[0];
+            mission.length = Math.max(length, mission.nearLength);
+
+            readProgress = (long position) -> {
+                position -= mission.offsets[0];
+                if (position > mission.done) mission.done = position;
+            };
+        } else {
+            readProgress = null;
+        }
 
         if (worksOnSameFile) {
-            ChunkFileInputStream[] sources = new ChunkFileInputStream[mission.urls.length];
+            ChunkFileInputStream[] sources = new ChunkFileInputStream[mission.getSourceCount()];
             try {
                 for (int i = 0, j = 1; i < sources.length; i++, j++) {
                     SharpStream source = mission.storage.getStream();
-                    long end = j < sources.length ? mission.offsets[j] : source.length();
+                    long end = j < sources.length ? mission.getSourceOffset(j) : source.length();
 
-                    sources[i] = new ChunkFileInputStream(source, mission.offsets[i], end, readProgress);
+                    sources[i] = new ChunkFileInputStream(source, mission.getSourceOffset(i), end, readProgress);
+
+                    if (pipeline != null) {
+                        final int resource = i;
+                        final long start = mission.offsets[i];
+                        sources[i].setAvailability(offset -> start + pipeline.await(resource, offset - start));
+                    }
                 }
 
                 if (test(sources)) {
                     for (SharpStream source : sources) source.rewind();
 
                     OffsetChecker checker = () -> {
-                        for (ChunkFileInputStream source : sources) {
-                            /*
-                             * WARNING: never use rewind() in any chunk after any writing (especially on first chunks)
-                             *          or the CircularFileWriter can lead to unexpected results
-                             */
-                            if (source.isClosed() || source.available() < 1) {
-                                continue;// the selected source is not used anymore
-                            }
+                        long offset = getWritableOffset(sources);
 
-                            return source.getFilePointer() - 1;
-                        }
+                        // anything below the offset can be overwritten, the download must know
+                        if (pipeline != null) pipeline.setOverwritten(offset == -1 ? Long.MAX_VALUE : offset);
 
-                        return -1;
+                        return offset;
                     };
 
                     try (CircularFileWriter out = new CircularFileWriter(
                             mission.storage.getStream(), tempFile, checker)) {
-                        out.onProgress = (long position) -> mission.done = position;
+                        if (pipeline == null) out.onProgress = (long position) -> mission.done = position;
 
                         out.onWriteError = err -> {
+                            // the download is not finished, give up and let the download handle the error
+                            if (mission.psState == 0) return false;
+
                             mission.psState = 3;
                             mission.notifyError(ERROR_POSTPROCESSING_HOLD, err);
 
@@ -195,6 +220,9 @@ public abstract class Postprocessing implements Serializable {
             result = test() ? process(null) : OK_RESULT;
         }
 
+        // do not touch the mission until the download threads are done
+        if (pipeline != null) pipeline.awaitFinish();
+
         if (result == OK_RESULT) {
             if (finalLength != -1) {
                 mission.length = finalLength;
@@ -209,6 +237,29 @@ public abstract class Postprocessing implements Serializable {
         this.mission = null;
     }
 
+    /**
+     * Gets the offset in the file where the output cannot be written, the data of the first
+     * source not fully read yet
+     *
+     * @param sources files to be processed
+     * @return absolute offset or -1 if all sources were read
+     */
+    private static long getWritableOffset(ChunkFileInputStream[] sources) {
+        for (ChunkFileInputStream source : sources) {
+            /*
+             * WARNING: never use rewind() in any chunk after any writing (especially on first chunks)
+             *          or the CircularFileWriter can lead to unexpected results
+             */
+            if (source.isClosed() || source.available() < 1) {
+                continue;// the selected source is not used anymore
+            }
+
+            return source.getFilePointer() - 1;
+        }
+
+        return -1;
+    }
+
     /**
      * Test if the post-processing algorithm can be skipped
      *
@@ -0,0 +1,87 @@
+package us.shandian.giga.postprocessing;
+
+import androidx.annotation.NonNull;
+
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+
+import us.shandian.giga.get.DownloadMission;
+
+/**
+ * Limits the amount of post-processing running at the same time across all missions. Muxing is
+ * CPU and I/O heavy, several missions finishing together would slow down each other (and the
+ * whole device). Every mission keeps its own thread, the thread waits here its turn, missions
+ * with higher priority go first and missions with the same priority in arrival order.
+ * <p>
+ * Writing through the Storage Access Framework is slow, a mission stored there only runs alone.
+ */
+public final class PostprocessingScheduler {
+    /**
+     * maximum amount of post-processing running at the same time
+     */
+    private static final int MAXIMUM_SLOTS = 3;
+
+    private static final PriorityQueue<Ticket> queue = new PriorityQueue<>();
+    private static final int slots = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() / 2, MAXIMUM_SLOTS));
+    private static int running = 0;
+    private static long sequence = 0;
+
+    private static class Ticket implements Comparable<Ticket> {
+        final int priority;
+        final long order;
+        final int limit;
+
+        Ticket(int priority, long order, int limit) {
+            this.priority = priority;
+            this.order = order;
+            this.limit = limit;
+        }
+
+        @Override
+        public int compareTo(Ticket another) {
+            if (priority != another.priority) return priority > another.priority ? -1 : 1;
+            return Long.compare(order, another.order);
+        }
+    }
+
+    private PostprocessingScheduler() {
+    }
+
+    /**
+     * Waits until the post-processing of the mission can run, {@link #release()} must be
+     * called once finished
+     *
+     * @param mission the mission to post-process
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public static void acquire(@NonNull DownloadMission mission) throws InterruptedIOException {
+        synchronized (queue) {
+            Ticket ticket = new Ticket(mission.priority, sequence++, mission.storage.isDirect() ? slots : 1);
+            queue.add(ticket);
+
+            try {
+                while (queue.peek() != ticket || running >= ticket.limit) queue.wait();
+            } catch (InterruptedException e) {
+                queue.remove(ticket);
+                queue.notifyAll();
+                throw new InterruptedIOException("interrupted while waiting for other post-processing");
+            }
+
+            queue.poll();
+            running++;
+
+            // the next mission can be able to run too
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * Frees the slot taken by {@link #acquire(DownloadMission)}
+     */
+    public static void release() {
+        synchronized (queue) {
+            running--;
+            queue.notifyAll();
+        }
+    }
+}
@@ -15,7 +15,7 @@ class TtmlConverter extends Postprocessing {
 
     TtmlConverter() {
         // due how XmlPullParser works, the xml is fully loaded on the ram
-        super(false, true, ALGORITHM_TTML_CONVERTER);
+        super(false, true, false, ALGORITHM_TTML_CONVERTER);
     }
 
     @Override
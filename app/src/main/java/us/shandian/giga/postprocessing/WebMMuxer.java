@@ -13,7 +13,7 @@ import java.io.IOException;
 class WebMMuxer extends Postprocessing {
 
     WebMMuxer() {
-        super(true, true, ALGORITHM_WEBM_MUXER);
+        super(true, true, true, ALGORITHM_WEBM_MUXER);
     }
 
     @Override
@@ -8,17 +8,25 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.DiffUtil;
 
+import com.google.android.exoplayer2.upstream.cache.Cache;
+
+import org.schabi.newpipe.player.helper.PlayerDataSource;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 
+import us.shandian.giga.get.BandwidthLimiter;
 import us.shandian.giga.get.DownloadMission;
 import us.shandian.giga.get.FinishedMission;
 import us.shandian.giga.get.Mission;
+import us.shandian.giga.get.MissionJournal;
 import us.shandian.giga.get.sqlite.FinishedMissionStore;
+import us.shandian.giga.get.sqlite.PendingMissionStore;
 import org.schabi.newpipe.streams.io.StoredDirectoryHelper;
 import org.schabi.newpipe.streams.io.StoredFileHelper;
 import us.shandian.giga.util.Utility;
@@ -39,18 +47,34 @@ public class DownloadManager {
     private static final String DOWNLOADS_METADATA_FOLDER = "pending_downloads";
 
     private final FinishedMissionStore mFinishedMissionStore;
+    private final PendingMissionStore mPendingMissionStore;
 
     private final ArrayList<DownloadMission> mMissionsPending = new ArrayList<>();
     private final ArrayList<FinishedMission> mMissionsFinished;
 
     private final Handler mHandler;
     private final File mPendingMissionsDir;
+    private final Cache mPlayerCache;
 
     private NetworkState mLastNetworkStatus = NetworkState.Unavailable;
 
     int mPrefMaxRetry;
     boolean mPrefMeteredDownloads;
-    boolean mPrefQueueLimit;
+    /**
+     * Maximum amount of missions running at the same time
+     */
+    int mPrefMaxConcurrent;
+
+    /**
+     * Start first the queued missions with less bytes left to download
+     */
+    boolean mPrefShortestFirst;
+
+    /**
+     * Maximum download speed in bytes per second on unmetered and metered networks, zero for no limit
+     */
+    long mPrefSpeedLimit;
+    long mPrefSpeedLimitMetered;
     private boolean mSelfMissionsControl;
 
     StoredDirectoryHelper mMainStorageAudio;
@@ -68,11 +92,13 @@ public class DownloadManager {
         }
 
         mFinishedMissionStore = new FinishedMissionStore(context);
+        mPendingMissionStore = new PendingMissionStore(context);
         mHandler = handler;
         mMainStorageAudio = storageAudio;
         mMainStorageVideo = storageVideo;
         mMissionsFinished = loadFinishedMissions();
         mPendingMissionsDir = getPendingDir(context);
+        mPlayerCache = PlayerDataSource.getCache(context);
 
         loadPendingMissions(context);
     }
@@ -144,14 +170,41 @@ public class DownloadManager {
         File tempDir = pickAvailableTemporalDir(ctx);
         Log.i(TAG, "using '" + tempDir + "' as temporal directory");
 
+        // the summaries are enough to list the missions, the whole state is read on start
+        HashMap<String, DownloadMission> summaries = mPendingMissionStore.loadPendingMissions();
+
         for (File sub : subs) {
             if (!sub.isFile()) continue;
             if (sub.getName().equals(".tmp")) continue;
 
-            DownloadMission mis = Utility.readFromFile(sub);
+            File journal = new File(sub.getPath() + MissionJournal.SUFFIX);
+
+            if (sub.getName().endsWith(MissionJournal.SUFFIX)) {
+                // delete the journal if the mission metadata is gone
+                String name = sub.getName();
+                File owner = new File(mPendingMissionsDir, name.substring(0, name.length() - MissionJournal.SUFFIX.length()));
+                //noinspection ResultOfMethodCallIgnored
+                if (!owner.exists()) sub.delete();
+                continue;
+            }
+
+            DownloadMission mis = summaries.remove(sub.getName());
+            boolean summary = mis != null && mis.psState != 1 && mis.psState != 3;
+
+            if (summary) {
+                mis.metadata = sub;
+                mis.summary.temporalDir = tempDir;
+            } else {
+                // not stored yet or the post-processing was interrupted, read the whole state
+                mis = Utility.readFromFile(sub);
+            }
+
             if (mis == null || mis.isFinished() || mis.hasInvalidStorage()) {
                 //noinspection ResultOfMethodCallIgnored
                 sub.delete();
+                //noinspection ResultOfMethodCallIgnored
+                journal.delete();
+                mPendingMissionStore.deleteMission(sub.getName());
                 continue;
             }
 
@@ -194,11 +247,21 @@ public class DownloadManager {
 
             mis.metadata = sub;
             mis.maxRetry = mPrefMaxRetry;
+            mis.replayJournal();
             mis.mHandler = mHandler;
+            mis.store = mPendingMissionStore;
+            mis.playerCache = mPlayerCache;
+
+            if (!summary) mPendingMissionStore.updateMission(mis);
 
             mMissionsPending.add(mis);
         }
 
+        // forget the summaries of missions without metadata file
+        for (String metadata : summaries.keySet()) {
+            mPendingMissionStore.deleteMission(metadata);
+        }
+
         if (mMissionsPending.size() > 1)
             Collections.sort(mMissionsPending, Comparator.comparingLong(Mission::getTimestamp));
     }
@@ -213,6 +276,7 @@ public class DownloadManager {
             mission.timestamp = System.currentTimeMillis();
             mission.mHandler = mHandler;
             mission.maxRetry = mPrefMaxRetry;
+            mission.playerCache = mPlayerCache;
 
             // create metadata file
             while (true) {
@@ -234,6 +298,8 @@ public class DownloadManager {
 
             // Before continue, save the metadata in case the internet connection is not available
             Utility.writeToFile(mission.metadata, mission);
+            mission.store = mPendingMissionStore;
+            mPendingMissionStore.updateMission(mission);
 
             if (mission.storage == null) {
                 // noting to do here
@@ -243,7 +309,7 @@ public class DownloadManager {
                 return;
             }
 
-            boolean start = !mPrefQueueLimit || getRunningMissionsCount() < 1;
+            boolean start = getRunningMissionsCount() < mPrefMaxConcurrent;
 
             if (canDownloadInCurrentNetwork() && start) {
                 mission.start();
@@ -262,6 +328,9 @@ public class DownloadManager {
         if (mission.running) {
             mission.setEnqueued(false);
             mission.pause();
+
+            // a slot is free now, start the next queued mission
+            runMissions();
         }
     }
 
@@ -407,8 +476,11 @@ public class DownloadManager {
             for (DownloadMission mission : mMissionsPending) {
                 if (mission.running || mission.isCorrupt()) continue;
 
-                mission.start();
+                // let the queue start the missions, only the free slots are used
+                if (!mission.enqueued) mission.setEnqueued(true);
             }
+
+            runMissions();
         }
     }
 
@@ -426,7 +498,7 @@ public class DownloadManager {
     }
 
     /**
-     * runs one or multiple missions in from queue if possible
+     * runs missions from the queue until all slots are used, if possible
      *
      * @return true if one or multiple missions are running, otherwise, false
      */
@@ -435,25 +507,52 @@ public class DownloadManager {
             if (mMissionsPending.size() < 1) return false;
             if (!canDownloadInCurrentNetwork()) return false;
 
-            if (mPrefQueueLimit) {
-                for (DownloadMission mission : mMissionsPending)
-                    if (!mission.isFinished() && mission.running) return true;
-            }
+            int running = getRunningMissionsCount();
 
-            boolean flag = false;
-            for (DownloadMission mission : mMissionsPending) {
-                if (mission.running || !mission.enqueued || mission.isFinished())
-                    continue;
+            for (DownloadMission mission : getQueue()) {
+                if (running >= mPrefMaxConcurrent) break;
 
                 resumeMission(mission);
                 if (mission.errCode != DownloadMission.ERROR_NOTHING) continue;
 
-                if (mPrefQueueLimit) return true;
-                flag = true;
+                running++;
             }
 
-            return flag;
+            return running > 0;
+        }
+    }
+
+    /**
+     * Gets the missions waiting on the queue, sorted in the order they should be started.
+     * Missions with higher priority go first, then, if {@link #mPrefShortestFirst} is set,
+     * missions with less bytes left. Otherwise the order the missions were added is kept.
+     *
+     * @return the queued missions
+     */
+    private List<DownloadMission> getQueue() {
+        ArrayList<DownloadMission> queue = new ArrayList<>();
+
+        for (DownloadMission mission : mMissionsPending) {
+            if (mission.running || !mission.enqueued || mission.isFinished() || mission.isCorrupt())
+                continue;
+
+            queue.add(mission);
         }
+
+        Comparator<DownloadMission> order = (a, b) -> Integer.compare(b.priority, a.priority);
+        if (mPrefShortestFirst) order = order.thenComparingLong(DownloadManager::getRemaining);
+
+        // Note: the sort is stable, missions with the same order are left as added
+        Collections.sort(queue, order);
+        return queue;
+    }
+
+    /**
+     * Gets the amount of bytes left to download, missions without a known length go last
+     */
+    private static long getRemaining(DownloadMission mission) {
+        long length = mission.getLength();
+        return length > 0 ? Math.max(length - mission.done, 0) : Long.MAX_VALUE;
     }
 
     public MissionIterator getIterator() {
@@ -482,6 +581,8 @@ public class DownloadManager {
         if (currentStatus == mLastNetworkStatus) return;
 
         mLastNetworkStatus = currentStatus;
+        updateSpeedLimit();
+
         if (currentStatus == NetworkState.Unavailable) return;
 
         if (!mSelfMissionsControl || updateOnly) {
@@ -491,19 +592,27 @@ public class DownloadManager {
         boolean isMetered = mPrefMeteredDownloads && mLastNetworkStatus == NetworkState.MeteredOperating;
 
         synchronized (this) {
+            if (!isMetered) {
+                runMissions();
+                return;
+            }
+
             for (DownloadMission mission : mMissionsPending) {
                 if (mission.isCorrupt() || mission.isPsRunning()) continue;
-
-                if (mission.running && isMetered) {
-                    mission.pause();
-                } else if (!mission.running && !isMetered && mission.enqueued) {
-                    mission.start();
-                    if (mPrefQueueLimit) break;
-                }
+                if (mission.running) mission.pause();
             }
         }
     }
 
+    /**
+     * Applies the speed limit of the current network type, the running missions pick the new
+     * limit immediately
+     */
+    void updateSpeedLimit() {
+        boolean metered = mLastNetworkStatus == NetworkState.MeteredOperating;
+        BandwidthLimiter.getInstance().setRate(metered ? mPrefSpeedLimitMetered : mPrefSpeedLimit);
+    }
+
     void updateMaximumAttempts() {
         synchronized (this) {
             for (DownloadMission mission : mMissionsPending) mission.maxRetry = mPrefMaxRetry;
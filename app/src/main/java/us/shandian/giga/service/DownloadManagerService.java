@@ -80,6 +80,8 @@ public class DownloadManagerService extends Service {
     private static final String EXTRA_PARENT_PATH = "DownloadManagerService.extra.storageParentPath";
     private static final String EXTRA_STORAGE_TAG = "DownloadManagerService.extra.storageTag";
     private static final String EXTRA_RECOVERY_INFO = "DownloadManagerService.extra.recoveryInfo";
+    private static final String EXTRA_CLIP = "DownloadManagerService.extra.clip";
+    private static final String EXTRA_CACHE_KEYS = "DownloadManagerService.extra.cacheKeys";
 
     private static final String ACTION_RESET_DOWNLOAD_FINISHED = APPLICATION_ID + ".reset_download_finished";
     private static final String ACTION_OPEN_DOWNLOADS_FINISHED = APPLICATION_ID + ".open_downloads_finished";
@@ -183,6 +185,9 @@ public class DownloadManagerService extends Service {
         handlePreferenceChange(mPrefs, getString(R.string.downloads_cross_network));
         handlePreferenceChange(mPrefs, getString(R.string.downloads_maximum_retry));
         handlePreferenceChange(mPrefs, getString(R.string.downloads_queue_limit));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_shortest_first));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_speed_limit));
+        handlePreferenceChange(mPrefs, getString(R.string.downloads_speed_limit_metered));
 
         mLock = new LockManager(this);
     }
@@ -321,8 +326,27 @@ public class DownloadManagerService extends Service {
             mManager.updateMaximumAttempts();
         } else if (getString(R.string.downloads_cross_network).equals(key)) {
             mManager.mPrefMeteredDownloads = prefs.getBoolean(key, false);
-        } else if (getString(R.string.downloads_queue_limit).equals(key)) {
-            mManager.mPrefQueueLimit = prefs.getBoolean(key, true);
+        } else if (getString(R.string.downloads_queue_limit).equals(key)
+                || getString(R.string.downloads_maximum_concurrent).equals(key)) {
+            if (prefs.getBoolean(getString(R.string.downloads_queue_limit), true)) {
+                try {
+                    String value = prefs.getString(getString(R.string.downloads_maximum_concurrent),
+                            getString(R.string.downloads_maximum_concurrent_default));
+                    mManager.mPrefMaxConcurrent = value == null ? 1 : Integer.parseInt(value);
+                } catch (Exception e) {
+                    mManager.mPrefMaxConcurrent = 1;
+                }
+            } else {
+                mManager.mPrefMaxConcurrent = Integer.MAX_VALUE;
+            }
+        } else if (getString(R.string.downloads_shortest_first).equals(key)) {
+            mManager.mPrefShortestFirst = prefs.getBoolean(key, false);
+        } else if (getString(R.string.downloads_speed_limit).equals(key)) {
+            mManager.mPrefSpeedLimit = getSpeedLimit(prefs, key);
+            mManager.updateSpeedLimit();
+        } else if (getString(R.string.downloads_speed_limit_metered).equals(key)) {
+            mManager.mPrefSpeedLimitMetered = getSpeedLimit(prefs, key);
+            mManager.updateSpeedLimit();
         } else if (getString(R.string.download_path_video_key).equals(key)) {
             mManager.mMainStorageVideo = loadMainVideoStorage();
         } else if (getString(R.string.download_path_audio_key).equals(key)) {
@@ -330,6 +354,15 @@ public class DownloadManagerService extends Service {
         }
     }
 
+    private long getSpeedLimit(SharedPreferences prefs, @NonNull String key) {
+        try {
+            String value = prefs.getString(key, getString(R.string.downloads_speed_limit_default));
+            return value == null ? 0 : Long.parseLong(value) * 1024;// KiB/s to bytes per second
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
     public void updateForegroundState(boolean state) {
         if (state == mForeground) return;
 
@@ -362,6 +395,27 @@ public class DownloadManagerService extends Service {
                                     char kind, int threads, String source, String psName,
                                     String[] psArgs, long nearLength,
                                     ArrayList<MissionRecoveryInfo> recoveryInfo) {
+        startMission(context, urls, storage, kind, threads, source, psName, psArgs, nearLength,
+                recoveryInfo, null, null);
+    }
+
+    /**
+     * Start a new download mission with extra options
+     *
+     * @param clip      start and end of the time range in milliseconds, or {@code null} to
+     *                  download the whole files
+     * @param cacheKeys the key in the player cache of every url, used to copy the data already
+     *                  played instead of downloading it again, or {@code null} if unknown
+     * @see #startMission(Context, String[], StoredFileHelper, char, int, String, String, String[], long, ArrayList)
+     */
+    public static void startMission(Context context, String[] urls, StoredFileHelper storage,
+                                    char kind, int threads, String source, String psName,
+                                    String[] psArgs, long nearLength,
+                                    ArrayList<MissionRecoveryInfo> recoveryInfo, long[] clip,
+                                    String[] cacheKeys) {
+        if (clip != null && (clip.length != 2 || clip[0] < 0 || clip[1] <= clip[0]))
+            throw new IllegalArgumentException("invalid time range");
+
         final Intent intent = new Intent(context, DownloadManagerService.class)
                 .setAction(Intent.ACTION_RUN)
                 .putExtra(EXTRA_URLS, urls)
@@ -372,6 +426,8 @@ public class DownloadManagerService extends Service {
                 .putExtra(EXTRA_POSTPROCESSING_ARGS, psArgs)
                 .putExtra(EXTRA_NEAR_LENGTH, nearLength)
                 .putExtra(EXTRA_RECOVERY_INFO, recoveryInfo)
+                .putExtra(EXTRA_CLIP, clip)
+                .putExtra(EXTRA_CACHE_KEYS, cacheKeys)
                 .putExtra(EXTRA_PARENT_PATH, storage.getParentUri())
                 .putExtra(EXTRA_PATH, storage.getUri())
                 .putExtra(EXTRA_STORAGE_TAG, storage.getTag());
@@ -412,6 +468,8 @@ public class DownloadManagerService extends Service {
         mission.source = source;
         mission.nearLength = nearLength;
         mission.recoveryInfo = recovery.toArray(new MissionRecoveryInfo[0]);
+        mission.clip = intent.getLongArrayExtra(EXTRA_CLIP);
+        mission.cacheKeys = intent.getStringArrayExtra(EXTRA_CACHE_KEYS);
 
         if (ps != null)
             ps.setTemporalDir(DownloadManager.pickAvailableTemporalDir(this));
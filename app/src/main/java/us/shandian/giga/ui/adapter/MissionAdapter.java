@@ -636,6 +636,11 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
                     mission.setEnqueued(flag);
                     updateProgress(h);
                     return true;
+                case R.id.priority:
+                    boolean high = !h.priority.isChecked();
+                    h.priority.setChecked(high);
+                    mission.setPriority(high ? DownloadMission.PRIORITY_HIGH : DownloadMission.PRIORITY_NORMAL);
+                    return true;
                 case R.id.retry:
                     if (mission.isPsRunning()) {
                         mission.psContinue(true);
@@ -835,6 +840,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
         MenuItem pause;
         MenuItem open;
         MenuItem queue;
+        MenuItem priority;
         MenuItem showError;
         MenuItem delete;
         MenuItem source;
@@ -870,6 +876,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             pause = menu.findItem(R.id.pause);
             open = menu.findItem(R.id.menu_item_share);
             queue = menu.findItem(R.id.queue);
+            priority = menu.findItem(R.id.priority);
             showError = menu.findItem(R.id.error_message_view);
             delete = menu.findItem(R.id.delete);
             source = menu.findItem(R.id.source);
@@ -896,6 +903,7 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
             pause.setVisible(false);
             open.setVisible(false);
             queue.setVisible(false);
+            priority.setVisible(false);
             showError.setVisible(false);
             delete.setVisible(false);
             source.setVisible(false);
@@ -926,12 +934,14 @@ public class MissionAdapter extends Adapter<ViewHolder> implements Handler.Callb
                         }
 
                         queue.setChecked(mission.enqueued);
+                        priority.setChecked(mission.priority > DownloadMission.PRIORITY_NORMAL);
 
                         delete.setVisible(true);
 
                         boolean flag = !mission.isPsFailed() && mission.urls.length > 0;
                         start.setVisible(flag);
                         queue.setVisible(flag);
+                        priority.setVisible(flag);
                     }
                 }
             } else {
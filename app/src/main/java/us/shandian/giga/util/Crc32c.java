@@ -0,0 +1,130 @@
+package us.shandian.giga.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC-32C (Castagnoli) checksum, {@code java.util.zip.CRC32C} is not available before API 26.
+ * The methods work like {@code crc32()} and {@code crc32_combine()} of zlib, the checksum of
+ * an empty sequence is zero and the result of a call is passed to the next one.
+ */
+public final class Crc32c {
+    private static final int POLYNOMIAL = 0x82F63B78;// reversed 0x1EDC6F41
+
+    /**
+     * lookup tables for slicing by 4 bytes
+     */
+    private static final int[] T0 = new int[256];
+    private static final int[] T1 = new int[256];
+    private static final int[] T2 = new int[256];
+    private static final int[] T3 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) crc = (crc >>> 1) ^ (POLYNOMIAL & -(crc & 1));
+            T0[i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            T1[i] = (T0[i] >>> 8) ^ T0[T0[i] & 0xFF];
+            T2[i] = (T1[i] >>> 8) ^ T0[T1[i] & 0xFF];
+            T3[i] = (T2[i] >>> 8) ^ T0[T2[i] & 0xFF];
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    public static int update(int crc, byte[] buffer, int offset, int length) {
+        crc = ~crc;
+
+        int end = offset + length;
+        for (int limit = end - 3; offset < limit; offset += 4) {
+            crc ^= (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8
+                    | (buffer[offset + 2] & 0xFF) << 16 | buffer[offset + 3] << 24;
+            crc = T3[crc & 0xFF] ^ T2[(crc >>> 8) & 0xFF] ^ T1[(crc >>> 16) & 0xFF] ^ T0[crc >>> 24];
+        }
+        for (; offset < end; offset++) {
+            crc = (crc >>> 8) ^ T0[(crc ^ buffer[offset]) & 0xFF];
+        }
+
+        return ~crc;
+    }
+
+    /**
+     * Updates the checksum with the content of the buffer, the buffer position is not changed
+     *
+     * @param crc    the checksum of the previous data
+     * @param buffer the data
+     * @param offset absolute index in the buffer where the data starts
+     * @param length amount of bytes
+     * @return the new checksum
+     */
+    public static int update(int crc, ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return update(crc, buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+
+        crc = ~crc;
+
+        int end = offset + length;
+        for (int limit = end - 3; offset < limit; offset += 4) {
+            // the buffer is big endian, the checksum consumes the bytes in little endian order
+            crc ^= Integer.reverseBytes(buffer.getInt(offset));
+            crc = T3[crc & 0xFF] ^ T2[(crc >>> 8) & 0xFF] ^ T1[(crc >>> 16) & 0xFF] ^ T0[crc >>> 24];
+        }
+        for (; offset < end; offset++) {
+            crc = (crc >>> 8) ^ T0[(crc ^ buffer.get(offset)) & 0xFF];
+        }
+
+        return ~crc;
+    }
+
+    /**
+     * Calculates the checksum of two sequences from the checksum of each one
+     *
+     * @param crc1    checksum of the first sequence
+     * @param crc2    checksum of the second sequence
+     * @param length2 length of the second sequence
+     * @return the checksum of both sequences, one after another
+     */
+    public static int combine(int crc1, int crc2, long length2) {
+        if (length2 < 1) return crc1;
+
+        int[] even = new int[32];// operator for an even power of two zeros
+        int[] odd = new int[32];// operator for an odd power of two zeros
+
+        // operator for one zero bit
+        odd[0] = POLYNOMIAL;
+        for (int i = 1, row = 1; i < 32; i++, row <<= 1) odd[i] = row;
+
+        square(even, odd);// two zero bits
+        square(odd, even);// four zero bits
+
+        // apply length2 zeros to crc1, the first squaring puts the operator for one zero byte in even
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) crc1 = times(even, crc1);
+            length2 >>= 1;
+
+            if (length2 == 0) break;
+
+            square(odd, even);
+            if ((length2 & 1) != 0) crc1 = times(odd, crc1);
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int i = 0; i < 32; i++) square[i] = times(matrix, matrix[i]);
+    }
+}
@@ -0,0 +1,45 @@
+package us.shandian.giga.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter split in several cells, every thread updates the cell picked by its id so
+ * concurrent updates rarely touch the same cache line. Works like
+ * {@code java.util.concurrent.atomic.LongAdder} which is not available before API 24.
+ */
+public class StripedCounter {
+    private static final int PADDING = 8;// longs per cache line (64 bytes)
+    private static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (stripes < cpus * 2 && stripes < 64) stripes <<= 1;
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void add(long delta) {
+        int index = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        cells.getAndAdd(index * PADDING, delta);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    /**
+     * Gets the sum and resets every cell, updates done concurrently are never lost, they are
+     * returned by this call or by the next one
+     *
+     * @return the sum of all cells
+     */
+    public long sumThenReset() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) sum += cells.getAndSet(i * PADDING, 0);
+        return sum;
+    }
+}
@@ -1,7 +1,6 @@
 package us.shandian.giga.util;
 
 import android.content.Context;
-import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
 import android.util.Log;
@@ -26,11 +25,12 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.net.HttpURLConnection;
 import java.util.Locale;
 
 import okio.ByteString;
 
+import us.shandian.giga.get.HttpConnection;
+
 public class Utility {
 
     public enum FileType {
@@ -217,18 +217,8 @@ public class Utility {
         return p.exists();
     }
 
-    public static long getContentLength(HttpURLConnection connection) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            return connection.getContentLengthLong();
-        }
-
-        try {
-            return Long.parseLong(connection.getHeaderField("Content-Length"));
-        } catch (Exception err) {
-            // nothing to do
-        }
-
-        return -1;
+    public static long getContentLength(HttpConnection connection) {
+        return connection.getContentLength();
     }
 
     /**
@@ -237,7 +227,7 @@ public class Utility {
      * @param connection http connection
      * @return content length
      */
-    public static long getTotalContentLength(final HttpURLConnection connection) {
+    public static long getTotalContentLength(final HttpConnection connection) {
         try {
             if (connection.getResponseCode() == 206) {
                 final String rangeStr = connection.getHeaderField("Content-Range");
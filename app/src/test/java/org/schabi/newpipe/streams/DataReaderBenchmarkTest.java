@@ -0,0 +1,98 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.streams.WebMReader.Cluster;
+import org.schabi.newpipe.streams.WebMReader.Segment;
+import org.schabi.newpipe.streams.WebMReader.SimpleBlock;
+import org.schabi.newpipe.streams.WebMWriterTest.Source;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import us.shandian.giga.io.FileStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import static org.schabi.newpipe.streams.DataReaderTest.withoutChannel;
+
+/**
+ * Compares {@link MappedDataReader} and the buffered {@link DataReader} demuxing a WebM file
+ * skipping the block data. Only runs with {@code -Dbenchmarks}.
+ *
+ * @see DataReaderTest
+ */
+public class DataReaderBenchmarkTest {
+    private static final int ROUNDS = 3;
+
+    private File source;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue("benchmarks are disabled", Boolean.getBoolean("benchmarks"));
+        source = File.createTempFile("source", ".webm");
+    }
+
+    @After
+    public void tearDown() {
+        if (source != null) {
+            //noinspection ResultOfMethodCallIgnored
+            source.delete();
+        }
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        // 10 minutes of video frames, only the headers are read
+        final Source video = Source.video(10 * 60 * 1000, 4 * 1024, 32 * 1024);
+        video.write(source);
+
+        final com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (final boolean mapped : new boolean[]{true, false}) {
+                final long allocated = bean.getThreadAllocatedBytes(thread);
+                final long start = System.nanoTime();
+                final long blocks;
+
+                try (SharpStream stream = mapped
+                        ? new FileStream(source) : withoutChannel(source)) {
+                    blocks = demux(stream);
+                }
+
+                final long elapsed = System.nanoTime() - start;
+                assertEquals(video.sizes.length, blocks);
+
+                System.out.printf("%s %d blocks, %.1f MiB: %.0f ms  %.1f bytes/block%n",
+                        mapped ? "mapped  " : "buffered", blocks,
+                        source.length() / (1024.0 * 1024.0), elapsed / 1e6,
+                        (bean.getThreadAllocatedBytes(thread) - allocated) / (double) blocks);
+            }
+        }
+    }
+
+    private static long demux(final SharpStream stream) throws IOException {
+        final WebMReader reader = new WebMReader(stream);
+        reader.parse();
+        reader.selectTrack(0);
+
+        long count = 0;
+        Segment segment;
+        while ((segment = reader.getNextSegment()) != null) {
+            Cluster cluster;
+            while ((cluster = segment.getNextCluster()) != null) {
+                SimpleBlock block;
+                while ((block = cluster.getNextSimpleBlock()) != null) {
+                    block.data.skip(block.dataSize);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
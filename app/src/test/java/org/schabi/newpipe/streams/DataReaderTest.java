@@ -0,0 +1,255 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import us.shandian.giga.io.ChunkFileInputStream;
+import us.shandian.giga.io.FileStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link MappedDataReader} reads exactly like the buffered {@link DataReader}, the
+ * buffered reader is used when the stream has no file channel.
+ *
+ * @see DataReaderBenchmarkTest
+ */
+public class DataReaderTest {
+    private static final int SEED = 0x6D6D6170;
+
+    private File source;
+    private File mappedOutput;
+    private File bufferedOutput;
+
+    @Before
+    public void setUp() throws IOException {
+        source = File.createTempFile("source", ".bin");
+        mappedOutput = File.createTempFile("mapped", ".bin");
+        bufferedOutput = File.createTempFile("buffered", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        source.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mappedOutput.delete();
+        //noinspection ResultOfMethodCallIgnored
+        bufferedOutput.delete();
+    }
+
+    @Test
+    public void testSelection() throws IOException {
+        writeRandom(source, 1024);
+
+        try (FileStream stream = new FileStream(source)) {
+            assertTrue(DataReader.from(stream) instanceof MappedDataReader);
+        }
+        try (SharpStream stream = withoutChannel(source)) {
+            assertEquals(DataReader.class, DataReader.from(stream).getClass());
+        }
+    }
+
+    @Test
+    public void testContent() throws IOException {
+        // more than a window, the reads cross the window boundary
+        final int size = 9 * 1024 * 1024 + 12345;
+        writeRandom(source, size);
+
+        compare(new FileStream(source), withoutChannel(source), size);
+    }
+
+    @Test
+    public void testChunk() throws IOException {
+        final int size = 10 * 1024 * 1024 + 777;
+        writeRandom(source, size);
+
+        final long start = 1234567;
+        final long end = size - 4321;
+        final long[] awaited = {0};
+
+        final ChunkFileInputStream mapped =
+                new ChunkFileInputStream(new FileStream(source), start, end, null);
+        mapped.setAvailability(offset -> {
+            // the data is never read before waiting for it
+            awaited[0] = Math.max(awaited[0], offset);
+            return offset;
+        });
+
+        compare(mapped, new ChunkFileInputStream(withoutChannel(source), start, end, null),
+                end - start);
+        assertTrue("the stream must wait for the mapped data", awaited[0] > start);
+    }
+
+    @Test
+    public void testWriteOnlyChannel() throws IOException {
+        final int size = 1024 * 1024 + 99;
+        writeRandom(source, size);
+
+        final long start = 4321;
+        final long end = size - 1234;
+
+        // like the SAF streams, the channel can not be read and the data goes through the heap
+        try (SharpStream chunk = new ChunkFileInputStream(withWriteOnlyChannel(source),
+                start, end, null);
+             SharpStream writeOnly = withWriteOnlyChannel(source);
+             SharpStream target = new FileStream(bufferedOutput)) {
+            assertEquals(null, chunk.getChannel());
+            assertEquals(0, target.transferFrom(writeOnly.getChannel(), 0, end - start));
+
+            final DataReader reader = DataReader.from(chunk);
+            assertEquals(DataReader.class, reader.getClass());
+            assertEquals(end - start, reader.transferTo(end - start, target));
+        }
+
+        final byte[] expected = Files.readAllBytes(source.toPath());
+        assertArrayEquals(Arrays.copyOfRange(expected, (int) start, (int) end),
+                Files.readAllBytes(bufferedOutput.toPath()));
+    }
+
+    /**
+     * Does the same random operations on both readers, the results and the transferred data
+     * must be equal.
+     *
+     * @param mappedStream   the source of the mapped reader
+     * @param bufferedStream the source of the buffered reader, with the same content
+     * @param length         the amount of bytes available in the sources
+     */
+    private void compare(final SharpStream mappedStream, final SharpStream bufferedStream,
+                         final long length) throws IOException {
+        final Random random = new Random(SEED);
+
+        try (SharpStream mappedTarget = new FileStream(mappedOutput);
+             SharpStream bufferedTarget = new FileStream(bufferedOutput)) {
+            final DataReader mapped = DataReader.from(mappedStream);
+            final DataReader buffered = DataReader.from(bufferedStream);
+            assertTrue(mapped instanceof MappedDataReader);
+            assertEquals(DataReader.class, buffered.getClass());
+
+            int rewinds = 0;
+            while (buffered.available()) {
+                assertTrue(mapped.available());
+
+                final int operation = random.nextInt(100);
+                if (operation < 25) {
+                    assertEquals(buffered.read(), mapped.read());
+                } else if (operation < 45) {
+                    if ((length - buffered.position()) >= DataReader.LONG_SIZE) {
+                        compareNumber(buffered, mapped, random.nextInt(3));
+                    }
+                } else if (operation < 65) {
+                    final byte[] expected = new byte[random.nextInt(100) == 0
+                            ? 9 * 1024 * 1024 : random.nextInt(70000)];
+                    final byte[] actual = new byte[expected.length];
+                    assertEquals(buffered.read(expected), mapped.read(actual));
+                    assertArrayEquals(expected, actual);
+                } else if (operation < 85) {
+                    final long amount = random.nextInt(2 * 1024 * 1024);
+                    assertEquals(buffered.skipBytes(amount), mapped.skipBytes(amount));
+                } else if (operation < 95) {
+                    final int amount = random.nextInt(10) == 0
+                            ? 1024 * 1024 : random.nextInt(64 * 1024);
+                    assertEquals(buffered.getView(amount).transferTo(amount, bufferedTarget),
+                            mapped.getView(amount).transferTo(amount, mappedTarget));
+                } else if (rewinds < 2) {
+                    buffered.rewind();
+                    mapped.rewind();
+                    rewinds++;
+                }
+
+                assertEquals(buffered.position(), mapped.position());
+                assertTrue("the stream must not be ahead of the reader",
+                        mappedStream.available() >= length - mapped.position());
+            }
+
+            assertTrue(!mapped.available());
+            assertEquals(-1, mapped.read());
+        } finally {
+            mappedStream.close();
+            bufferedStream.close();
+        }
+
+        assertTrue(bufferedOutput.length() > 0);
+        assertArrayEquals(Files.readAllBytes(bufferedOutput.toPath()),
+                Files.readAllBytes(mappedOutput.toPath()));
+    }
+
+    private static void compareNumber(final DataReader expected, final DataReader actual,
+                                      final int type) throws IOException {
+        switch (type) {
+            case 0:
+                assertEquals(expected.readShort(), actual.readShort());
+                break;
+            case 1:
+                assertEquals(expected.readInt(), actual.readInt());
+                break;
+            default:
+                assertEquals(expected.readLong(), actual.readLong());
+                break;
+        }
+    }
+
+    private static void writeRandom(final File file, final int size) throws IOException {
+        final byte[] data = new byte[size];
+        new Random(SEED).nextBytes(data);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * The stream of a file without channel, read through the buffer of {@link DataReader}.
+     *
+     * @param file the file to read
+     * @return the stream
+     */
+    static SharpStream withoutChannel(final File file) throws IOException {
+        return new FileStream(file) {
+            @Override
+            public FileChannel getChannel() {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * The stream of a file with a write-only channel, like the SAF streams.
+     *
+     * @param file the file to read
+     * @return the stream
+     */
+    static SharpStream withWriteOnlyChannel(final File file) throws IOException {
+        final FileOutputStream output = new FileOutputStream(file, true);
+
+        return new FileStream(file) {
+            @Override
+            public FileChannel getChannel() {
+                return output.getChannel();
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                try {
+                    output.close();
+                } catch (final IOException e) {
+                    // nothing to do
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,74 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.streams.Mp4FromDashWriterTest.Consumption;
+import org.schabi.newpipe.streams.Mp4FromDashWriterTest.Mode;
+import org.schabi.newpipe.streams.Mp4FromDashWriterTest.Source;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assume.assumeTrue;
+import static org.schabi.newpipe.streams.Mp4FromDashWriterTest.mux;
+
+/**
+ * Reports the time of {@link Mp4FromDashWriter#buildSinglePass} and
+ * {@link Mp4FromDashWriter#buildFragmented} and the amount of data consumed from the sources
+ * (read, skipped or copied through the channels). Only runs with {@code -Dbenchmarks}.
+ *
+ * @see Mp4FromDashWriterTest
+ */
+public class Mp4FromDashWriterBenchmarkTest {
+    private static final int ROUNDS = 2;
+
+    private File video;
+    private File audio;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue("benchmarks are disabled", Boolean.getBoolean("benchmarks"));
+        video = File.createTempFile("video", ".mp4");
+        audio = File.createTempFile("audio", ".m4a");
+        output = File.createTempFile("output", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        for (final File file : new File[]{video, audio, output}) {
+            if (file != null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        // near 160 MiB of video and 20 MiB of audio
+        Source.video(40000, 1024, 7 * 1024).write(video);
+        Source.audio(80000, 128, 384).write(audio);
+
+        long singlePass = Long.MAX_VALUE;
+        long fragmented = Long.MAX_VALUE;
+        Consumption consumed = null;
+
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            consumed = mux(output, Mode.SINGLE_PASS, video, audio);
+            singlePass = Math.min(singlePass, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            mux(output, Mode.FRAGMENTED, video, audio);
+            fragmented = Math.min(fragmented, System.nanoTime() - start);
+        }
+
+        final double length = (video.length() + audio.length()) / (1024.0 * 1024.0);
+        System.out.printf("%.1f MiB: single pass=%.0f ms (%.1f MiB consumed, %.1f MiB "
+                        + "transferred) fragmented=%.0f ms%n",
+                length, singlePass / 1e6, consumed.read / (1024.0 * 1024.0),
+                consumed.transferred / (1024.0 * 1024.0), fragmented / 1e6);
+    }
+}
@@ -0,0 +1,754 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.streams.io.SharpStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import us.shandian.giga.io.FileStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Muxes synthetic DASH sources with {@link Mp4FromDashWriter#buildSinglePass} and
+ * {@link Mp4FromDashWriter#buildFragmented}, checks the sample tables and the sample data of
+ * the outputs and the amount of data consumed from the sources (read, skipped or copied
+ * through the channels).
+ *
+ * @see Mp4FromDashWriterBenchmarkTest
+ */
+public class Mp4FromDashWriterTest {
+    private static final int SEED = 0x6D703476;
+
+    private File video;
+    private File audio;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        video = File.createTempFile("video", ".mp4");
+        audio = File.createTempFile("audio", ".m4a");
+        output = File.createTempFile("output", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        video.delete();
+        //noinspection ResultOfMethodCallIgnored
+        audio.delete();
+        //noinspection ResultOfMethodCallIgnored
+        output.delete();
+    }
+
+    @Test
+    public void testSinglePass() throws IOException {
+        // enough samples to spill the sample tables into temporal files
+        final Source videoSource = Source.video(90000, 8, 64);
+        final Source audioSource = Source.audio(120000, 8, 32);
+        videoSource.write(video);
+        audioSource.write(audio);
+
+        mux(output, Mode.SINGLE_PASS, video, audio);
+        final Mp4File singlePass = Mp4File.parse(output);
+        singlePass.verify(output, videoSource, audioSource);
+
+        assertTrue("moov must be in the reserved space", singlePass.moov < singlePass.mdat);
+    }
+
+    @Test
+    public void testMoovAtEnd() throws IOException {
+        // the first fragment has big samples, the moov size is underestimated
+        final Source videoSource = Source.video(20000, 64, 256);
+        for (int i = 0; i < Source.FRAGMENT_LENGTH; i++) {
+            videoSource.sizes[i] = 64 * 1024;
+        }
+        videoSource.write(video);
+
+        final Source audioSource = Source.audio(30000, 128, 128);
+        audioSource.write(audio);
+
+        mux(output, Mode.SINGLE_PASS, video, audio);
+        final Mp4File singlePass = Mp4File.parse(output);
+        singlePass.verify(output, videoSource, audioSource);
+
+        assertTrue("moov must be after the mdat", singlePass.moov > singlePass.mdat);
+        assertEquals(0, singlePass.tracks.get(1).stsz.length);
+        assertEquals(128, singlePass.tracks.get(1).stszDefault);
+    }
+
+    @Test
+    public void testFragmented() throws IOException {
+        // the video fragments are big enough to be copied through the channels
+        final Source videoSource = Source.video(1800, 1024, 4096);
+        final Source audioSource = Source.audio(2400, 96, 320);
+        videoSource.write(video);
+        audioSource.write(audio);
+
+        final Consumption consumed = mux(output, Mode.FRAGMENTED, video, audio);
+        assertEquals("every byte of the sources is read once",
+                video.length() + audio.length(), consumed.read);
+        assertTrue("the data must be copied through the channels", consumed.transferred > 0);
+
+        Fragments.parse(output).verify(output, videoSource, audioSource);
+    }
+
+    /**
+     * @param output  where the file is written
+     * @param mode    the output layout
+     * @param sources the fragmented files to mux
+     * @return the amount of bytes consumed from the sources
+     */
+    static Consumption mux(final File output, final Mode mode, final File... sources)
+            throws IOException {
+        final CountingStream[] streams = new CountingStream[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            streams[i] = new CountingStream(sources[i]);
+        }
+
+        try (FileStream out = new FileStream(output)) {
+            out.setLength(0);
+
+            final Mp4FromDashWriter writer = new Mp4FromDashWriter(streams);
+            writer.parseSources();
+            writer.selectTracks(new int[sources.length]);
+
+            if (mode == Mode.FRAGMENTED) {
+                writer.buildFragmented(out);
+            } else {
+                writer.buildSinglePass(out);
+            }
+
+            final Consumption consumed = new Consumption();
+            for (final CountingStream stream : streams) {
+                consumed.read += stream.read + stream.skipped;
+                consumed.transferred += stream.transferred;
+            }
+
+            writer.close();
+            return consumed;
+        }
+    }
+
+    enum Mode {
+        SINGLE_PASS, FRAGMENTED
+    }
+
+    static final class Consumption {
+        /**
+         * Bytes read, skipped or copied through the channels.
+         */
+        long read = 0;
+
+        /**
+         * Bytes copied through the channels, also counted in {@link #read}.
+         */
+        long transferred = 0;
+    }
+
+    static final class CountingStream extends FileStream {
+        long read = 0;
+        long skipped = 0; // the mapped reader only skips, the transfers skip too
+        long transferred = 0;
+
+        CountingStream(final File target) throws IOException {
+            super(target);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int value = super.read();
+            if (value >= 0) {
+                read++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(final byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int amount = super.read(b, off, len);
+            if (amount > 0) {
+                read += amount;
+            }
+            return amount;
+        }
+
+        @Override
+        public long skip(final long amount) throws IOException {
+            final long value = super.skip(amount);
+            skipped += value;
+            return value;
+        }
+
+        @Override
+        public long transferTo(final long count, final SharpStream target) throws IOException {
+            final long amount = super.transferTo(count, target);
+            transferred += amount;
+            return amount;
+        }
+    }
+
+    /**
+     * Fragmented (DASH) MPEG-4 file of one track.
+     */
+    static final class Source {
+        static final int FRAGMENT_LENGTH = 60;
+
+        final boolean isAudio;
+        final int track;
+        final int[] sizes;
+
+        private Source(final boolean isAudio, final int count, final int minSize,
+                       final int maxSize) {
+            this.isAudio = isAudio;
+            this.track = isAudio ? 1 : 0;
+            this.sizes = new int[count];
+
+            final Random random = new Random(SEED + track);
+            for (int i = 0; i < count; i++) {
+                sizes[i] = minSize + random.nextInt(maxSize - minSize + 1);
+            }
+        }
+
+        static Source video(final int count, final int minSize, final int maxSize) {
+            return new Source(false, count, minSize, maxSize);
+        }
+
+        static Source audio(final int count, final int minSize, final int maxSize) {
+            return new Source(true, count, minSize, maxSize);
+        }
+
+        byte valueAt(final int sample, final int position) {
+            return (byte) ((sample * 31) ^ (position * 7) ^ track);
+        }
+
+        int timescale() {
+            return isAudio ? 44100 : 30000;
+        }
+
+        int sampleDuration() {
+            return isAudio ? 1024 : 1001;
+        }
+
+        boolean isKeyframe(final int sample) {
+            return isAudio || sample % 30 == 0;
+        }
+
+        int compositionOffset(final int sample) {
+            return (sample % 3) * 1001;
+        }
+
+        void write(final File file) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+                out.write(box("ftyp", ints(0x64617368, 0, 0x69736F36, 0x6D703431)));
+                out.write(box("moov", mvhd(), trak(), box("mvex", trex())));
+
+                byte[] data = new byte[0];
+                for (int first = 0, sequence = 1; first < sizes.length;
+                     first += FRAGMENT_LENGTH, sequence++) {
+                    final int count = Math.min(FRAGMENT_LENGTH, sizes.length - first);
+
+                    // the data offset points to the mdat content, the moof size is the same
+                    final int moofSize = moof(sequence, first, count, 0).length;
+                    out.write(moof(sequence, first, count, moofSize + 8));
+
+                    int length = 0;
+                    for (int i = first; i < first + count; i++) {
+                        length += sizes[i];
+                    }
+
+                    if (data.length < length) {
+                        data = new byte[length];
+                    }
+
+                    int position = 0;
+                    for (int i = first; i < first + count; i++) {
+                        for (int j = 0; j < sizes[i]; j++) {
+                            data[position++] = valueAt(i, j);
+                        }
+                    }
+
+                    out.writeInt(length + 8);
+                    out.writeBytes("mdat");
+                    out.write(data, 0, length);
+                }
+            }
+        }
+
+        private byte[] moof(final int sequence, final int first, final int count,
+                            final int dataOffset) throws IOException {
+            final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            final DataOutputStream trun = new DataOutputStream(entries);
+
+            trun.writeInt(isAudio ? 0x201 : 0xF01);
+            trun.writeInt(count);
+            trun.writeInt(dataOffset);
+            for (int i = first; i < first + count; i++) {
+                if (!isAudio) {
+                    trun.writeInt(sampleDuration());
+                }
+                trun.writeInt(sizes[i]);
+                if (!isAudio) {
+                    trun.writeInt(isKeyframe(i) ? 0x02000000 : 0x01010000);
+                    trun.writeInt(compositionOffset(i));
+                }
+            }
+
+            final byte[] tfhd = isAudio
+                    ? ints(0x28, 1, sampleDuration(), 0) // default duration and flags
+                    : ints(0x00, 1);
+            final long decodeTime = (long) first * sampleDuration();
+
+            return box("moof",
+                    box("mfhd", ints(0, sequence)),
+                    box("traf",
+                            box("tfhd", tfhd),
+                            box("tfdt", ints(0x01000000, (int) (decodeTime >>> 32),
+                                    (int) decodeTime)),
+                            box("trun", entries.toByteArray())
+                    )
+            );
+        }
+
+        private byte[] mvhd() {
+            final ByteBuffer buffer = ByteBuffer.allocate(100);
+            buffer.putInt(12, 1000); // timescale
+            buffer.putInt(20, 0x00010000); // rate
+            buffer.putShort(24, (short) 0x0100); // volume
+            putMatrix(buffer, 36);
+            buffer.putInt(96, 2); // next track id
+            return box("mvhd", buffer.array());
+        }
+
+        private byte[] trak() {
+            final ByteBuffer tkhd = ByteBuffer.allocate(84);
+            tkhd.putInt(0, 0x00000003); // flags
+            tkhd.putInt(12, 1); // track id
+            tkhd.putShort(36, (short) (isAudio ? 0x0100 : 0)); // volume
+            putMatrix(tkhd, 40);
+            tkhd.putInt(76, isAudio ? 0 : 1280 << 16);
+            tkhd.putInt(80, isAudio ? 0 : 720 << 16);
+
+            final ByteBuffer mdhd = ByteBuffer.allocate(24);
+            mdhd.putInt(12, timescale());
+            mdhd.putShort(20, (short) 0x55C4); // language "und"
+
+            final ByteBuffer hdlr = ByteBuffer.allocate(25);
+            hdlr.put(8, (byte) (isAudio ? 's' : 'v'));
+            hdlr.put(9, (byte) (isAudio ? 'o' : 'i'));
+            hdlr.put(10, (byte) (isAudio ? 'u' : 'd'));
+            hdlr.put(11, (byte) (isAudio ? 'n' : 'e'));
+
+            final byte[] mhd = isAudio
+                    ? box("smhd", new byte[8])
+                    : box("vmhd", ints(1, 0, 0));
+            final byte[] dinf = box("dinf", box("dref", ints(0, 1), box("url ", ints(1))));
+            final byte[] stsd = box("stsd", ints(0, 1),
+                    box(isAudio ? "mp4a" : "avc1", new byte[isAudio ? 28 : 78]));
+
+            return box("trak",
+                    box("tkhd", tkhd.array()),
+                    box("mdia",
+                            box("mdhd", mdhd.array()),
+                            box("hdlr", hdlr.array()),
+                            box("minf", mhd, dinf, box("stbl", stsd))
+                    )
+            );
+        }
+
+        private byte[] trex() {
+            return box("trex", ints(0, 1, 1, 0, 0, 0));
+        }
+
+        private static void putMatrix(final ByteBuffer buffer, final int offset) {
+            buffer.putInt(offset, 0x00010000);
+            buffer.putInt(offset + 16, 0x00010000);
+            buffer.putInt(offset + 32, 0x40000000);
+        }
+    }
+
+    static byte[] ints(final int... values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (final int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    static byte[] box(final String type, final byte[]... content) {
+        int size = 8;
+        for (final byte[] part : content) {
+            size += part.length;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(size);
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) type.charAt(i));
+        }
+        for (final byte[] part : content) {
+            buffer.put(part);
+        }
+        return buffer.array();
+    }
+
+    static final class Track {
+        int[] stts = new int[0];
+        int[] ctts = new int[0];
+        int[] stss = new int[0];
+        int[] stsc = new int[0];
+        int[] stsz = new int[0];
+        int stszDefault;
+        long[] chunks = new long[0];
+    }
+
+    /**
+     * Reads the top level boxes and the sample tables of a non-fragmented MPEG-4 file.
+     */
+    static final class Mp4File {
+        final List<Track> tracks = new ArrayList<>();
+        long moov = -1;
+        long mdat = -1;
+        long mdatEnd = -1;
+
+        static Mp4File parse(final File file) throws IOException {
+            final Mp4File mp4 = new Mp4File();
+
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                long offset = 0;
+                while (offset < in.length()) {
+                    in.seek(offset);
+                    long size = in.readInt() & 0xFFFFFFFFL;
+                    final int type = in.readInt();
+                    int header = 8;
+                    if (size == 1) {
+                        size = in.readLong();
+                        header = 16;
+                    }
+                    assertTrue("bad box size at " + offset, size >= header);
+
+                    if (type == 0x6D6F6F76) { // moov
+                        final byte[] moov = new byte[(int) size - header];
+                        in.readFully(moov);
+                        mp4.moov = offset;
+                        mp4.parseContainer(ByteBuffer.wrap(moov), null);
+                    } else if (type == 0x6D646174) { // mdat
+                        mp4.mdat = offset + header;
+                        mp4.mdatEnd = offset + size;
+                    }
+
+                    offset += size;
+                }
+
+                assertEquals("the boxes must cover the whole file", in.length(), offset);
+            }
+
+            return mp4;
+        }
+
+        private void parseContainer(final ByteBuffer buffer, final Track parent) {
+            Track track = parent;
+
+            while (buffer.remaining() >= 8) {
+                final int size = buffer.getInt();
+                final int type = buffer.getInt();
+                final ByteBuffer body = buffer.slice();
+                body.limit(size - 8);
+                buffer.position(buffer.position() + size - 8);
+
+                switch (type) {
+                    case 0x7472616B: // trak
+                        track = new Track();
+                        tracks.add(track);
+                        parseContainer(body, track);
+                        break;
+                    case 0x6D646961: // mdia
+                    case 0x6D696E66: // minf
+                    case 0x7374626C: // stbl
+                        parseContainer(body, track);
+                        break;
+                    case 0x73747473: // stts
+                        track.stts = table(body, 2);
+                        break;
+                    case 0x63747473: // ctts
+                        track.ctts = table(body, 2);
+                        break;
+                    case 0x73747373: // stss
+                        track.stss = table(body, 1);
+                        break;
+                    case 0x73747363: // stsc
+                        track.stsc = table(body, 3);
+                        break;
+                    case 0x7374737A: // stsz
+                        body.getInt(); // version and flags
+                        track.stszDefault = body.getInt();
+                        track.stsz = new int[body.getInt()];
+                        body.asIntBuffer().get(track.stsz);
+                        break;
+                    case 0x7374636F: // stco
+                        final int[] offsets = table(body, 1);
+                        track.chunks = new long[offsets.length];
+                        for (int i = 0; i < offsets.length; i++) {
+                            track.chunks[i] = offsets[i] & 0xFFFFFFFFL;
+                        }
+                        break;
+                    case 0x636F3634: // co64
+                        body.getInt(); // version and flags
+                        track.chunks = new long[body.getInt()];
+                        body.asLongBuffer().get(track.chunks);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        private static int[] table(final ByteBuffer body, final int columns) {
+            body.getInt(); // version and flags
+            final int[] table = new int[body.getInt() * columns];
+            body.asIntBuffer().get(table);
+            return table;
+        }
+
+        /**
+         * Reads every sample using the tables, and compares it against the source.
+         *
+         * @param file    the muxed file
+         * @param sources the sources of the tracks, in the same order
+         */
+        void verify(final File file, final Source... sources) throws IOException {
+            assertEquals(sources.length, tracks.size());
+
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                for (int t = 0; t < sources.length; t++) {
+                    final Track track = tracks.get(t);
+                    final Source source = sources[t];
+                    final int[] samplesPerChunk = expandStsc(track);
+
+                    int sample = 0;
+                    for (int c = 0; c < track.chunks.length; c++) {
+                        long offset = track.chunks[c];
+                        for (int s = 0; s < samplesPerChunk[c]; s++, sample++) {
+                            final int size = track.stsz.length > 0
+                                    ? track.stsz[sample] : track.stszDefault;
+                            assertEquals(source.sizes[sample], size);
+                            assertTrue(offset >= mdat && offset + size <= mdatEnd);
+
+                            final byte[] data = new byte[size];
+                            in.seek(offset);
+                            in.readFully(data);
+                            for (int i = 0; i < size; i++) {
+                                if (data[i] != source.valueAt(sample, i)) {
+                                    throw new AssertionError("track " + t + " sample " + sample
+                                            + " mismatch at " + i);
+                                }
+                            }
+                            offset += size;
+                        }
+                    }
+
+                    assertEquals(source.sizes.length, sample);
+                    assertEquals(source.sizes.length, track.stts[0]);
+                    assertEquals(source.sampleDuration(), track.stts[1]);
+
+                    if (!source.isAudio) {
+                        assertEquals((source.sizes.length + 29) / 30, track.stss.length);
+                        int index = 0;
+                        for (int i = 0; i < track.ctts.length; i += 2) {
+                            for (int j = 0; j < track.ctts[i]; j++, index++) {
+                                assertEquals(source.compositionOffset(index), track.ctts[i + 1]);
+                            }
+                        }
+                        assertEquals(source.sizes.length, index);
+                    }
+                }
+            }
+        }
+
+        private static int[] expandStsc(final Track track) {
+            final int[] samples = new int[track.chunks.length];
+            for (int i = 0; i < track.stsc.length; i += 3) {
+                final int first = track.stsc[i] - 1;
+                final int last = i + 3 < track.stsc.length
+                        ? track.stsc[i + 3] - 1 : samples.length;
+                for (int j = first; j < last; j++) {
+                    samples[j] = track.stsc[i + 1];
+                }
+            }
+            return samples;
+        }
+    }
+
+    /**
+     * Reads the fragments of a fragmented MPEG-4 file, every sample is compared against the
+     * source of its track.
+     */
+    static final class Fragments {
+        final List<long[]> fragments = new ArrayList<>(); // offset, track, decode time
+        final List<byte[]> truns = new ArrayList<>();
+        final List<int[]> defaults = new ArrayList<>(); // tfhd flags, duration, size, flags
+        final int[] tfraCount = new int[2];
+        long mfra = -1;
+
+        static Fragments parse(final File file) throws IOException {
+            final Fragments fragments = new Fragments();
+            final List<Integer> types = new ArrayList<>();
+
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                long offset = 0;
+                int sequence = 0;
+                while (offset < in.length()) {
+                    in.seek(offset);
+                    final int size = in.readInt();
+                    final int type = in.readInt();
+                    assertTrue("bad box size at " + offset, size >= 8);
+                    types.add(type);
+
+                    if (type == 0x6D6F6F66) { // moof
+                        final byte[] moof = new byte[size - 8];
+                        in.readFully(moof);
+                        final ByteBuffer buffer = ByteBuffer.wrap(moof);
+
+                        assertEquals(0x6D666864, buffer.getInt(4)); // mfhd
+                        assertEquals(++sequence, buffer.getInt(12));
+                        fragments.parseTraf(buffer, 16, offset);
+                    } else if (type == 0x6D667261) { // mfra
+                        fragments.mfra = offset;
+                        final byte[] mfra = new byte[size - 8];
+                        in.readFully(mfra);
+                        final ByteBuffer buffer = ByteBuffer.wrap(mfra);
+                        for (int i = 0; i < 2; i++) {
+                            final int tfra = buffer.position();
+                            assertEquals(0x74667261, buffer.getInt(tfra + 4));
+                            assertEquals(i + 1, buffer.getInt(tfra + 12));
+                            fragments.tfraCount[i] = buffer.getInt(tfra + 20);
+                            buffer.position(tfra + buffer.getInt(tfra));
+                        }
+                        assertEquals(size, buffer.getInt(buffer.position() + 12)); // mfro
+                    }
+
+                    offset += size;
+                }
+
+                assertEquals("the boxes must cover the whole file", in.length(), offset);
+            }
+
+            assertEquals(0x66747970, (int) types.get(0)); // ftyp
+            assertEquals(0x6D6F6F76, (int) types.get(1)); // moov
+            assertEquals(0x6D667261, (int) types.get(types.size() - 1)); // mfra
+            return fragments;
+        }
+
+        private void parseTraf(final ByteBuffer moof, final int traf, final long moofOffset) {
+            assertEquals(0x74726166, moof.getInt(traf + 4));
+
+            final int tfhd = traf + 8;
+            final int tfhdFlags = moof.getInt(tfhd + 8);
+            assertTrue("offsets must be relative to the moof", (tfhdFlags & 0x020000) != 0);
+            assertEquals(0, tfhdFlags & 0x03);
+
+            final int[] values = new int[]{tfhdFlags, 0, 0, 0};
+            int position = tfhd + 16;
+            for (int i = 0; i < 3; i++) {
+                if ((tfhdFlags & (0x08 << i)) != 0) {
+                    values[i + 1] = moof.getInt(position);
+                    position += 4;
+                }
+            }
+
+            final int tfdt = tfhd + moof.getInt(tfhd);
+            assertEquals(0x74666474, moof.getInt(tfdt + 4));
+            final long decodeTime = moof.getLong(tfdt + 12);
+
+            final int trun = tfdt + moof.getInt(tfdt);
+            final byte[] box = new byte[moof.getInt(trun) - 8];
+            moof.position(trun + 8);
+            moof.get(box);
+
+            fragments.add(new long[]{moofOffset, moof.getInt(tfhd + 12), decodeTime});
+            truns.add(box);
+            defaults.add(values);
+        }
+
+        void verify(final File file, final Source... sources) throws IOException {
+            final int[] sample = new int[sources.length];
+            final int[] keyframes = new int[sources.length];
+            double lastStart = 0;
+
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                for (int f = 0; f < fragments.size(); f++) {
+                    final int t = (int) fragments.get(f)[1] - 1;
+                    final Source source = sources[t];
+                    final ByteBuffer trun = ByteBuffer.wrap(truns.get(f));
+                    final int[] values = defaults.get(f);
+
+                    final long decodeTime = fragments.get(f)[2];
+                    assertEquals((long) sample[t] * source.sampleDuration(), decodeTime);
+
+                    final double start = (double) decodeTime / source.timescale();
+                    assertTrue("fragments must be in presentation order", start >= lastStart);
+                    lastStart = start;
+
+                    final int flags = trun.getInt();
+                    final int count = trun.getInt();
+                    long offset = fragments.get(f)[0] + trun.getInt();
+                    if ((flags & 0x04) != 0) {
+                        trun.getInt();
+                    }
+                    if (source.isKeyframe(sample[t])) {
+                        keyframes[t]++;
+                    }
+
+                    for (int s = 0; s < count; s++, sample[t]++) {
+                        final int duration = (flags & 0x100) != 0 ? trun.getInt() : values[1];
+                        final int size = (flags & 0x200) != 0 ? trun.getInt() : values[2];
+                        if ((flags & 0x400) != 0) {
+                            trun.getInt();
+                        }
+                        if ((flags & 0x800) != 0) {
+                            assertEquals(source.compositionOffset(sample[t]), trun.getInt());
+                        }
+
+                        assertEquals(source.sampleDuration(), duration);
+                        assertEquals(source.sizes[sample[t]], size);
+
+                        final byte[] data = new byte[size];
+                        in.seek(offset);
+                        in.readFully(data);
+                        for (int i = 0; i < size; i++) {
+                            if (data[i] != source.valueAt(sample[t], i)) {
+                                throw new AssertionError("track " + t + " sample " + sample[t]
+                                        + " mismatch at " + i);
+                            }
+                        }
+                        offset += size;
+                    }
+                }
+            }
+
+            for (int t = 0; t < sources.length; t++) {
+                assertEquals(sources[t].sizes.length, sample[t]);
+                assertEquals(keyframes[t], tfraCount[t]);
+            }
+        }
+    }
+}
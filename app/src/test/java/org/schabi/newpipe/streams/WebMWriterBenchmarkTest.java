@@ -0,0 +1,84 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.streams.WebMWriterTest.Source;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import static org.schabi.newpipe.streams.WebMWriterTest.demux;
+import static org.schabi.newpipe.streams.WebMWriterTest.mux;
+import static org.schabi.newpipe.streams.WebMWriterTest.verify;
+
+/**
+ * Muxes one hour of synthetic video and audio with {@link WebMWriter} and reports the heap
+ * allocated per block. The allocations of the demuxing are measured alone first, the rest
+ * belongs to the writer. Only runs with {@code -Dbenchmarks}.
+ *
+ * @see WebMWriterTest
+ */
+public class WebMWriterBenchmarkTest {
+    private static final int HOUR_MS = 60 * 60 * 1000;
+
+    private File video;
+    private File audio;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue("benchmarks are disabled", Boolean.getBoolean("benchmarks"));
+        video = File.createTempFile("video", ".webm");
+        audio = File.createTempFile("audio", ".webm");
+        output = File.createTempFile("output", ".webm");
+    }
+
+    @After
+    public void tearDown() {
+        for (final File file : new File[]{video, audio, output}) {
+            if (file != null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        final Source videoSource = Source.video(HOUR_MS);
+        final Source audioSource = Source.audio(HOUR_MS);
+        videoSource.write(video);
+        audioSource.write(audio);
+
+        final long blocks = videoSource.sizes.length + audioSource.sizes.length;
+        final com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+
+        demux(video, audio); // warm up
+        mux(output, video, audio);
+
+        long allocated = bean.getThreadAllocatedBytes(thread);
+        assertEquals(blocks, demux(video, audio));
+        final long demuxing = bean.getThreadAllocatedBytes(thread) - allocated;
+
+        allocated = bean.getThreadAllocatedBytes(thread);
+        final long start = System.nanoTime();
+        mux(output, video, audio);
+        final long elapsed = System.nanoTime() - start;
+        final long muxing = bean.getThreadAllocatedBytes(thread) - allocated;
+
+        System.out.printf("1 hour, %d blocks, %.1f MiB: %.0f ms  demuxing=%.1f bytes/block  "
+                        + "muxing=%.1f bytes/block  writer=%.1f bytes/block%n",
+                blocks, output.length() / (1024.0 * 1024.0), elapsed / 1e6,
+                demuxing / (double) blocks, muxing / (double) blocks,
+                (muxing - demuxing) / (double) blocks);
+
+        verify(output, 0, videoSource);
+        verify(output, 1, audioSource);
+    }
+}
@@ -0,0 +1,315 @@
+package org.schabi.newpipe.streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.schabi.newpipe.streams.WebMReader.Cluster;
+import org.schabi.newpipe.streams.WebMReader.Segment;
+import org.schabi.newpipe.streams.WebMReader.SimpleBlock;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import us.shandian.giga.io.FileStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Muxes synthetic video and audio with {@link WebMWriter} and checks every block of the output.
+ *
+ * @see WebMWriterBenchmarkTest
+ */
+public class WebMWriterTest {
+    private static final int SEED = 0x7765626D;
+
+    private File video;
+    private File audio;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        video = File.createTempFile("video", ".webm");
+        audio = File.createTempFile("audio", ".webm");
+        output = File.createTempFile("output", ".webm");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        video.delete();
+        //noinspection ResultOfMethodCallIgnored
+        audio.delete();
+        //noinspection ResultOfMethodCallIgnored
+        output.delete();
+    }
+
+    @Test
+    public void testContent() throws IOException {
+        final Source videoSource = Source.video(60 * 1000);
+        final Source audioSource = Source.audio(60 * 1000);
+        videoSource.write(video);
+        audioSource.write(audio);
+
+        mux(output, video, audio);
+        verify(output, 0, videoSource);
+        verify(output, 1, audioSource);
+    }
+
+    static void mux(final File output, final File video, final File audio) throws IOException {
+        try (FileStream out = new FileStream(output)) {
+            out.setLength(0);
+
+            final WebMWriter writer = new WebMWriter(new FileStream(video), new FileStream(audio));
+            writer.parseSources();
+            writer.selectTracks(0, 0);
+            writer.build(out);
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads every block of the sources, like the writer does.
+     *
+     * @param sources the files to read
+     * @return the amount of blocks
+     */
+    static long demux(final File... sources) throws IOException {
+        long count = 0;
+
+        for (final File file : sources) {
+            try (FileStream stream = new FileStream(file)) {
+                final WebMReader reader = new WebMReader(stream);
+                reader.parse();
+                reader.selectTrack(0);
+
+                Segment segment;
+                while ((segment = reader.getNextSegment()) != null) {
+                    Cluster cluster;
+                    while ((cluster = segment.getNextCluster()) != null) {
+                        SimpleBlock block;
+                        while ((block = cluster.getNextSimpleBlock()) != null) {
+                            block.data.skip(block.dataSize);
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+
+        return count;
+    }
+
+    static void verify(final File output, final int track, final Source source)
+            throws IOException {
+        try (FileStream stream = new FileStream(output)) {
+            final WebMReader reader = new WebMReader(stream);
+            reader.parse();
+            assertEquals(2, reader.getAvailableTracks().length);
+            assertEquals(source.codecId, reader.selectTrack(track).codecId);
+
+            final byte[] data = new byte[source.maximumSize];
+            int index = 0;
+
+            Segment segment;
+            while ((segment = reader.getNextSegment()) != null) {
+                Cluster cluster;
+                while ((cluster = segment.getNextCluster()) != null) {
+                    SimpleBlock block;
+                    while ((block = cluster.getNextSimpleBlock()) != null) {
+                        assertTrue("unexpected block", index < source.sizes.length);
+                        assertEquals(source.timecodeOf(index),
+                                block.absoluteTimeCodeNs / 1000000);
+                        assertEquals(source.isKeyframe(index), block.isKeyframe());
+                        assertEquals(source.sizes[index], block.dataSize);
+
+                        assertEquals(block.dataSize, block.data.read(data, 0, block.dataSize));
+                        for (int i = 0; i < block.dataSize; i++) {
+                            if (data[i] != source.valueAt(index, i)) {
+                                throw new AssertionError("track " + track + " block " + index
+                                        + " mismatch at " + i);
+                            }
+                        }
+                        index++;
+                    }
+                }
+            }
+
+            assertEquals(source.sizes.length, index);
+            assertNull(reader.getNextSegment());
+        }
+    }
+
+    /**
+     * WebM file of one track, with a cluster every second.
+     */
+    static final class Source {
+        final boolean isAudio;
+        final String codecId;
+        final int frameDuration;
+        final int maximumSize;
+        final int[] sizes;
+
+        private Source(final boolean isAudio, final int duration, final int minimumSize,
+                       final int maximumSize) {
+            this.isAudio = isAudio;
+            this.codecId = isAudio ? "A_OPUS" : "V_VP9";
+            this.frameDuration = isAudio ? 20 : 40;
+            this.maximumSize = maximumSize;
+            this.sizes = new int[duration / frameDuration];
+
+            final Random random = new Random(SEED + (isAudio ? 1 : 0));
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = minimumSize + random.nextInt(maximumSize - minimumSize + 1);
+            }
+        }
+
+        static Source video(final int duration) {
+            return video(duration, 16, 96);
+        }
+
+        static Source video(final int duration, final int minimumSize, final int maximumSize) {
+            return new Source(false, duration, minimumSize, maximumSize);
+        }
+
+        static Source audio(final int duration) {
+            return new Source(true, duration, 16, 96);
+        }
+
+        long timecodeOf(final int index) {
+            return (long) index * frameDuration;
+        }
+
+        boolean isKeyframe(final int index) {
+            return isAudio || index % 50 == 0;
+        }
+
+        byte valueAt(final int index, final int position) {
+            return (byte) ((index * 17) ^ (position * 5) ^ (isAudio ? 0x55 : 0));
+        }
+
+        void write(final File file) throws IOException {
+            final byte[] track = isAudio
+                    ? element(0xE1, element(0xB5, ByteBuffer.allocate(8).putDouble(48000)
+                    .array()), element(0x9F, number(2)))
+                    : element(0xE0, element(0xB0, number(1280)), element(0xBA, number(720)));
+
+            final byte[] info = element(0x1549A966, element(0x2AD7B1, number(1000000)));
+            final byte[] tracks = element(0x1654AE6B, element(0xAE,
+                    element(0xD7, number(1)),
+                    element(0x83, number(isAudio ? 2 : 1)),
+                    element(0x86, codecId.getBytes(StandardCharsets.US_ASCII)),
+                    element(0x9C, number(0)),
+                    element(0x23E383, number(frameDuration * 1000000L)),
+                    track
+            ));
+
+            // the clusters are built twice, the size of the segment is written first
+            long segmentSize = info.length + tracks.length;
+            for (int i = 0; i < sizes.length; i = clusterEnd(i)) {
+                segmentSize += cluster(i).length;
+            }
+
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                out.write(element(0x1A45DFA3,
+                        element(0x4286, number(1)),
+                        element(0x42F7, number(1)),
+                        element(0x42F2, number(4)),
+                        element(0x42F3, number(8)),
+                        element(0x4282, "webm".getBytes(StandardCharsets.US_ASCII)),
+                        element(0x4287, number(2)),
+                        element(0x4285, number(2))
+                ));
+                out.write(header(0x18538067, segmentSize));
+                out.write(info);
+                out.write(tracks);
+
+                for (int i = 0; i < sizes.length; i = clusterEnd(i)) {
+                    out.write(cluster(i));
+                }
+            }
+        }
+
+        /**
+         * @param first the first block of the cluster
+         * @return the index of the first block of the next cluster
+         */
+        private int clusterEnd(final int first) {
+            int end = first;
+            while (end < sizes.length && (timecodeOf(end) - timecodeOf(first)) < 1000) {
+                end++;
+            }
+            return end;
+        }
+
+        private byte[] cluster(final int first) throws IOException {
+            final ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+            final long clusterTimecode = timecodeOf(first);
+            final int end = clusterEnd(first);
+
+            for (int i = first; i < end; i++) {
+                final long timecode = timecodeOf(i);
+                final byte[] block = new byte[4 + sizes[i]];
+                block[0] = (byte) 0x81; // track number
+                block[1] = (byte) ((timecode - clusterTimecode) >> 8);
+                block[2] = (byte) (timecode - clusterTimecode);
+                block[3] = (byte) (isKeyframe(i) ? 0x80 : 0x00);
+                for (int j = 0; j < sizes[i]; j++) {
+                    block[4 + j] = valueAt(i, j);
+                }
+                blocks.write(element(0xA3, block));
+            }
+
+            return element(0x1F43B675, element(0xE7, number(clusterTimecode)),
+                    blocks.toByteArray());
+        }
+
+        private static byte[] number(final long value) {
+            return ByteBuffer.allocate(8).putLong(value).array();
+        }
+
+        /**
+         * Element with a 8 bytes size, the id includes the length marker.
+         *
+         * @param id      the element id
+         * @param content the parts of the content
+         * @return the encoded element
+         */
+        private static byte[] element(final int id, final byte[]... content) {
+            long size = 0;
+            for (final byte[] part : content) {
+                size += part.length;
+            }
+
+            final byte[] header = header(id, size);
+            final ByteBuffer buffer = ByteBuffer.allocate((int) (header.length + size));
+            buffer.put(header);
+            for (final byte[] part : content) {
+                buffer.put(part);
+            }
+            return buffer.array();
+        }
+
+        private static byte[] header(final int id, final long size) {
+            int idLength = 4;
+            while (idLength > 1 && (id >>> ((idLength - 1) * 8)) == 0) {
+                idLength--;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(idLength + 8);
+            for (int i = idLength - 1; i >= 0; i--) {
+                buffer.put((byte) (id >>> (i * 8)));
+            }
+            buffer.putLong(size | 0x0100000000000000L);
+            return buffer.array();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package us.shandian.giga.get;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static us.shandian.giga.get.BlockAllocatorTest.runThreads;
+
+/**
+ * Compares the lock-free block allocator of {@link DownloadMission} against the old
+ * synchronized linear scan, using a 10 GiB file (20480 blocks). Only runs with
+ * {@code -Dbenchmarks}.
+ *
+ * @see BlockAllocatorTest
+ */
+public class BlockAllocatorBenchmarkTest {
+    private static final int BLOCK_COUNT = 20480;
+    private static final int ROUNDS = 3;
+
+    @Before
+    public void setUp() {
+        assumeTrue("benchmarks are disabled", Boolean.getBoolean("benchmarks"));
+    }
+
+    @Test
+    public void benchmark16Threads() throws InterruptedException {
+        benchmark(16);
+    }
+
+    @Test
+    public void benchmark32Threads() throws InterruptedException {
+        benchmark(32);
+    }
+
+    private void benchmark(final int threadCount) throws InterruptedException {
+        long lockFree = Long.MAX_VALUE;
+        long synchronizedScan = Long.MAX_VALUE;
+
+        for (int i = 0; i < ROUNDS; i++) {
+            lockFree = Math.min(lockFree, runLockFree(threadCount));
+            synchronizedScan = Math.min(synchronizedScan, runSynchronizedScan(threadCount));
+        }
+
+        System.out.printf("%d threads: lock-free=%.2fms synchronized=%.2fms%n",
+                threadCount, lockFree / 1e6, synchronizedScan / 1e6);
+    }
+
+    private long runLockFree(final int threadCount) throws InterruptedException {
+        final DownloadMission mission = new BlockAllocatorTest.TestMission();
+        mission.length = (long) BLOCK_COUNT * DownloadMission.BLOCK_SIZE;
+        mission.blocks = new int[BLOCK_COUNT];
+        mission.threadCount = threadCount;
+        assertEquals(BLOCK_COUNT, mission.prepareBlocks());
+
+        final AtomicInteger acquired = new AtomicInteger();
+        final long elapsed = runThreads(threadCount, () -> {
+            DownloadMission.Block block;
+            while ((block = mission.acquireBlock()) != null) {
+                block.advance(block.remaining());
+                mission.releaseBlock(block);
+                acquired.incrementAndGet();
+            }
+        });
+
+        // the tail of in-flight blocks can be stolen, so there can be more parts than blocks
+        assertTrue(acquired.get() >= BLOCK_COUNT);
+        for (final int block : mission.blocks) {
+            assertEquals(-1, block);
+        }
+
+        return elapsed;
+    }
+
+    private long runSynchronizedScan(final int threadCount) throws InterruptedException {
+        final Object lock = new Object();
+        final boolean[] blockAcquired = new boolean[BLOCK_COUNT];
+        final int[] blocks = new int[BLOCK_COUNT];
+
+        final AtomicInteger acquired = new AtomicInteger();
+        final long elapsed = runThreads(threadCount, () -> {
+            while (true) {
+                int position = -1;
+                synchronized (lock) {
+                    for (int i = 0; i < blockAcquired.length; i++) {
+                        if (!blockAcquired[i] && blocks[i] >= 0) {
+                            blockAcquired[i] = true;
+                            position = i;
+                            break;
+                        }
+                    }
+                }
+
+                if (position < 0) {
+                    break;
+                }
+
+                synchronized (lock) {
+                    blockAcquired[position] = false;
+                    blocks[position] = -1;
+                }
+                acquired.incrementAndGet();
+            }
+        });
+
+        assertEquals(BLOCK_COUNT, acquired.get());
+        return elapsed;
+    }
+}
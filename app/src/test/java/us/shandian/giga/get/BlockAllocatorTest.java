@@ -0,0 +1,177 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the lock-free block allocator of {@link DownloadMission} gives every block until
+ * it is downloaded, also when blocks are released unfinished while other threads acquire.
+ *
+ * @see BlockAllocatorBenchmarkTest
+ */
+public class BlockAllocatorTest {
+    private static final int BLOCK_COUNT = 2048;
+
+    @Test
+    public void testAllBlocks() {
+        final DownloadMission mission = createMission(1);
+
+        DownloadMission.Block block;
+        int acquired = 0;
+        while ((block = mission.acquireBlock()) != null) {
+            assertEquals(acquired, block.position);
+            block.advance(block.remaining());
+            mission.releaseBlock(block);
+            acquired++;
+        }
+
+        assertEquals(BLOCK_COUNT, acquired);
+        assertAllDone(mission);
+    }
+
+    @Test
+    public void testReleaseUnfinished() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            final DownloadMission mission = createMission(8);
+
+            // every block is given back (without progress) up to 3 times before downloading it
+            final AtomicIntegerArray releases = new AtomicIntegerArray(BLOCK_COUNT);
+
+            runThreads(8, () -> {
+                DownloadMission.Block block;
+                while ((block = mission.acquireBlock()) != null) {
+                    if (block.head == block && block.done == block.start
+                            && ThreadLocalRandom.current().nextBoolean()
+                            && releases.getAndIncrement(block.position) < 3) {
+                        // let the other threads scan past the block before releasing it
+                        Thread.yield();
+                        mission.releaseBlock(block);
+                        continue;
+                    }
+
+                    block.advance(block.remaining());
+                    mission.releaseBlock(block);
+                }
+            });
+
+            assertAllDone(mission);
+            assertNull(mission.acquireBlock());
+        }
+    }
+
+    @Test
+    public void testRemainingTimeOfUnstartedPart() {
+        final DownloadMission.Block started =
+                new DownloadMission.Block(0, 0, 0, 0, DownloadMission.BLOCK_SIZE);
+        final DownloadMission.Block connecting =
+                new DownloadMission.Block(1, 0, 0, 0, DownloadMission.BLOCK_SIZE);
+        started.advance(DownloadMission.BUFFER_SIZE);
+
+        final long now = System.nanoTime() + 1000000;
+        final double throughput = started.throughput(now);
+        assertTrue(started.estimateRemainingTime(now, throughput) > 0);
+
+        // a part still connecting is not the slowest one
+        assertEquals(0, connecting.estimateRemainingTime(now, throughput), 0);
+
+        // once the grace period ends, it is estimated with the average throughput
+        final long late = now + DownloadMission.CONNECT_GRACE_PERIOD;
+        assertEquals(connecting.remaining() / throughput,
+                connecting.estimateRemainingTime(late, throughput), 1);
+    }
+
+    @Test
+    public void testUnplacedSegments() {
+        final DownloadMission mission = new TestMission();
+        mission.urls = new String[]{"http://localhost/0", "http://localhost/1",
+                "http://localhost/2"};
+        mission.offsets = new long[3];
+        mission.lengths = new long[]{1000, -1, 500};
+        mission.wholeSegments = true;
+        mission.length = 1500;
+
+        // the progress of a segment is kept only if its offset and length were saved
+        mission.blocks = new int[]{-1, 100, -1};
+        assertEquals(2, mission.prepareBlocks());
+        assertEquals(1000, mission.offsets[1]);
+
+        final DownloadMission.Block block = mission.acquireBlock();
+        assertEquals(1, block.position);
+        assertEquals(0, block.done);
+        assertEquals(0, block.limit);
+        assertTrue(mission.isUnplaced(block));
+        assertTrue(mission.isUnplaced(mission.acquireBlock()));
+    }
+
+    private static DownloadMission createMission(final int threadCount) {
+        final DownloadMission mission = new TestMission();
+        mission.length = (long) BLOCK_COUNT * DownloadMission.BLOCK_SIZE;
+        mission.blocks = new int[BLOCK_COUNT];
+        mission.threadCount = threadCount;
+        assertEquals(BLOCK_COUNT, mission.prepareBlocks());
+        return mission;
+    }
+
+    /**
+     * Mission without storage, the progress counter is only created when a mission starts.
+     */
+    static class TestMission extends DownloadMission {
+        TestMission() {
+            super(new String[]{"http://localhost/"}, null, 'v', null);
+        }
+
+        @Override
+        void notifyProgress(final long deltaLen) {
+            // nothing to do
+        }
+    }
+
+    private static void assertAllDone(final DownloadMission mission) {
+        for (int i = 0; i < mission.blocks.length; i++) {
+            assertEquals("block " + i, -1, mission.blocks[i]);
+        }
+    }
+
+    static long runThreads(final int count, final Runnable task) throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(count);
+        final CountDownLatch go = new CountDownLatch(1);
+        final Thread[] threads = new Thread[count];
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        for (int i = 0; i < count; i++) {
+            threads[i] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                task.run();
+            });
+            threads[i].setUncaughtExceptionHandler((thread, e) -> error.compareAndSet(null, e));
+            threads[i].start();
+        }
+
+        ready.await();
+        final long start = System.nanoTime();
+        go.countDown();
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,97 @@
+package us.shandian.giga.get;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import us.shandian.giga.get.DownloadEngineTest.LocalServer;
+import us.shandian.giga.get.DownloadEngineTest.Result;
+
+import static org.junit.Assume.assumeTrue;
+import static us.shandian.giga.get.DownloadEngineTest.MIB;
+
+/**
+ * Reports the throughput, the time to completion, the memory allocated by the download threads
+ * per MiB and the monitor contention of the engine, so regressions are visible. Only runs with
+ * {@code -Dbenchmarks}.
+ * <p>
+ * {@link DownloadMission#BLOCK_SIZE} is a constant, the block size is only reported.
+ *
+ * @see DownloadEngineTest
+ */
+public class DownloadEngineBenchmarkTest {
+    private LocalServer server;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue("benchmarks are disabled", Boolean.getBoolean("benchmarks"));
+        output = File.createTempFile("mission", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+
+        if (output != null) {
+            //noinspection ResultOfMethodCallIgnored
+            output.delete();
+        }
+    }
+
+    @Test
+    public void benchmarkThreads() throws Exception {
+        server = new LocalServer(64 * MIB);
+        DownloadEngineTest.run(server, output, 4); // warm up
+
+        for (final int threads : new int[]{1, 2, 4, 8, 16}) {
+            report("local", threads, DownloadEngineTest.run(server, output, threads));
+        }
+    }
+
+    @Test
+    public void benchmarkSlowServer() throws Exception {
+        server = new LocalServer(16 * MIB);
+        server.latency = 20;
+        server.bandwidth = 2 * MIB;
+
+        for (final int threads : new int[]{1, 4, 8, 16}) {
+            report("20ms, 2 MiB/s per connection", threads,
+                    DownloadEngineTest.run(server, output, threads));
+        }
+    }
+
+    @Test
+    public void benchmarkWithoutRanges() throws Exception {
+        server = new LocalServer(64 * MIB);
+        server.ranges = false;
+        DownloadEngineTest.run(server, output, 1); // warm up
+
+        report("no ranges (fallback)", 1, DownloadEngineTest.run(server, output, 1));
+    }
+
+    @Test
+    public void benchmarkErrors() throws Exception {
+        server = new LocalServer(32 * MIB);
+        server.failEvery = 7;
+        server.dropEvery = 11;
+
+        for (final int threads : new int[]{4, 8}) {
+            report("503 every 7, drop every 11", threads,
+                    DownloadEngineTest.run(server, output, threads));
+        }
+    }
+
+    private static void report(final String scenario, final int threads, final Result result) {
+        System.out.printf("%-30s threads=%2d block=%d KiB  %8.2f MiB/s  %7.0f ms"
+                        + "  %8.1f KiB/MiB allocated  blocked=%d (%d ms)%n",
+                scenario, threads, DownloadMission.BLOCK_SIZE / 1024,
+                result.throughput(), result.elapsed / 1e6, result.allocatedPerMiB() / 1024.0,
+                result.blockedCount, result.blockedTime);
+    }
+}
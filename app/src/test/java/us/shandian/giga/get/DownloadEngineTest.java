@@ -0,0 +1,536 @@
+package us.shandian.giga.get;
+
+import android.util.Log;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import org.schabi.newpipe.streams.io.StoredFileHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import us.shandian.giga.io.FileStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the download threads ({@link DownloadRunnable} and {@link DownloadRunnableFallback})
+ * against a local HTTP server with configurable latency, bandwidth, range support and errors,
+ * and checks the downloaded content.
+ *
+ * @see DownloadEngineBenchmarkTest
+ */
+public class DownloadEngineTest {
+    static final int MIB = 1024 * 1024;
+    private static final int SEED = 0x67696761;
+
+    private LocalServer server;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        output = File.createTempFile("mission", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        output.delete();
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        server = new LocalServer(4 * MIB);
+        run(server, output, 4);
+    }
+
+    @Test
+    public void testWithoutRanges() throws Exception {
+        server = new LocalServer(4 * MIB);
+        server.ranges = false;
+
+        run(server, output, 1);
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        server = new LocalServer(4 * MIB);
+        server.failEvery = 7;
+        server.dropEvery = 11;
+
+        run(server, output, 4);
+    }
+
+    @Test
+    public void testEmptyResponses() throws Exception {
+        server = new LocalServer(MIB);
+        server.emptyBodies = true;
+
+        // the server never sends data, the threads must give up instead of retrying forever
+        final TestMission mission = createMission(server, output, 2);
+        mission.maxRetry = 3;
+        runThreads(2, id -> new DownloadRunnable(mission, id));
+
+        assertTrue(mission.error.get() instanceof IOException);
+        assertEquals(0, mission.finished.get());
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        server = new LocalServer(4 * MIB);
+        server.failEvery = 7;
+        server.dropEvery = 11;
+
+        runSegments(server, output, 4, 40);
+    }
+
+    @Test
+    public void testSegmentsWithoutLength() throws Exception {
+        server = new LocalServer(4 * MIB);
+        server.chunked = true;
+        server.failEvery = 7;
+
+        runSegments(server, output, 4, 40);
+    }
+
+    /**
+     * Downloads the payload of the server and checks the content.
+     *
+     * @param server      the server to download from
+     * @param output      where the payload is written
+     * @param threadCount the amount of download threads, one if the server has no ranges
+     * @return the statistics of the download threads
+     */
+    static Result run(final LocalServer server, final File output, final int threadCount)
+            throws Exception {
+        final int length = server.payload.length;
+        final boolean ranged = server.ranges;
+        final TestMission mission = createMission(server, output, threadCount);
+
+        final Result result = runThreads(threadCount, id -> ranged
+                ? new DownloadRunnable(mission, id) : new DownloadRunnableFallback(mission));
+        result.length = length;
+
+        assertNull(mission.error.get());
+        assertEquals(threadCount, mission.finished.get());
+        assertTrue(mission.downloaded.sum() >= length);
+        assertContent(server, output);
+
+        return result;
+    }
+
+    /**
+     * Downloads the payload split in segments, like the segments of a manifest the length of
+     * every segment is learned from its response, and checks the content.
+     *
+     * @param server      the server to download from
+     * @param output      where the segments are written one after another
+     * @param threadCount the amount of download threads
+     * @param count       the amount of segments
+     */
+    private static void runSegments(final LocalServer server, final File output,
+                                    final int threadCount, final int count) throws Exception {
+        final TestMission mission = createMission(server, output, threadCount);
+        final String[] urls = server.getSegmentUrls(count);
+        final long[] lengths = new long[count];
+        Arrays.fill(lengths, -1);
+
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            file.setLength(0);
+        }
+
+        mission.originalUrls = mission.urls;
+        mission.segmentStarts = new int[]{0};
+        mission.urls = urls;
+        mission.offsets = new long[count];
+        mission.lengths = lengths;
+        mission.wholeSegments = true;
+        mission.length = 0;
+        mission.blocks = new int[count];
+        assertEquals(count, mission.prepareBlocks());
+
+        runThreads(threadCount, id -> new DownloadRunnable(mission, id));
+
+        assertNull(mission.error.get());
+        assertEquals(threadCount, mission.finished.get());
+        assertEquals(server.payload.length, mission.length);
+        for (int i = 0; i < count; i++) {
+            assertEquals("segment " + i, server.getSegmentStart(i, count), mission.offsets[i]);
+        }
+        assertContent(server, output);
+    }
+
+    private static TestMission createMission(final LocalServer server, final File output,
+                                             final int threadCount) throws IOException {
+        final int length = server.payload.length;
+        final boolean ranged = server.ranges;
+
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            file.setLength(ranged ? length : 0);
+        }
+
+        final StoredFileHelper storage =
+                Mockito.mock(StoredFileHelper.class, Mockito.withSettings().stubOnly());
+        Mockito.when(storage.getStream()).then(invocation -> new FileStream(output));
+
+        final TestMission mission = new TestMission(server.getUrl(), storage);
+        mission.length = length;
+        mission.threadCount = ranged ? threadCount : 1;
+        mission.maxRetry = 100;
+
+        if (ranged) {
+            mission.blocks = new int[(length + DownloadMission.BLOCK_SIZE - 1)
+                    / DownloadMission.BLOCK_SIZE];
+            assertEquals(mission.blocks.length, mission.prepareBlocks());
+        } else {
+            mission.blocks = new int[0];
+        }
+
+        mission.running = true;
+        return mission;
+    }
+
+    private static void assertContent(final LocalServer server, final File output)
+            throws IOException {
+        final byte[] expected = server.payload;
+        final byte[] buffer = new byte[MIB];
+
+        try (RandomAccessFile file = new RandomAccessFile(output, "r")) {
+            assertEquals(expected.length, file.length());
+
+            for (int offset = 0; offset < expected.length; offset += buffer.length) {
+                final int amount = Math.min(buffer.length, expected.length - offset);
+                file.readFully(buffer, 0, amount);
+
+                for (int i = 0; i < amount; i++) {
+                    if (buffer[i] != expected[offset + i]) {
+                        throw new AssertionError("content mismatch at " + (offset + i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the progress and the result without the Android handler.
+     */
+    static class TestMission extends DownloadMission {
+        final LongAdder downloaded = new LongAdder();
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicReference<Object> error = new AtomicReference<>();
+
+        TestMission(final String url, final StoredFileHelper storage) {
+            super(new String[]{url}, storage, 'v', null);
+        }
+
+        @Override
+        void notifyProgress(final long deltaLen) {
+            downloaded.add(deltaLen);
+        }
+
+        @Override
+        synchronized void notifyFinished() {
+            finished.incrementAndGet();
+        }
+
+        @Override
+        synchronized void notifyError(final Exception err) {
+            error.compareAndSet(null, err);
+            running = false;
+        }
+
+        @Override
+        void doRecover(final int errorCode) {
+            error.compareAndSet(null, "recovery requested, code=" + errorCode);
+            running = false;
+        }
+    }
+
+    interface RunnableFactory {
+        Thread create(int id);
+    }
+
+    /**
+     * Runs the download threads inside harness threads, the statistics of every harness thread
+     * are read before it dies. {@link Log} is mocked in every thread (the static mocks are
+     * thread-local).
+     *
+     * @param count   the amount of download threads
+     * @param factory creates the download thread of every id, starting at one
+     * @return the statistics of the download threads
+     */
+    static Result runThreads(final int count, final RunnableFactory factory)
+            throws InterruptedException {
+        final com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (bean.isThreadContentionMonitoringSupported()) {
+            bean.setThreadContentionMonitoringEnabled(true);
+        }
+
+        final CountDownLatch ready = new CountDownLatch(count);
+        final CountDownLatch go = new CountDownLatch(1);
+        final Thread[] threads = new Thread[count];
+        final Result result = new Result();
+
+        for (int i = 0; i < count; i++) {
+            final Thread runnable = factory.create(i + 1);
+
+            threads[i] = new Thread(() -> {
+                try (MockedStatic<Log> ignored = Mockito.mockStatic(Log.class)) {
+                    final long id = Thread.currentThread().getId();
+
+                    ready.countDown();
+                    go.await();
+
+                    final long allocated = bean.getThreadAllocatedBytes(id);
+                    final ThreadInfo before = bean.getThreadInfo(id);
+
+                    runnable.run();
+
+                    final ThreadInfo after = bean.getThreadInfo(id);
+                    result.add(bean.getThreadAllocatedBytes(id) - allocated,
+                            after.getBlockedCount() - before.getBlockedCount(),
+                            after.getBlockedTime() - before.getBlockedTime());
+                } catch (final InterruptedException e) {
+                    // nothing to do
+                }
+            });
+            threads[i].start();
+        }
+
+        ready.await();
+        final long start = System.nanoTime();
+        go.countDown();
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        result.elapsed = System.nanoTime() - start;
+        return result;
+    }
+
+    static class Result {
+        long length;
+        long elapsed;
+        long allocated;
+        long blockedCount;
+        long blockedTime;
+
+        synchronized void add(final long threadAllocated, final long threadBlockedCount,
+                              final long threadBlockedTime) {
+            allocated += threadAllocated;
+            blockedCount += threadBlockedCount;
+            blockedTime += threadBlockedTime;
+        }
+
+        double throughput() {
+            return (length / (double) MIB) / (elapsed / 1e9);
+        }
+
+        double allocatedPerMiB() {
+            return allocated / (length / (double) MIB);
+        }
+    }
+
+    /**
+     * HTTP server serving random bytes, supports single range requests.
+     */
+    static class LocalServer {
+        private static final int CHUNK_SIZE = 16 * 1024;
+
+        final byte[] payload;
+
+        /**
+         * Delay before every response, in milliseconds.
+         */
+        volatile int latency;
+
+        /**
+         * Bytes per second of every connection, zero for no limit.
+         */
+        volatile long bandwidth;
+
+        /**
+         * If {@code false} the Range header is ignored.
+         */
+        volatile boolean ranges = true;
+
+        /**
+         * Every nth request is answered with 503, zero to disable.
+         */
+        volatile int failEvery;
+
+        /**
+         * The body of every nth request is cut in the middle, zero to disable.
+         */
+        volatile int dropEvery;
+
+        /**
+         * The ranged responses have no body, like a server closing the connection early.
+         */
+        volatile boolean emptyBodies;
+
+        /**
+         * The responses have no length, the body is chunked.
+         */
+        volatile boolean chunked;
+
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final AtomicInteger requests = new AtomicInteger();
+
+        LocalServer(final int length) throws IOException {
+            payload = new byte[length];
+            new Random(SEED).nextBytes(payload);
+
+            server = HttpServer.create(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/", this::handle);
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        String getUrl() {
+            final InetSocketAddress address = server.getAddress();
+            return "http://" + address.getHostString() + ":" + address.getPort() + "/file.bin";
+        }
+
+        /**
+         * Splits the payload in segments of growing size, every segment has its own url.
+         *
+         * @param count the amount of segments
+         * @return the url of every segment
+         */
+        String[] getSegmentUrls(final int count) {
+            final String url = getUrl();
+            final String[] urls = new String[count];
+
+            for (int i = 0; i < count; i++) {
+                urls[i] = url + "?segment=" + i + "&count=" + count;
+            }
+            return urls;
+        }
+
+        long getSegmentStart(final int segment, final int count) {
+            return (long) payload.length * segment * segment / ((long) count * count);
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        private void handle(final HttpExchange exchange) throws IOException {
+            try {
+                respond(exchange, requests.incrementAndGet());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // if the body was cut, this fails and the connection is closed
+                exchange.close();
+            }
+        }
+
+        private void respond(final HttpExchange exchange, final int request)
+                throws IOException, InterruptedException {
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+
+            if (failEvery > 0 && request % failEvery == 0) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            long first = 0;
+            long size = payload.length;
+
+            final String query = exchange.getRequestURI().getQuery();
+            if (query != null) {
+                final String[] values = query.split("[=&]");
+                final int segment = Integer.parseInt(values[1]);
+                final int count = Integer.parseInt(values[3]);
+
+                first = getSegmentStart(segment, count);
+                size = getSegmentStart(segment + 1, count) - first;
+            }
+
+            long start = 0;
+            long end = size - 1;
+            int code = 200;
+
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            if (ranges) {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            }
+
+            if (ranges && range != null && range.startsWith("bytes=")) {
+                final int dash = range.indexOf('-');
+                start = Long.parseLong(range.substring(6, dash));
+                if (dash + 1 < range.length()) {
+                    end = Math.min(Long.parseLong(range.substring(dash + 1)), end);
+                }
+
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + size);
+                code = 206;
+
+                if (emptyBodies) {
+                    exchange.sendResponseHeaders(code, -1);
+                    return;
+                }
+            }
+
+            final long length = end - start + 1;
+            exchange.sendResponseHeaders(code, chunked ? 0 : length);
+
+            final boolean drop = dropEvery > 0 && request % dropEvery == 0;
+            final long limit = drop ? length / 2 : length;
+            final long begin = System.nanoTime();
+            long sent = 0;
+
+            final OutputStream body = exchange.getResponseBody();
+            while (sent < limit) {
+                final int amount = (int) Math.min(CHUNK_SIZE, limit - sent);
+                body.write(payload, (int) (first + start + sent), amount);
+                sent += amount;
+
+                if (bandwidth > 0) {
+                    final long wait =
+                            (sent * 1000 / bandwidth) - (System.nanoTime() - begin) / 1000000;
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+            }
+            body.flush();
+        }
+    }
+}
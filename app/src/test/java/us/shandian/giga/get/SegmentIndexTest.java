@@ -0,0 +1,102 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentIndexTest {
+    private static final int HEADER_LENGTH = 16 + 8; // ftyp + empty moov
+    private static final int SIDX_LENGTH = 32 + (3 * 12);
+    private static final int ANCHOR = HEADER_LENGTH + SIDX_LENGTH;
+
+    /**
+     * Header and index of a file with three fragments of one second, 100, 200 and 300 bytes.
+     *
+     * @param withIndex whether the sidx box is written between the moov and the first moof
+     * @return the file contents up to the first fragment
+     */
+    private static byte[] makeFile(final boolean withIndex) {
+        final ByteBuffer buffer = ByteBuffer.allocate(ANCHOR + 8);
+        buffer.putInt(16).putInt(0x66747970).putInt(0x64617368).putInt(0); // ftyp
+        buffer.putInt(8).putInt(0x6D6F6F76); // moov
+
+        if (withIndex) {
+            buffer.putInt(SIDX_LENGTH).putInt(0x73696478);
+            buffer.putInt(0); // version and flags
+            buffer.putInt(1); // reference id
+            buffer.putInt(1000); // timescale
+            buffer.putInt(0); // earliest presentation time
+            buffer.putInt(0); // first offset
+            buffer.putShort((short) 0).putShort((short) 3);
+            for (int size = 100; size <= 300; size += 100) {
+                buffer.putInt(size).putInt(1000).putInt(0x90000000);
+            }
+        }
+
+        buffer.putInt(8).putInt(0x6D6F6F66); // moof
+        return buffer.array();
+    }
+
+    private static SegmentIndex read() throws IOException {
+        return SegmentIndex.read(new ByteArrayInputStream(makeFile(true)));
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        final SegmentIndex index = read();
+
+        assertEquals(HEADER_LENGTH, index.headerLength);
+        assertEquals(ANCHOR, index.anchor);
+        assertEquals(1000, index.timescale);
+        assertEquals(0, index.earliestTime);
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        final SegmentIndex index = read();
+
+        assertRange(ANCHOR, ANCHOR + 100, index.getRange(0, 1000));
+        assertRange(ANCHOR + 100, ANCHOR + 600, index.getRange(1500, 2500));
+        assertRange(ANCHOR, ANCHOR + 600, index.getRange(0, 60000));
+        assertRange(ANCHOR + 300, ANCHOR + 600, index.getRange(5000, 6000));
+
+        // without end, used by the download dialog
+        assertRange(ANCHOR + 100, ANCHOR + 600, index.getRange(1000, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testTruncatedIndex() {
+        final byte[] file = makeFile(true);
+        final byte[] truncated = new byte[HEADER_LENGTH + 12]; // cut after the flags of the sidx
+        System.arraycopy(file, 0, truncated, 0, truncated.length);
+
+        try {
+            SegmentIndex.read(new ByteArrayInputStream(truncated));
+            fail("the index is truncated");
+        } catch (final IOException e) {
+            assertTrue(e instanceof EOFException);
+        }
+    }
+
+    @Test
+    public void testMissingIndex() {
+        try {
+            SegmentIndex.read(new ByteArrayInputStream(makeFile(false)));
+            fail("the file has no index");
+        } catch (final IOException e) {
+            assertTrue(e instanceof SegmentManifest.UnsupportedManifestException);
+        }
+    }
+
+    private static void assertRange(final long start, final long end, final long[] range) {
+        assertEquals(start, range[0]);
+        assertEquals(end, range[1]);
+    }
+}
@@ -0,0 +1,137 @@
+package us.shandian.giga.get;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentManifestTest {
+    private static final SegmentManifest.Loader NO_LOADER = url -> {
+        throw new IOException("unexpected load of " + url);
+    };
+
+    @Test
+    public void testIsManifest() {
+        assertTrue(SegmentManifest.isManifest("https://a/b", "application/vnd.apple.mpegurl"));
+        assertTrue(SegmentManifest.isManifest("https://a/b", "application/dash+xml"));
+        assertTrue(SegmentManifest.isManifest("https://a/index.m3u8?token=1", "text/plain"));
+        assertTrue(SegmentManifest.isManifest("https://a/index.mpd", null));
+        assertFalse(SegmentManifest.isManifest("https://a/index.m3u8", "video/mp4"));
+        assertFalse(SegmentManifest.isManifest("https://a/video.mp4", null));
+    }
+
+    @Test
+    public void testHlsMediaPlaylist() throws IOException {
+        final String playlist = "#EXTM3U\n"
+                + "#EXT-X-TARGETDURATION:10\n"
+                + "#EXT-X-MAP:URI=\"init.mp4\"\n"
+                + "#EXTINF:10,\n"
+                + "seg/1.m4s\n"
+                + "#EXTINF:10,\n"
+                + "https://cdn/2.m4s\n"
+                + "#EXT-X-ENDLIST\n";
+
+        final List<String> segments =
+                SegmentManifest.parse("https://a/hls/index.m3u8", playlist, NO_LOADER);
+        assertEquals(Arrays.asList(
+                "https://a/hls/init.mp4", "https://a/hls/seg/1.m4s", "https://cdn/2.m4s"
+        ), segments);
+    }
+
+    @Test
+    public void testHlsMasterPlaylist() throws IOException {
+        final String master = "#EXTM3U\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=1000,CODECS=\"avc1,mp4a\"\n"
+                + "low/index.m3u8\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=5000,CODECS=\"avc1,mp4a\"\n"
+                + "high/index.m3u8\n";
+
+        final List<String> segments =
+                SegmentManifest.parse("https://a/master.m3u8", master, url -> {
+                    assertEquals("https://a/high/index.m3u8", url);
+                    return "#EXTM3U\n#EXTINF:4,\n0.ts\n#EXTINF:4,\n1.ts\n#EXT-X-ENDLIST";
+                });
+
+        assertEquals(Arrays.asList("https://a/high/0.ts", "https://a/high/1.ts"), segments);
+    }
+
+    @Test
+    public void testHlsUnsupported() throws IOException {
+        // live
+        assertUnsupported("#EXTM3U\n#EXTINF:4,\n0.ts\n");
+        assertUnsupported("#EXTM3U\n#EXT-X-KEY:METHOD=AES-128,URI=\"k\"\n"
+                + "#EXTINF:4,\n0.ts\n#EXT-X-ENDLIST");
+        assertUnsupported("#EXTM3U\n#EXT-X-BYTERANGE:100@0\n#EXTINF:4,\n0.ts\n#EXT-X-ENDLIST");
+    }
+
+    @Test
+    public void testDashTemplateWithTimeline() throws IOException {
+        final String mpd = "<?xml version=\"1.0\"?>"
+                + "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\">"
+                + "<BaseURL>media/</BaseURL>"
+                + "<Period><AdaptationSet>"
+                + "<SegmentTemplate initialization=\"$RepresentationID$/init.mp4\""
+                + " media=\"$RepresentationID$/$Time$-$Number%03d$.m4s\" startNumber=\"5\">"
+                + "<SegmentTimeline><S t=\"100\" d=\"10\" r=\"1\"/><S d=\"5\"/></SegmentTimeline>"
+                + "</SegmentTemplate>"
+                + "<Representation id=\"low\" bandwidth=\"100\"/>"
+                + "<Representation id=\"high\" bandwidth=\"900\"/>"
+                + "</AdaptationSet></Period></MPD>";
+
+        final List<String> segments =
+                SegmentManifest.parse("https://a/b/manifest.mpd", mpd, NO_LOADER);
+        assertEquals(Arrays.asList(
+                "https://a/b/media/high/init.mp4",
+                "https://a/b/media/high/100-005.m4s",
+                "https://a/b/media/high/110-006.m4s",
+                "https://a/b/media/high/120-007.m4s"
+        ), segments);
+    }
+
+    @Test
+    public void testDashTemplateWithDuration() throws IOException {
+        final String mpd = "<MPD mediaPresentationDuration=\"PT25.5S\"><Period><AdaptationSet>"
+                + "<Representation id=\"v\" bandwidth=\"1\">"
+                + "<SegmentTemplate media=\"s$Number$.m4s\" duration=\"20\" timescale=\"2\"/>"
+                + "</Representation></AdaptationSet></Period></MPD>";
+
+        final List<String> segments = SegmentManifest.parse("https://a/m.mpd", mpd, NO_LOADER);
+        assertEquals(Arrays.asList("https://a/s1.m4s", "https://a/s2.m4s", "https://a/s3.m4s"),
+                segments);
+    }
+
+    @Test
+    public void testDashSegmentList() throws IOException {
+        final String mpd = "<MPD><Period><AdaptationSet><Representation bandwidth=\"1\">"
+                + "<BaseURL>https://cdn/v/</BaseURL>"
+                + "<SegmentList><Initialization sourceURL=\"init\"/>"
+                + "<SegmentURL media=\"a\"/><SegmentURL media=\"b\"/></SegmentList>"
+                + "</Representation></AdaptationSet></Period></MPD>";
+
+        final List<String> segments = SegmentManifest.parse("https://a/m.mpd", mpd, NO_LOADER);
+        assertEquals(Arrays.asList("https://cdn/v/init", "https://cdn/v/a", "https://cdn/v/b"),
+                segments);
+    }
+
+    @Test
+    public void testDashLive() {
+        assertUnsupported("<MPD type=\"dynamic\"><Period/></MPD>");
+    }
+
+    private static void assertUnsupported(final String manifest) {
+        try {
+            SegmentManifest.parse("https://a/m", manifest, NO_LOADER);
+            fail("the manifest must be rejected");
+        } catch (final SegmentManifest.UnsupportedManifestException e) {
+            // expected
+        } catch (final IOException e) {
+            fail("unexpected error " + e);
+        }
+    }
+}
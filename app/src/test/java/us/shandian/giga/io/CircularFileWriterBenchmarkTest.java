@@ -0,0 +1,216 @@
+package us.shandian.giga.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import us.shandian.giga.io.CircularFileWriterTest.Source;
+import us.shandian.giga.io.CircularFileWriterTest.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the muxing throughput of {@link CircularFileWriter} when the output overtakes the
+ * sources (the auxiliary file is used), against the old auxiliary path: an 8 KiB buffered
+ * temporal file copied back and compacted through a 128 KiB heap buffer. Only runs with
+ * {@code -Dbenchmarks}.
+ *
+ * @see CircularFileWriterTest
+ */
+public class CircularFileWriterBenchmarkTest {
+    private static final int TOTAL_LENGTH = 96 * 1024 * 1024; // 96 MiB
+    private static final int MAXIMUM_LAG = 24 * 1024 * 1024; // 24 MiB
+    private static final int ROUNDS = 3;
+
+    private File output;
+    private File temp;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue("benchmarks are disabled", Boolean.getBoolean("benchmarks"));
+        output = File.createTempFile("output", ".bin");
+        temp = File.createTempFile("aux", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        if (output != null) {
+            output.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        if (temp != null) {
+            temp.delete();
+        }
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        long mapped = Long.MAX_VALUE;
+        long legacy = Long.MAX_VALUE;
+
+        for (int i = 0; i < ROUNDS; i++) {
+            mapped = Math.min(mapped, runMapped());
+            legacy = Math.min(legacy, runLegacy());
+        }
+
+        System.out.printf("%d MiB: mapped ring=%.2f MiB/s legacy=%.2f MiB/s%n",
+                TOTAL_LENGTH / (1024 * 1024), throughput(mapped), throughput(legacy));
+    }
+
+    private static double throughput(final long elapsed) {
+        return (TOTAL_LENGTH / (1024.0 * 1024.0)) / (elapsed / 1e9);
+    }
+
+    private long runMapped() throws IOException {
+        final long start = System.nanoTime();
+
+        try (FileStream target = new FileStream(output)) {
+            target.setLength(0);
+
+            final Source source = new Source(TOTAL_LENGTH, MAXIMUM_LAG);
+            final CircularFileWriter writer = new CircularFileWriter(target, temp, source::check);
+            source.writeAll(writer);
+
+            assertEquals(TOTAL_LENGTH, writer.finalizeFile());
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private long runLegacy() throws IOException {
+        final long start = System.nanoTime();
+
+        try (LegacySpill writer = new LegacySpill(output, temp)) {
+            final Source source = new Source(TOTAL_LENGTH, MAXIMUM_LAG);
+            writer.checker = source::check;
+            source.writeAll(writer);
+
+            assertEquals(TOTAL_LENGTH, writer.finalizeFile());
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The auxiliary path of the old writer, only appends (no seeking).
+     */
+    static class LegacySpill implements Writer, AutoCloseable {
+        private static final int QUEUE_BUFFER_SIZE = 8 * 1024;
+        private static final int COPY_BUFFER_SIZE = 128 * 1024;
+        private static final int THRESHOLD_AUX_LENGTH = 15 * 1024 * 1024;
+
+        private final Queued out;
+        private final Queued aux;
+        CircularFileWriter.OffsetChecker checker;
+
+        LegacySpill(final File output, final File temp) throws IOException {
+            out = new Queued(output);
+            aux = new Queued(temp);
+            out.file.setLength(0);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            final long available = checker.check() - out.length;
+
+            if (aux.length > 0) {
+                aux.write(b, off, len);
+                if (aux.length >= THRESHOLD_AUX_LENGTH && aux.length <= available) {
+                    flushAux(available);
+                }
+                return;
+            }
+
+            final int length = (int) Math.min(len, available);
+            out.write(b, off, length);
+            if (len > length) {
+                aux.write(b, off + length, len - length);
+            }
+        }
+
+        private void flushAux(final long maximum) throws IOException {
+            out.flush();
+            aux.flush();
+
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            final long amount = Math.min(maximum, aux.length);
+
+            aux.file.seek(0);
+            long copied = 0;
+            while (copied < amount) {
+                final int read = aux.file.read(buffer, 0,
+                        (int) Math.min(buffer.length, amount - copied));
+                out.file.write(buffer, 0, read);
+                copied += read;
+            }
+            out.length += amount;
+
+            // move the excess data to the beginning of the file
+            final long remaining = aux.length - amount;
+            long moved = 0;
+            while (moved < remaining) {
+                aux.file.seek(amount + moved);
+                final int read = aux.file.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining - moved));
+                aux.file.seek(moved);
+                aux.file.write(buffer, 0, read);
+                moved += read;
+            }
+
+            aux.length = remaining;
+            aux.file.seek(remaining);
+        }
+
+        long finalizeFile() throws IOException {
+            flushAux(aux.length);
+            out.flush();
+            return out.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.file.close();
+            aux.file.close();
+        }
+
+        static class Queued {
+            final RandomAccessFile file;
+            final byte[] queue = new byte[QUEUE_BUFFER_SIZE];
+            int queueSize;
+            long length;
+
+            Queued(final File target) throws IOException {
+                file = new RandomAccessFile(target, "rw");
+            }
+
+            void write(final byte[] b, final int off, final int len) throws IOException {
+                int offset = off;
+                int remaining = len;
+
+                while (remaining > 0) {
+                    if (queueSize >= queue.length) {
+                        flush();
+                    }
+
+                    final int amount = Math.min(remaining, queue.length - queueSize);
+                    System.arraycopy(b, offset, queue, queueSize, amount);
+                    queueSize += amount;
+                    length += amount;
+                    offset += amount;
+                    remaining -= amount;
+                }
+            }
+
+            void flush() throws IOException {
+                file.write(queue, 0, queueSize);
+                queueSize = 0;
+            }
+        }
+    }
+}
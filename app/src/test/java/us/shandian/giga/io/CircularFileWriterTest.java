@@ -0,0 +1,182 @@
+package us.shandian.giga.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the content written by {@link CircularFileWriter} when the output overtakes the
+ * sources (the auxiliary file is used, beyond its mapped window), for plain writes and for data
+ * copied from another file through the channels.
+ *
+ * @see CircularFileWriterBenchmarkTest
+ */
+public class CircularFileWriterTest {
+    private static final int TOTAL_LENGTH = 24 * 1024 * 1024; // 24 MiB
+    private static final int MAXIMUM_LAG = 12 * 1024 * 1024; // 12 MiB
+    private static final int SEED = 0x6D757820;
+
+    private File output;
+    private File temp;
+
+    @Before
+    public void setUp() throws IOException {
+        output = File.createTempFile("output", ".bin");
+        temp = File.createTempFile("aux", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        output.delete();
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+    }
+
+    @Test
+    public void testContent() throws IOException {
+        final byte[] header = new byte[64];
+        new Random(SEED).nextBytes(header);
+
+        // write everything, then go back and write the header (like the muxers do)
+        final long length;
+        try (FileStream target = new FileStream(output)) {
+            final Source source = new Source(TOTAL_LENGTH, MAXIMUM_LAG);
+            final CircularFileWriter writer = new CircularFileWriter(target, temp, source::check);
+
+            source.writeAll(writer);
+            writer.seek(0);
+            writer.write(header);
+
+            length = writer.finalizeFile();
+        }
+
+        assertEquals(TOTAL_LENGTH, length);
+        assertContent(header);
+    }
+
+    @Test
+    public void testTransfer() throws IOException {
+        // the same data in a file, every other chunk is copied through the channels
+        final File pattern = File.createTempFile("pattern", ".bin");
+        try (FileStream stream = new FileStream(pattern)) {
+            final Source source = new Source(TOTAL_LENGTH, MAXIMUM_LAG);
+            source.writeAll((b, off, len) -> stream.write(b, off, len));
+        }
+
+        final long length;
+        try (FileStream target = new FileStream(output);
+             FileStream input = new FileStream(pattern)) {
+            final Source source = new Source(TOTAL_LENGTH, MAXIMUM_LAG);
+            final long[] position = new long[1];
+            final long[] transferred = new long[1];
+
+            // alternate between blocked (the ring is used) and free (the ring is flushed)
+            final CircularFileWriter writer = new CircularFileWriter(target, temp,
+                    () -> (position[0] / MAXIMUM_LAG) % 2 == 0 ? position[0] : -1);
+
+            source.writeAll((b, off, len) -> {
+                long copied = 0;
+                if ((position[0] & 1) == 0) {
+                    // partial or zero if the data does not fit or the ring is in use
+                    copied = writer.transferFrom(input.getChannel(), position[0], len);
+                    transferred[0] += copied;
+                }
+                writer.write(b, off + (int) copied, len - (int) copied);
+                position[0] += len;
+            });
+
+            assertTrue("some chunks must be transferred", transferred[0] > 0);
+            length = writer.finalizeFile();
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            pattern.delete();
+        }
+
+        assertEquals(TOTAL_LENGTH, length);
+        assertContent(new byte[0]);
+    }
+
+    private void assertContent(final byte[] header) throws IOException {
+        assertEquals(TOTAL_LENGTH, output.length());
+
+        try (RandomAccessFile file = new RandomAccessFile(output, "r")) {
+            final byte[] buffer = new byte[64 * 1024];
+            long position = 0;
+
+            while (position < TOTAL_LENGTH) {
+                final int read = file.read(buffer);
+                for (int i = 0; i < read; i++, position++) {
+                    final int expected = position < header.length
+                            ? header[(int) position] : Source.valueAt(position);
+                    if ((byte) expected != buffer[i]) {
+                        throw new AssertionError("content mismatch at " + position);
+                    }
+                }
+            }
+        }
+    }
+
+    interface Writer {
+        void write(byte[] b, int off, int len) throws IOException;
+    }
+
+    /**
+     * Produces the muxed data in chunks of 4-64 KiB. The sources are read behind the output,
+     * the distance grows and shrinks like a sawtooth so the auxiliary file fills, is partially
+     * flushed and wraps around.
+     */
+    static class Source {
+        private final Random random = new Random(SEED);
+        private final long totalLength;
+        private final long maximumLag;
+        private long written;
+        private long readPosition;
+
+        Source(final long totalLength, final long maximumLag) {
+            this.totalLength = totalLength;
+            this.maximumLag = maximumLag;
+        }
+
+        static int valueAt(final long position) {
+            return (int) ((position * 31) ^ (position >>> 13));
+        }
+
+        long check() {
+            return readPosition;
+        }
+
+        void writeAll(final CircularFileWriter writer) throws IOException {
+            writeAll((Writer) writer::write);
+        }
+
+        void writeAll(final Writer writer) throws IOException {
+            final byte[] chunk = new byte[64 * 1024];
+
+            while (written < totalLength) {
+                final int length = (int) Math.min(4096 + random.nextInt(chunk.length - 4096),
+                        totalLength - written);
+                for (int i = 0; i < length; i++) {
+                    chunk[i] = (byte) valueAt(written + i);
+                }
+
+                long lag = (written * 3) % (maximumLag * 2);
+                if (lag > maximumLag) {
+                    lag = maximumLag * 2 - lag;
+                }
+                readPosition = Math.max(readPosition, written - lag);
+
+                writer.write(chunk, 0, length);
+                written += length;
+            }
+        }
+    }
+}
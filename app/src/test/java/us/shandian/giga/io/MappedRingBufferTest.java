@@ -0,0 +1,116 @@
+package us.shandian.giga.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link MappedRingBuffer} against a plain array with a small window, so the data wraps
+ * around, spills to the file and is moved back to the window.
+ */
+public class MappedRingBufferTest {
+    private static final int CAPACITY = 4096;
+    private static final int SEED = 0x72696E67;
+
+    private File temp;
+
+    @Before
+    public void setUp() throws IOException {
+        temp = File.createTempFile("ring", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        try (MappedRingBuffer ring = new MappedRingBuffer(temp, CAPACITY)) {
+            final byte[] data = new byte[CAPACITY * 3 + 123];
+            new Random(SEED).nextBytes(data);
+
+            ring.write(data, 0, data.length);
+            assertEquals(data.length, ring.length);
+            assertTrue("the window must not grow", temp.length() > CAPACITY);
+            assertArrayEquals(data, read(ring));
+
+            // the start is consumed, the spilled data is moved into the window
+            ring.discard(CAPACITY + 7);
+            assertArrayEquals(Arrays.copyOfRange(data, CAPACITY + 7, data.length), read(ring));
+        }
+    }
+
+    @Test
+    public void testRandomOperations() throws IOException {
+        final Random random = new Random(SEED);
+        final byte[] model = new byte[CAPACITY * 8];
+        int length = 0;
+        int offset = 0;
+
+        try (MappedRingBuffer ring = new MappedRingBuffer(temp, CAPACITY)) {
+            for (int i = 0; i < 5000; i++) {
+                final int operation = random.nextInt(100);
+
+                if (operation < 60) {
+                    // append or overwrite, the data can cross the window and the spill
+                    final byte[] chunk =
+                            new byte[Math.min(random.nextInt(CAPACITY), model.length - offset)];
+                    random.nextBytes(chunk);
+
+                    ring.write(chunk, 0, chunk.length);
+                    System.arraycopy(chunk, 0, model, offset, chunk.length);
+                    offset += chunk.length;
+                    length = Math.max(length, offset);
+                } else if (operation < 70) {
+                    offset = random.nextInt(length + 1);
+                    ring.seek(offset);
+                } else if (operation < 95) {
+                    final int amount = random.nextInt(length + 1);
+                    ring.discard(amount);
+                    System.arraycopy(model, amount, model, 0, length - amount);
+                    length -= amount;
+                    offset = Math.max(offset - amount, 0);
+                    ring.seek(offset);
+                } else {
+                    ring.reset();
+                    length = 0;
+                    offset = 0;
+                }
+
+                assertEquals(length, ring.length);
+                assertEquals(offset, ring.getOffset());
+                assertArrayEquals("operation " + i, Arrays.copyOf(model, length), read(ring));
+            }
+        }
+    }
+
+    private static byte[] read(final MappedRingBuffer ring) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long position = 0;
+
+        while (position < ring.length) {
+            final ByteBuffer view = ring.slice(position, ring.length - position);
+            assertTrue(view.hasRemaining());
+
+            final byte[] data = new byte[view.remaining()];
+            view.get(data);
+            out.write(data, 0, data.length);
+            position += data.length;
+        }
+
+        return out.toByteArray();
+    }
+}
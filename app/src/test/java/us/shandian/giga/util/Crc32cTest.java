@@ -0,0 +1,56 @@
+package us.shandian.giga.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+    private static final int CHECK_VALUE = 0xE3069283; // CRC-32C of "123456789"
+
+    @Test
+    public void testCheckValue() {
+        final byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(CHECK_VALUE, Crc32c.update(0, data, 0, data.length));
+    }
+
+    @Test
+    public void testIncremental() {
+        final byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        int crc = Crc32c.update(0, data, 0, 5);
+        crc = Crc32c.update(crc, data, 5, data.length - 5);
+        assertEquals(CHECK_VALUE, crc);
+    }
+
+    @Test
+    public void testDirectBuffer() {
+        final byte[] data = randomBytes(100003);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+
+        assertEquals(Crc32c.update(0, data, 7, data.length - 7),
+                Crc32c.update(0, buffer, 7, data.length - 7));
+        assertEquals(data.length, buffer.position());
+    }
+
+    @Test
+    public void testCombine() {
+        final byte[] data = randomBytes(512 * 1024);
+        final int whole = Crc32c.update(0, data, 0, data.length);
+
+        for (final int split : new int[]{0, 1, 1000, 65536, 300001, data.length}) {
+            final int first = Crc32c.update(0, data, 0, split);
+            final int second = Crc32c.update(0, data, split, data.length - split);
+            assertEquals(whole, Crc32c.combine(first, second, data.length - split));
+        }
+    }
+
+    private static byte[] randomBytes(final int length) {
+        final byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}